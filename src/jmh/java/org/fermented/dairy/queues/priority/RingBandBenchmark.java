@@ -0,0 +1,108 @@
+package org.fermented.dairy.queues.priority;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+/**
+ * Single-producer, single-consumer hand-over through one {@link RingBand}, the path the locking engine takes for every
+ * message once a band is busy.
+ *
+ * <p>Lives in the queue's package as the band is package-private. Run it with a perf based profiler to see the cache
+ * traffic between the two cores, e.g. {@code -Dbenchmark.args="RingBandBenchmark -prof perfnorm"} and compare the L1 and
+ * LLC misses per operation against another layout. It needs at least two cores to mean anything. The producer stays at
+ * most {@link #MAX_LEAD} messages ahead so the ring reaches its working size and then stops growing.
+ *
+ * <p>Each operation is one message handed over: the producer spins while it is too far ahead and the consumer while the
+ * band is empty, so the score only counts messages that got through. The spins are reported separately as misses.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class RingBandBenchmark {
+    private static final Object MESSAGE = new Object();
+    private static final long MAX_LEAD = 1024L;
+    private static final long PROGRESS_INTERVAL_MASK = 63L;
+
+    private RingBand<Object> band;
+    //published by the consumer every 64 messages so the producer can bound its lead without reading the band's cursors
+    private volatile long consumed;
+
+    /**
+     * Messages handed over, per thread.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long offered;
+        public long polled;
+    }
+
+    /**
+     * Spins on a full lead or an empty band, per thread.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Misses {
+        public long offerMisses;
+        public long pollMisses;
+    }
+
+    /**
+     * Creates the band.
+     */
+    @Setup(Level.Iteration)
+    public void setup() {
+        band = new RingBand<>();
+        consumed = 0L;
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public void offer(final Counters counters, final Misses misses, final Control control) {
+        while (counters.offered - consumed >= MAX_LEAD) {
+            if (control.stopMeasurement) {
+                return; //the consumer has stopped, give up rather than spin forever
+            }
+            misses.offerMisses++;
+            Thread.onSpinWait();
+        }
+        band.offer(MESSAGE);
+        counters.offered++;
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public Object poll(final Counters counters, final Misses misses, final Control control) {
+        Object message;
+        while ((message = band.poll()) == null) {
+            if (control.stopMeasurement) {
+                return null; //the producer has stopped, give up rather than spin forever
+            }
+            misses.pollMisses++;
+            Thread.onSpinWait();
+        }
+        if ((++counters.polled & PROGRESS_INTERVAL_MASK) == 0L) {
+            consumed = counters.polled;
+        }
+        return message;
+    }
+}
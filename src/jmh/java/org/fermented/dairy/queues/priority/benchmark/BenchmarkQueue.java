@@ -0,0 +1,13 @@
+package org.fermented.dairy.queues.priority.benchmark;
+
+/**
+ * Minimal queue surface shared by the queues under test so every benchmark drives them the same way.
+ */
+interface BenchmarkQueue {
+
+    void offer(Object message, int priority);
+
+    Object poll();
+
+    Object peek();
+}
@@ -0,0 +1,58 @@
+package org.fermented.dairy.queues.priority.benchmark;
+
+import java.util.SplittableRandom;
+
+/**
+ * Shapes of priority traffic offered by the benchmarks.
+ */
+public enum PriorityDistribution {
+    /**
+     * Every priority in the range is equally likely.
+     */
+    UNIFORM {
+        @Override
+        int next(final SplittableRandom random, final int priorityRange) {
+            return random.nextInt(priorityRange);
+        }
+    },
+    /**
+     * Most traffic is low priority with a thin tail of high priorities, squaring a uniform draw.
+     */
+    SKEWED {
+        @Override
+        int next(final SplittableRandom random, final int priorityRange) {
+            final double draw = random.nextDouble();
+            return (int) (draw * draw * priorityRange);
+        }
+    },
+    /**
+     * Every message has the same priority, the queue degenerates to a FIFO.
+     */
+    SINGLE {
+        @Override
+        int next(final SplittableRandom random, final int priorityRange) {
+            return priorityRange / 2;
+        }
+    };
+
+    static final int SAMPLES = 4096;
+    static final int SAMPLE_MASK = SAMPLES - 1;
+
+    abstract int next(SplittableRandom random, int priorityRange);
+
+    /**
+     * Pre-computes a cycle of priorities so drawing them is not part of the measurement.
+     *
+     * @param priorityRange number of distinct priorities
+     * @param seed random seed
+     * @return {@value #SAMPLES} priorities
+     */
+    int[] samples(final int priorityRange, final long seed) {
+        final SplittableRandom random = new SplittableRandom(seed);
+        final int[] samples = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = next(random, priorityRange);
+        }
+        return samples;
+    }
+}
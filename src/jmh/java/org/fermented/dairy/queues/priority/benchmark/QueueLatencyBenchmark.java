@@ -0,0 +1,69 @@
+package org.fermented.dairy.queues.priority.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency percentiles of a single offer followed by a poll on a queue held at a steady depth.
+ *
+ * <p>Run with {@code -prof gc} to check the allocation rate per operation of the allocation-free path.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueueLatencyBenchmark {
+    private static final Object MESSAGE = new Object();
+
+    @Param({"INTEGER_RANGE_LOCKING", "INTEGER_RANGE_LOCK_FREE", "DEFAULT", "PRIORITY_BLOCKING_QUEUE"})
+    public QueueType queueType;
+
+    @Param({"5", "1000"})
+    public int priorityRange;
+
+    @Param({"0", "10000", "1000000"})
+    public int depth;
+
+    @Param({"UNIFORM", "SKEWED", "SINGLE"})
+    public PriorityDistribution distribution;
+
+    private BenchmarkQueue queue;
+    private int[] samples;
+    private int next;
+
+    /**
+     * Creates the queue and fills it to the steady depth.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        queue = queueType.create(priorityRange, depth + 1L);
+        samples = distribution.samples(priorityRange, 1L);
+        for (int i = 0; i < depth; i++) {
+            queue.offer(MESSAGE, samples[i & PriorityDistribution.SAMPLE_MASK]);
+        }
+    }
+
+    @Benchmark
+    public Object offerThenPoll() {
+        queue.offer(MESSAGE, samples[next++ & PriorityDistribution.SAMPLE_MASK]);
+        return queue.poll();
+    }
+
+    @Benchmark
+    public Object peek() {
+        return queue.peek();
+    }
+}
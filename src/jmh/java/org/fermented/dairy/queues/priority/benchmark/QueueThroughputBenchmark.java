@@ -0,0 +1,114 @@
+package org.fermented.dairy.queues.priority.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Producer/consumer throughput across queue types, priority ranges, starting depths and priority distributions.
+ *
+ * <p>Each group runs producers and consumers against one shared queue, JMH reports the offer and poll rates separately.
+ * The thread counts per group can be overridden with {@code -tg}, e.g. {@code -tg 8,8} for the mpmc group.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class QueueThroughputBenchmark {
+    private static final Object MESSAGE = new Object();
+    private static final long HEADROOM = 1L << 20;
+    private static final AtomicLong SEEDS = new AtomicLong();
+
+    @Param({"INTEGER_RANGE_LOCKING", "INTEGER_RANGE_LOCK_FREE", "DEFAULT", "PRIORITY_BLOCKING_QUEUE"})
+    public QueueType queueType;
+
+    @Param({"5", "1000"})
+    public int priorityRange;
+
+    @Param({"0", "10000"})
+    public int initialDepth;
+
+    @Param({"UNIFORM", "SKEWED"})
+    public PriorityDistribution distribution;
+
+    private BenchmarkQueue queue;
+
+    /**
+     * Per thread position in a pre-computed cycle of priorities.
+     */
+    @State(Scope.Thread)
+    public static class Priorities {
+        int[] samples;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup(final QueueThroughputBenchmark benchmark) {
+            samples = benchmark.distribution.samples(benchmark.priorityRange, SEEDS.incrementAndGet());
+        }
+
+        int next() {
+            return samples[next++ & PriorityDistribution.SAMPLE_MASK];
+        }
+    }
+
+    /**
+     * Creates the queue and fills it to the starting depth.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        queue = queueType.create(priorityRange, initialDepth + HEADROOM);
+        final int[] samples = distribution.samples(priorityRange, 0L);
+        for (int i = 0; i < initialDepth; i++) {
+            queue.offer(MESSAGE, samples[i & PriorityDistribution.SAMPLE_MASK]);
+        }
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public void spscOffer(final Priorities priorities) {
+        queue.offer(MESSAGE, priorities.next());
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public Object spscPoll() {
+        return queue.poll();
+    }
+
+    @Benchmark
+    @Group("mpmc")
+    @GroupThreads(4)
+    public void mpmcOffer(final Priorities priorities) {
+        queue.offer(MESSAGE, priorities.next());
+    }
+
+    @Benchmark
+    @Group("mpmc")
+    @GroupThreads(4)
+    public Object mpmcPoll() {
+        return queue.poll();
+    }
+
+    @Benchmark
+    @Group("peek")
+    public Object peek() {
+        return queue.peek();
+    }
+}
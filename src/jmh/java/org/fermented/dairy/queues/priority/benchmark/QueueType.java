@@ -0,0 +1,127 @@
+package org.fermented.dairy.queues.priority.benchmark;
+
+import static org.fermented.dairy.queues.priority.PriorityQueue.MAX_PUT_WAIT_TIME_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.MAX_QUEUE_DEPTH_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.QUEUE_ENGINE_PROPERTY;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.fermented.dairy.queues.priority.DefaultPriorityQueue;
+import org.fermented.dairy.queues.priority.IntegerRangePriorityQueue;
+import org.fermented.dairy.queues.priority.Priority;
+import org.fermented.dairy.queues.priority.PriorityQueue;
+import org.fermented.dairy.queues.priority.QueueEngine;
+
+/**
+ * Queue implementations compared by the benchmarks.
+ */
+public enum QueueType {
+    /**
+     * {@link IntegerRangePriorityQueue} with the default locking engine.
+     */
+    INTEGER_RANGE_LOCKING {
+        @Override
+        BenchmarkQueue create(final int priorityRange, final long maxQueueDepth) {
+            return integerRange(properties(QueueEngine.LOCKING, maxQueueDepth), priorityRange);
+        }
+    },
+    /**
+     * {@link IntegerRangePriorityQueue} with the lock-free engine.
+     */
+    INTEGER_RANGE_LOCK_FREE {
+        @Override
+        BenchmarkQueue create(final int priorityRange, final long maxQueueDepth) {
+            return integerRange(properties(QueueEngine.LOCK_FREE, maxQueueDepth), priorityRange);
+        }
+    },
+    /**
+     * {@link DefaultPriorityQueue}, priorities are folded onto the five {@link Priority} values.
+     */
+    DEFAULT {
+        @Override
+        BenchmarkQueue create(final int priorityRange, final long maxQueueDepth) {
+            final DefaultPriorityQueue<Object> queue = PriorityQueue.getQueue(properties(QueueEngine.LOCKING, maxQueueDepth));
+            final Priority[] priorities = Priority.values();
+            return new BenchmarkQueue() {
+                @Override
+                public void offer(final Object message, final int priority) {
+                    queue.offer(message, priorities[priority % priorities.length]);
+                }
+
+                @Override
+                public Object poll() {
+                    return queue.pollOrNull();
+                }
+
+                @Override
+                public Object peek() {
+                    return queue.peek().orElse(null);
+                }
+            };
+        }
+    },
+    /**
+     * {@link PriorityBlockingQueue} baseline, ties are broken by a sequence number to keep the same FIFO order.
+     */
+    PRIORITY_BLOCKING_QUEUE {
+        @Override
+        BenchmarkQueue create(final int priorityRange, final long maxQueueDepth) {
+            final AtomicLong sequence = new AtomicLong();
+            final PriorityBlockingQueue<Entry> queue = new PriorityBlockingQueue<>(1024,
+                    Comparator.comparingInt(Entry::priority).reversed().thenComparingLong(Entry::sequence));
+            return new BenchmarkQueue() {
+                @Override
+                public void offer(final Object message, final int priority) {
+                    queue.offer(new Entry(message, priority, sequence.getAndIncrement()));
+                }
+
+                @Override
+                public Object poll() {
+                    final Entry entry = queue.poll();
+                    return entry == null ? null : entry.message();
+                }
+
+                @Override
+                public Object peek() {
+                    final Entry entry = queue.peek();
+                    return entry == null ? null : entry.message();
+                }
+            };
+        }
+    };
+
+    abstract BenchmarkQueue create(int priorityRange, long maxQueueDepth);
+
+    private static Map<String, Object> properties(final QueueEngine engine, final long maxQueueDepth) {
+        return Map.of(
+                QUEUE_ENGINE_PROPERTY, engine,
+                MAX_QUEUE_DEPTH_PROPERTY, maxQueueDepth,
+                MAX_PUT_WAIT_TIME_PROPERTY, Long.MAX_VALUE / 2L
+        );
+    }
+
+    private static BenchmarkQueue integerRange(final Map<String, Object> properties, final int priorityRange) {
+        final IntegerRangePriorityQueue<Object> queue = PriorityQueue.getQueue(properties, 0, priorityRange - 1);
+        return new BenchmarkQueue() {
+            @Override
+            public void offer(final Object message, final int priority) {
+                queue.offer(message, priority);
+            }
+
+            @Override
+            public Object poll() {
+                return queue.pollOrNull();
+            }
+
+            @Override
+            public Object peek() {
+                return queue.peek().orElse(null);
+            }
+        };
+    }
+
+    private record Entry(Object message, int priority, long sequence) {
+    }
+}
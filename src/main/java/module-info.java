@@ -1,4 +1,7 @@
 module priority.queue {
+    requires transitive java.management;
+
     exports org.fermented.dairy.queues.priority;
     exports org.fermented.dairy.queues.priority.exceptions;
-}
\ No newline at end of file
+    exports org.fermented.dairy.queues.priority.metrics;
+}
@@ -1,166 +1,2211 @@
 package org.fermented.dairy.queues.priority;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.fermented.dairy.queues.priority.exceptions.QueueInstantiationException;
+import org.fermented.dairy.queues.priority.exceptions.QueueJournalException;
 import org.fermented.dairy.queues.priority.exceptions.QueuePollException;
 import org.fermented.dairy.queues.priority.exceptions.QueuePutException;
+import org.fermented.dairy.queues.priority.metrics.QueueMetrics;
 
 /**
  * Implementation of the PriorityQueue that uses a custom set of priorities.
  *
+ * <p>Each priority has its own FIFO band. With the default {@link QueueEngine#LOCKING} engine producers are serialised by
+ * a put lock and consumers by a poll lock, so each band only ever sees one producer and one consumer and can be an
+ * allocation-free {@link RingBand}. Peeking at a ring band is a consumer operation too, so with the locking engine
+ * {@link #peek()} waits for the poll lock like a poll does and throws a {@link QueuePollException} if it does not come
+ * within the poll wait timeout. With {@link QueueEngine#LOCK_FREE} both sides go straight to {@link LinkedBand}s and
+ * only fall back to the locks to block when the queue is full or to wake waiting pollers.
+ *
+ * <p>Messages offered with a time to live are wrapped in an {@link Envelope} and tracked by a {@link TimingWheel}, which
+ * is advanced by whichever thread next uses the queue. An expired message stops counting towards the depth straight away,
+ * its envelope is dropped from the band later, in bulk after the wheel advances or when a consumer reaches it. Expired
+ * and evicted messages are passed to the dead letter handler only once the thread that found them has released the
+ * timing wheel's and the queue's locks.
+ *
+ * <p>Threads waiting to poll or offer park on the poll and put locks' conditions, so virtual threads can wait without
+ * holding on to their carrier threads. The async methods do not wait at all: their futures join a line guarded by the
+ * relevant lock and are completed by whichever thread next adds a message or frees a slot.
+ *
+ * <p>A {@link PriorityQueue#METRICS_PROPERTY metrics} SPI is called from the hot paths when one is set, otherwise the
+ * queue skips the hooks after a null check. To measure residence times every message is then wrapped in an envelope
+ * recording when it was offered, except in bands that serialise messages with a codec.
+ *
+ * <p>Beyond the maximum depth each priority can be given a {@link PriorityQueue#PRIORITY_CAPACITIES_PROPERTY capacity} of
+ * its own, and part of the depth can be {@link PriorityQueue#RESERVED_CAPACITY_PROPERTY reserved} for a priority and
+ * those above it, so that a flood of low priority messages cannot lock out urgent ones. Capacities are counted per band
+ * with a CAS alongside the total count, so they hold for lock-free producers too. Each priority's
+ * {@link OverflowPolicy} says what an offer that finds no room does, evicting policies take the poll lock to remove the
+ * message they make room with.
+ *
+ * <p>A message offered {@link #offerWithHandle(Object, Object) with a handle} waits in an envelope that the handle can
+ * cancel, or replace with one in another band, in O(1). The old envelope stays behind as a tombstone, like an expired one.
+ *
+ * <p>With a {@link PriorityQueue#DEDUPLICATION_KEY_PROPERTY deduplication key} set, a message whose key is already
+ * pending is folded into the pending one instead of being added: the pending message moves up to the higher of the two
+ * priorities and is replaced by the {@link PriorityQueue#COALESCE_FUNCTION_PROPERTY coalesce function}'s merge of the two,
+ * if one is set. Coalescing swaps envelopes like a handle does, holding the put lock, so each key is pending at most once.
+ *
+ * <p>Consumers can also poll selectively, from the bands at or above a floor, within a range, or whose head a filter
+ * accepts, leaving every other band untouched.
+ *
+ * <p>Consumers take the highest occupied band unless a {@link PriorityQueue#SCHEDULING_POLICY_PROPERTY scheduling policy}
+ * says otherwise. Schedulers keep per band state, so with one in use consumers always poll under the poll lock.
+ *
+ * <p>Bands are created on the first offer to their priority and released again once they have been empty for the
+ * {@link PriorityQueue#BAND_IDLE_TIMEOUT_PROPERTY band idle timeout}, so a wide priority range only costs a reference and
+ * an occupancy bit for each priority that is not in use. The locking engine releases bands holding both locks. Lock-free
+ * producers may still be publishing to a band as it is released, so they re-check the band after publishing and move
+ * anything left in a released band to its replacement.
+ *
+ * <p>If a {@link PriorityQueue#MESSAGE_CODEC_PROPERTY message codec} is set every band is an {@link OffHeapBand} instead,
+ * keeping messages serialised in direct memory so that very deep queues do not fill the old generation. Setting a
+ * {@link PriorityQueue#JOURNAL_DIRECTORY_PROPERTY journal directory} as well makes the queue durable: every band is a
+ * {@link JournalBand} in a band-index sub-directory, and a queue created on an existing directory starts with the
+ * messages left in it. Journal bands are never released when idle, a band's files may only be open once.
+ *
  * @param <M> The type of objects placed on the queue.
  * @param <P> The priority type
  */
-public abstract class AbstractArrayPriorityQueue<M, P> implements PriorityQueue<M, P> {
-    private static final long DEFAULT_MAX_QUEUE_DEPTH = 50000L;
-    private static final long DEFAULT_PUT_BLOCK_TIMEOUT_MS = 0L;
-    private static final long DEFAULT_POLL_WAIT_TIMEOUT_MS = 100L;
+public abstract class AbstractArrayPriorityQueue<M, P> implements BandedPriorityQueue<M, P> {
+    static final long DEFAULT_POLL_WAIT_TIMEOUT_MS = 100L;
+    static final long DEFAULT_MAX_QUEUE_DEPTH = 50000L;
+    static final long DEFAULT_PUT_BLOCK_TIMEOUT_MS = 0L;
+    private static final long DEFAULT_BAND_IDLE_TIMEOUT_MS = 60000L;
+    private static final long DEFAULT_OFF_HEAP_SLAB_SIZE = 1L << 20;
+    private static final long DEFAULT_JOURNAL_SEGMENT_SIZE = 64L << 20;
+    private static final long DEFAULT_JOURNAL_SYNC_INTERVAL_MS = 1000L;
+    private static final String JOURNAL_BAND_PREFIX = "band-";
+    private static final long DEFAULT_AGING_THRESHOLD_MS = 1000L;
+    private static final VarHandle BANDS = MethodHandles.arrayElementVarHandle(Band[].class);
 
-    private final Set<P> prioritySet;
+    private final int priorityCount;
 
     private final P defaultPriority;
 
     private final long maxQueueDepth;
     private final long putBlockTimeout;
     private final long pollWaitTimeout;
+    private final long bandIdleTimeout;
+    private final boolean lockFree;
+    private final MessageCodec<M> codec;
+    private final int offHeapSlabSize;
+    private final Object schedulingPolicy;
+    private final Map<P, ? extends Number> priorityWeights;
+    private final long agingThreshold;
+    private final boolean scheduled;
+    private final boolean lockFreePoll;
+    private final DequeueScheduler.Bands occupiedBands = new OccupiedBands();
+    private DequeueScheduler scheduler;
+    private final Consumer<? super M> deadLetterHandler;
+    //null unless metrics are enabled, every hook is behind a null check so that disabled metrics cost nothing
+    private final QueueMetrics metrics;
+    private final boolean residenceTracked;
+    private final TimingWheel timingWheel = new TimingWheel();
+    private final Consumer<Envelope<?>> expiry = this::expire;
+    private final AtomicBoolean freedWhileFull = new AtomicBoolean();
+    private volatile boolean staleSinceTrim;
+    private final Map<P, ? extends Number> priorityCapacities;
+    private final Map<P, ? extends Number> reservedCapacity;
+    private final Object overflowPolicy;
+    private final boolean limited;
+    private final AtomicLongArray bandCounts;
+    private volatile CapacityLimits capacityLimits;
+    private final Function<? super M, ?> deduplicationKey;
+    private final BinaryOperator<M> coalesceFunction;
+    //the pending envelope of each key, null unless offers are deduplicated; written holding the put lock
+    private final ConcurrentHashMap<Object, Envelope<M>> keyIndex;
+    private final Path journalDirectory;
+    private final int journalSegmentSize;
+    private final long journalSyncInterval;
+    private final ReentrantLock journalLock = new ReentrantLock();
 
     private final ReentrantLock pollLock = new ReentrantLock();
+    private final Condition notEmpty = pollLock.newCondition();
     private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notFull = putLock.newCondition();
+
+    //exact total, it doubles as the capacity gate so it cannot be striped; the per band counts are only ever read
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicInteger waitingPollers = new AtomicInteger();
+    //producers waiting for room, blocked or async, only tracked while per priority limits are set
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+    //async pollers, counted in waitingPollers, are guarded by the poll lock and async producers by the put lock
+    private final ArrayDeque<PendingFuture<M>> pendingPolls = new ArrayDeque<>();
+    private final ArrayDeque<PendingOffer<M>> pendingOffers = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<Discarded<M>> discarded = new ConcurrentLinkedQueue<>();
+    //size of pendingOffers, for producers deciding without the put lock whether they would jump the line
+    private volatile int pendingOfferCount;
+    private final AtomicLong nextIdleSweep;
 
-    private final Queue<M>[] queues;
+    //null until the first offer to a priority and again once its band is released, read and written through BANDS
+    private final Band<M>[] queues;
+    private final OccupancyIndex occupancy;
 
-    protected AbstractArrayPriorityQueue(final Map<String, Object> properties, final Set<P> prioritySet, final P defaultPriority) {
+    protected AbstractArrayPriorityQueue(final Map<String, Object> properties, final int priorityCount, final P defaultPriority) {
         this.maxQueueDepth = (long) properties.getOrDefault(MAX_QUEUE_DEPTH_PROPERTY, DEFAULT_MAX_QUEUE_DEPTH);
         this.putBlockTimeout = (long) properties.getOrDefault(MAX_PUT_WAIT_TIME_PROPERTY, DEFAULT_PUT_BLOCK_TIMEOUT_MS);
         this.pollWaitTimeout = (long) properties.getOrDefault(MAX_POLL_WAIT_TIME_PROPERTY, DEFAULT_POLL_WAIT_TIMEOUT_MS);
-        this.prioritySet = prioritySet;
+        this.bandIdleTimeout = TimeUnit.MILLISECONDS.toNanos(
+                (long) properties.getOrDefault(BAND_IDLE_TIMEOUT_PROPERTY, DEFAULT_BAND_IDLE_TIMEOUT_MS));
+        this.lockFree = QueueEngine.LOCK_FREE == properties.getOrDefault(QUEUE_ENGINE_PROPERTY, QueueEngine.LOCKING);
+        this.schedulingPolicy = properties.getOrDefault(SCHEDULING_POLICY_PROPERTY, SchedulingPolicy.STRICT);
+        if (!(schedulingPolicy instanceof SchedulingPolicy || schedulingPolicy instanceof DequeueScheduler)) {
+            throw new QueueInstantiationException("%s must be a SchedulingPolicy or a DequeueScheduler", SCHEDULING_POLICY_PROPERTY);
+        }
+        @SuppressWarnings("unchecked") final Map<P, ? extends Number> weights =
+                (Map<P, ? extends Number>) properties.getOrDefault(PRIORITY_WEIGHTS_PROPERTY, Map.of());
+        weights.forEach((priority, weight) -> {
+            if (!(weight.doubleValue() > 0.0)) {
+                throw new QueueInstantiationException("The weight of %s must be greater than 0", priority);
+            }
+        });
+        this.priorityWeights = weights;
+        this.agingThreshold = TimeUnit.MILLISECONDS.toNanos(
+                (long) properties.getOrDefault(AGING_THRESHOLD_PROPERTY, DEFAULT_AGING_THRESHOLD_MS));
+        this.scheduled = schedulingPolicy != SchedulingPolicy.STRICT;
+        @SuppressWarnings("unchecked") final Consumer<? super M> handler = (Consumer<? super M>) properties.get(DEAD_LETTER_HANDLER_PROPERTY);
+        this.deadLetterHandler = handler;
+        this.metrics = (QueueMetrics) properties.get(METRICS_PROPERTY);
+        @SuppressWarnings("unchecked") final Map<P, ? extends Number> capacities =
+                (Map<P, ? extends Number>) properties.getOrDefault(PRIORITY_CAPACITIES_PROPERTY, Map.of());
+        capacities.forEach((priority, capacity) -> {
+            if (capacity.longValue() <= 0L) {
+                throw new QueueInstantiationException("The capacity of %s must be greater than 0", priority);
+            }
+        });
+        this.priorityCapacities = capacities;
+        @SuppressWarnings("unchecked") final Map<P, ? extends Number> reserved =
+                (Map<P, ? extends Number>) properties.getOrDefault(RESERVED_CAPACITY_PROPERTY, Map.of());
+        reserved.forEach((priority, headroom) -> {
+            if (headroom.longValue() < 0L) {
+                throw new QueueInstantiationException("The capacity reserved for %s must not be negative", priority);
+            }
+        });
+        if (reserved.values().stream().mapToLong(Number::longValue).sum() >= maxQueueDepth) {
+            throw new QueueInstantiationException("The reserved capacity must leave room below the %s", MAX_QUEUE_DEPTH_PROPERTY);
+        }
+        this.reservedCapacity = reserved;
+        this.overflowPolicy = properties.getOrDefault(OVERFLOW_POLICY_PROPERTY, OverflowPolicy.BLOCK);
+        if (!(overflowPolicy instanceof OverflowPolicy || overflowPolicy instanceof Map<?, ?>)) {
+            throw new QueueInstantiationException("%s must be an OverflowPolicy or a map of priority to OverflowPolicy", OVERFLOW_POLICY_PROPERTY);
+        }
+        this.limited = !capacities.isEmpty() || !reserved.isEmpty() || overflowPolicy != OverflowPolicy.BLOCK;
+        this.bandCounts = capacities.isEmpty() ? null : new AtomicLongArray(priorityCount);
+        this.lockFreePoll = lockFree && !scheduled;
+        @SuppressWarnings("unchecked") final MessageCodec<M> messageCodec = (MessageCodec<M>) properties.get(MESSAGE_CODEC_PROPERTY);
+        this.codec = messageCodec;
+        this.residenceTracked = metrics != null && codec == null;
+        this.offHeapSlabSize = Math.toIntExact((long) properties.getOrDefault(OFF_HEAP_SLAB_SIZE_PROPERTY, DEFAULT_OFF_HEAP_SLAB_SIZE));
+        final Object journal = properties.get(JOURNAL_DIRECTORY_PROPERTY);
+        this.journalDirectory = journal == null || journal instanceof Path ? (Path) journal : Path.of(journal.toString());
+        this.journalSegmentSize = Math.toIntExact(
+                (long) properties.getOrDefault(JOURNAL_SEGMENT_SIZE_PROPERTY, DEFAULT_JOURNAL_SEGMENT_SIZE));
+        this.journalSyncInterval = TimeUnit.MILLISECONDS.toNanos(
+                (long) properties.getOrDefault(JOURNAL_SYNC_INTERVAL_PROPERTY, DEFAULT_JOURNAL_SYNC_INTERVAL_MS));
+        if (journalDirectory != null && codec == null) {
+            throw new QueueInstantiationException("%s needs a %s to serialise messages", JOURNAL_DIRECTORY_PROPERTY, MESSAGE_CODEC_PROPERTY);
+        }
+        @SuppressWarnings("unchecked") final Function<? super M, ?> keyFunction = (Function<? super M, ?>) properties.get(DEDUPLICATION_KEY_PROPERTY);
+        this.deduplicationKey = keyFunction;
+        @SuppressWarnings("unchecked") final BinaryOperator<M> coalesce = (BinaryOperator<M>) properties.get(COALESCE_FUNCTION_PROPERTY);
+        this.coalesceFunction = coalesce;
+        if (coalesce != null && keyFunction == null) {
+            throw new QueueInstantiationException("%s needs a %s to find duplicates", COALESCE_FUNCTION_PROPERTY, DEDUPLICATION_KEY_PROPERTY);
+        }
+        if (keyFunction != null && codec != null) {
+            throw new QueueInstantiationException("%s cannot be used with a %s, which cannot hold envelopes",
+                    DEDUPLICATION_KEY_PROPERTY, MESSAGE_CODEC_PROPERTY);
+        }
+        this.keyIndex = keyFunction == null ? null : new ConcurrentHashMap<>();
+        this.priorityCount = priorityCount;
         this.defaultPriority = defaultPriority;
-        queues = createQueueArray(prioritySet);
+        @SuppressWarnings("unchecked") final Band<M>[] bands = new Band[priorityCount];
+        queues = bands;
+        occupancy = new OccupancyIndex(priorityCount);
+        nextIdleSweep = new AtomicLong(System.nanoTime() + bandIdleTimeout);
+        if (metrics != null) {
+            metrics.attached(priorityCount);
+        }
+        if (journalDirectory != null) {
+            recoverJournal();
+        }
+    }
+
+    /**
+     * Maps the per priority capacities, reservations, overflow policies and weights onto bands, so that a priority outside
+     * this queue is reported when the queue is created. Subclasses call it at the end of their constructors, once
+     * {@link #getPriorityIndex(Object)} can be used, otherwise they are mapped on first use.
+     *
+     * @throws QueueInstantiationException if a priority in the properties is not accepted by this queue
+     */
+    protected final void mapPriorities() {
+        capacityLimits = createLimits();
+        priorityWeights.keySet().forEach(this::configuredIndex);
     }
 
+    /**
+     * Maps a priority onto its band, higher priorities have higher indexes.
+     *
+     * @param priority the priority
+     * @return The band index, or a value outside 0 to priorityCount - 1 if the priority is not accepted by this queue
+     */
     public abstract int getPriorityIndex(final P priority);
 
     @Override
     public void offer(final M message, final P priority) {
-        if (!prioritySet.contains(priority)) {
-            throw new QueuePutException("%s is not in the priority set", priority);
+        offerToBand(message, checkedPriorityIndex(priority));
+    }
+
+    @Override
+    public void offer(final M message) {
+        offer(message, defaultPriority);
+    }
+
+    @Override
+    public void offer(final M message, final P priority, final Duration ttl) {
+        final int index = checkedPriorityIndex(priority);
+        if (codec != null) {
+            throw new QueuePutException("Messages with a time to live cannot be stored by a %s", MESSAGE_CODEC_PROPERTY);
         }
-        try {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new QueuePutException("The time to live must be positive, was %s", ttl);
+        }
+        final long now = System.nanoTime();
+        final Envelope<M> envelope = new Envelope<>(message, index, now, now + ttl.toNanos());
+        offerToBand(stored(envelope), index);
+        timingWheel.schedule(envelope);
+    }
 
-            final long startWaitTime = System.currentTimeMillis(); //start the clock before trying to get the lock
-            if (!putLock.isHeldByCurrentThread()
-                    && !putLock.tryLock(putBlockTimeout, TimeUnit.MILLISECONDS)) {
-                throw new QueuePutException("Could not gain the lock on poll within the timeout period");
+    @Override
+    public CompletableFuture<Void> offerAsync(final M message, final P priority) {
+        final int index = checkedPriorityIndex(priority);
+        expireDue();
+        long granted = -1L;
+        putLock.lock();
+        try {
+            if (keyIndex != null && coalesce(keyOf(message), message, index)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            //stay behind messages already waiting for space, unless the overflow policy never waits
+            if (!offersWaitingFor(index) || overflowPolicy(index) != OverflowPolicy.BLOCK) {
+                granted = tryReserve(index, 1L);
+                if (granted == 0L) {
+                    granted = makeRoom(index, 1L);
+                }
             }
-            while (maxQueueDepth <= depth()) {
-                if (System.currentTimeMillis() - startWaitTime >= putBlockTimeout) {
-                    throw new QueuePutException("Put failed after timeout, max queue depth exceeded");
+            if (granted < 0L) {
+                final PendingFuture<Void> future = new PendingFuture<>(putLock, this::withdrawOffer);
+                pendingOffers.add(new PendingOffer<>(message, index, future));
+                pendingOfferCount = pendingOffers.size();
+                if (limited) {
+                    waitingProducers.incrementAndGet();
+                }
+                return future;
+            }
+            if (granted > 0L) {
+                publish(index, keyIndex == null ? message : register(message, index));
+            }
+        } catch (final QueuePutException e) {
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            putLock.unlock();
+            reportDiscarded();
+        }
+        if (granted == 0L) {
+            dropped(message, index);
+        } else if (waitingPollers.get() > 0) {
+            signalNotEmpty();
+        }
+        afterUnlocking();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> offerAsync(final M message) {
+        return offerAsync(message, defaultPriority);
+    }
+
+    /**
+     * Puts a message on the queue like {@link #offer(Object, Object)} and returns a handle for cancelling it or changing
+     * its priority later. The message waits on its band in an envelope, which the handle marks rather than removes.
+     *
+     * @param message message to offer
+     * @param priority priority of the message
+     * @return The message's handle, no longer pending if the overflow policy dropped the message
+     * @throws QueuePutException if the priority is not accepted, the queue stays full for longer than the put timeout, or
+     *          the queue stores messages with a {@link MessageCodec}, which cannot hold the envelope
+     */
+    @Override
+    public MessageHandle<P> offerWithHandle(final M message, final P priority) {
+        final int index = checkedPriorityIndex(priority);
+        if (codec != null) {
+            throw new QueuePutException("Messages with a handle cannot be stored by a %s", MESSAGE_CODEC_PROPERTY);
+        }
+        if (keyIndex != null) {
+            throw new QueuePutException("Messages with a handle cannot be deduplicated, coalescing replaces their envelopes");
+        }
+        final Envelope<M> envelope = new Envelope<>(message, index, System.nanoTime());
+        offerToBand(stored(envelope), index);
+        return new Handle(envelope);
+    }
+
+    /**
+     * Polls the highest priority message at or above a floor, without touching the bands below it. Selective polls take
+     * the bands in strict priority order, a scheduling policy only applies to the unfiltered polls. They do not wait for
+     * a message, but with the locking engine they wait up to the poll wait timeout for the poll lock.
+     *
+     * @param floor lowest priority to take
+     * @return The message or empty if no band at or above the floor holds one
+     * @throws QueuePollException if the priority is not accepted by the queue or the poll lock does not come in time
+     */
+    @Override
+    public Optional<M> pollAtLeast(final P floor) {
+        return Optional.ofNullable(takeSelected(new Selection<>(pollIndex(floor), priorityCount - 1, null)));
+    }
+
+    /**
+     * Polls the highest priority message within a range of priorities, so that consumer pools can each subscribe to
+     * their own bands. Selective polls take the bands in strict priority order.
+     *
+     * @param lowest lowest priority to take
+     * @param highest highest priority to take
+     * @return The message or empty if no band in the range holds one
+     * @throws QueuePollException if either priority is not accepted by the queue, the lowest is above the highest or the
+     *          poll lock does not come in time
+     */
+    @Override
+    public Optional<M> pollBetween(final P lowest, final P highest) {
+        final int lowestIndex = pollIndex(lowest);
+        final int highestIndex = pollIndex(highest);
+        if (lowestIndex > highestIndex) {
+            throw new QueuePollException("%s is above %s", lowest, highest);
+        }
+        return Optional.ofNullable(takeSelected(new Selection<>(lowestIndex, highestIndex, null)));
+    }
+
+    /**
+     * Polls the highest priority message that a filter accepts. Only the message at the head of each band is offered to
+     * the filter, so a priority's messages are still taken in the order they were offered and a rejected message holds
+     * back the ones behind it from this consumer; pools that split the work by priority should use
+     * {@link #pollBetween(Object, Object)}. The filter may run holding the poll lock or a band's monitor, so it should be
+     * quick, and it may be called more than once for a message that consumers are racing for.
+     *
+     * @param filter test for the messages at the heads of the bands
+     * @return The message or empty if no band's head is accepted
+     * @throws QueuePollException if the poll lock does not come in time
+     */
+    @Override
+    public Optional<M> pollIf(final Predicate<? super M> filter) {
+        final Predicate<M> unwrapping = stored -> filter.test(stored instanceof Envelope<?> envelope ? unwrap(envelope) : stored);
+        return Optional.ofNullable(takeSelected(new Selection<>(0, priorityCount - 1, unwrapping)));
+    }
+
+    /**
+     * Offers a message to a band that the caller has already validated, for primitive priority fast paths.
+     *
+     * @param message message to offer
+     * @param index band index, between 0 and priorityCount - 1
+     */
+    protected final void offerToBand(final M message, final int index) {
+        expireDue();
+        if (keyIndex != null) {
+            offerDeduplicated(message, index);
+            return;
+        }
+        final boolean added;
+        try {
+            //start the clock before trying to get the lock, the timeout covers both the lock and the wait for space
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(putBlockTimeout);
+            if (lockFree) {
+                added = reserveInLine(index, 1L) > 0L || reserveBlocking(index, 1L, deadline) > 0L;
+                if (added) {
+                    publish(index, message);
+                }
+            } else {
+                lockPut(deadline);
+                try {
+                    added = reserveInLine(index, 1L) > 0L || overflow(index, 1L, deadline) > 0L;
+                    if (added) {
+                        publish(index, message);
+                    }
+                } finally {
+                    putLock.unlock();
                 }
             }
-            queues[getPriorityIndex(priority)].offer(message);
         } catch (final InterruptedException e) { //NOSONAR: java:S2142, Throwing wrapped exception
             throw new QueuePutException("Could not gain the lock on offer", e);
         } finally {
-            if (putLock.isHeldByCurrentThread()) {
+            reportDiscarded();
+        }
+        if (!added) {
+            dropped(message, index);
+        } else if (waitingPollers.get() > 0) {
+            signalNotEmpty();
+        }
+        afterUnlocking();
+    }
+
+    /**
+     * Offers a message with deduplication on, folding it into the pending message with the same key if there is one and
+     * otherwise adding it and its key to the index. The whole offer holds the put lock so that a key is added at most
+     * once, with the lock-free engine too.
+     *
+     * @param stored message to offer, or its envelope if it has a time to live
+     * @param index band index
+     */
+    private void offerDeduplicated(final M stored, final int index) {
+        final M message = stored instanceof Envelope<?> envelope ? unwrap(envelope) : stored;
+        final Object key = keyOf(message);
+        boolean coalesced;
+        boolean added = false;
+        try {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(putBlockTimeout);
+            lockPut(deadline);
+            try {
+                coalesced = coalesce(key, message, index);
+                if (!coalesced) {
+                    added = reserveInLine(index, 1L) > 0L || overflow(index, 1L, deadline) > 0L;
+                    //waiting for room lets go of the put lock, a duplicate may have been added meanwhile
+                    coalesced = added && coalesce(key, message, index);
+                    if (coalesced) {
+                        unreserve(index);
+                    } else if (added) {
+                        publish(index, register(stored, index));
+                    }
+                }
+            } finally {
                 putLock.unlock();
             }
+        } catch (final InterruptedException e) { //NOSONAR: java:S2142, Throwing wrapped exception
+            throw new QueuePutException("Could not gain the lock on offer", e);
+        } finally {
+            reportDiscarded();
+        }
+        if (coalesced) {
+            if (stored instanceof Envelope<?> envelope) {
+                envelope.complete(Envelope.CANCELLED); //never counted, its expiry must not give up a place
+            }
+        } else if (!added) {
+            dropped(stored, index);
+        } else if (waitingPollers.get() > 0) {
+            signalNotEmpty();
+        }
+        afterUnlocking();
+    }
+
+    /**
+     * Folds a message into the pending message with the same key, if there is one. The
+     * {@link PriorityQueue#COALESCE_FUNCTION_PROPERTY merged message} is swapped into the pending envelope in place,
+     * unless the offered priority is higher and its band has room, in which case the pending envelope is replaced by one
+     * in the higher band. Must be called holding the put lock.
+     *
+     * @param key the message's key
+     * @param message the offered message
+     * @param index band index of the offered message
+     * @return true if the message was folded in, false if no message with the key is pending
+     */
+    private boolean coalesce(final Object key, final M message, final int index) {
+        Envelope<M> existing;
+        while ((existing = keyIndex.get(key)) != null) {
+            final M pending = existing.message();
+            final M merged = coalesceFunction == null ? pending : coalesceFunction.apply(pending, message);
+            if (index > existing.index() && reserveMove(index)) {
+                //replace hands the reservation back if it loses the race for the envelope
+                final Envelope<M> replacement = replace(existing, index, merged);
+                if (replacement != null) {
+                    keyIndex.put(key, replacement);
+                    return true;
+                }
+            } else if (merged == pending ? existing.isPending() : existing.merge(merged)) {
+                return true; //merged in place, so a key that keeps being updated keeps its place in line
+            }
+            //taken or expired before its key was forgotten
+            keyIndex.remove(key, existing);
+        }
+        return false;
+    }
+
+    /**
+     * Wraps a message in an envelope, unless it already has one, and adds it to the key index. Must be called holding
+     * the put lock, once room has been reserved for the message.
+     *
+     * @param stored the message or its envelope
+     * @param index band index
+     * @return The envelope to publish
+     */
+    private M register(final M stored, final int index) {
+        @SuppressWarnings("unchecked") final Envelope<M> envelope = stored instanceof Envelope<?> wrapped
+                ? (Envelope<M>) wrapped
+                : new Envelope<>(stored, index, System.nanoTime());
+        keyIndex.put(keyOf(envelope.message()), envelope);
+        return stored(envelope);
+    }
+
+    /**
+     * Removes an envelope that is no longer pending from the key index, if it is still the one indexed for its key.
+     *
+     * @param envelope the envelope
+     */
+    private void forget(final Envelope<?> envelope) {
+        if (keyIndex != null) {
+            keyIndex.remove(keyOf(unwrap(envelope)), envelope);
+        }
+    }
+
+    private Object keyOf(final M message) {
+        final Object key = deduplicationKey.apply(message);
+        if (key == null) {
+            throw new QueuePutException("The deduplication key of %s is null", message);
         }
+        return key;
     }
 
+    /**
+     * Hands back room reserved for a message that was coalesced instead. Must be called holding the put lock.
+     *
+     * @param index band index
+     */
+    private void unreserve(final int index) {
+        if (bandCounts != null) {
+            bandCounts.decrementAndGet(index);
+        }
+        if (freedRoomWanted(count.getAndDecrement())) {
+            freedWhileFull.set(true);
+        }
+    }
 
     @Override
-    public void offer(final M message) {
-        offer(message, defaultPriority);
+    public void offerAll(final Collection<M> messages, final P priority) {
+        offerAll(Map.of(priority, messages));
+    }
+
+    @Override
+    public void offerAll(final Map<P, ? extends Collection<M>> messages) {
+        messages.keySet().forEach(this::checkedPriorityIndex);
+        if (keyIndex != null) {
+            messages.forEach((priority, batch) -> batch.forEach(message -> offerToBand(message, getPriorityIndex(priority))));
+            return;
+        }
+        expireDue();
+        try {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(putBlockTimeout);
+            if (lockFree) {
+                for (Map.Entry<P, ? extends Collection<M>> entry : messages.entrySet()) {
+                    publishAll(getPriorityIndex(entry.getKey()), entry.getValue(), deadline);
+                }
+            } else {
+                lockPut(deadline);
+                try {
+                    for (Map.Entry<P, ? extends Collection<M>> entry : messages.entrySet()) {
+                        publishAll(getPriorityIndex(entry.getKey()), entry.getValue(), deadline);
+                    }
+                } finally {
+                    putLock.unlock();
+                }
+            }
+        } catch (final InterruptedException e) { //NOSONAR: java:S2142, Throwing wrapped exception
+            throw new QueuePutException("Could not gain the lock on offer", e);
+        } finally {
+            reportDiscarded();
+        }
+        if (waitingPollers.get() > 0) {
+            signalNotEmpty();
+        }
+        afterUnlocking();
     }
 
     @Override
     public Optional<M> poll() {
-        return poll(0L);
+        return Optional.ofNullable(takeMessage(0L));
     }
 
     @Override
     public Optional<M> poll(final boolean wait) {
-        return poll(pollWaitTimeout);
+        return wait ? poll(pollWaitTimeout) : Optional.ofNullable(takeMessage(pollWaitTimeout));
     }
 
     @Override
     public Optional<M> poll(final long waitTimeout) {
-        try {
-            if (!pollLock.isHeldByCurrentThread() && !pollLock.tryLock(waitTimeout, TimeUnit.MILLISECONDS)) {
-                throw new QueuePollException("Could not gain the lock on poll within the timeout");
-            }
+        final M message = lockFreePoll ? takeMessage(0L) : null;
+        return Optional.ofNullable(message != null ? message : awaitMessage(TimeUnit.MILLISECONDS.toNanos(waitTimeout)));
+    }
 
-            return pollMessage();
-        } catch (final InterruptedException e) { //NOSONAR: java:S2142, Throwing wrapped exception
-            throw new QueuePollException("Could not gain the lock on poll", e);
+    @Override
+    public M take() {
+        final M message = lockFreePoll ? takeMessage(0L) : null;
+        return message != null ? message : awaitMessage(Long.MAX_VALUE);
+    }
+
+    @Override
+    public CompletableFuture<M> pollAsync() {
+        expireDue();
+        final PendingFuture<M> future = new PendingFuture<>(pollLock, this::withdrawPoll);
+        final List<Runnable> completions = new ArrayList<>(1);
+        final long previousCount;
+        pollLock.lock();
+        try {
+            pendingPolls.add(future);
+            waitingPollers.incrementAndGet();
+            previousCount = servePendingPolls(completions);
         } finally {
-            if (pollLock.isHeldByCurrentThread()) {
+            pollLock.unlock();
+        }
+        completions.forEach(Runnable::run);
+        if (freedRoomWanted(previousCount)) {
+            signalNotFull();
+        }
+        reportDiscarded();
+        return future;
+    }
+
+    @Override
+    public M pollOrNull() {
+        return takeMessage(0L);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super M> target, final int maxElements) {
+        return drainTo(target, maxElements, 0L);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super M> target, final int maxElements, final long waitTimeout) {
+        expireDue();
+        final int drained;
+        final long previousCount;
+        if (lockFreePoll) {
+            drained = drainMessages(target, maxElements);
+            previousCount = count.getAndAdd(-drained);
+        } else {
+            lockPoll(waitTimeout);
+            try {
+                drained = drainMessages(target, maxElements);
+                previousCount = drained > 0 ? takeCount(drained) : 0L;
+            } finally {
                 pollLock.unlock();
             }
         }
+        if (drained > 0 && freedRoomWanted(previousCount)) {
+            signalNotFull();
+        }
+        afterUnlocking();
+        return drained;
     }
 
     @Override
     public long depth() {
-        long sum = 0;
-        for (Queue<M> queue : queues) {
-            if (!queue.isEmpty()) {
-                sum += queue.size();
-            }
-        }
-        return sum;
+        expireDue();
+        return count.get();
+    }
+
+    /**
+     * Counts the messages waiting at a priority.
+     *
+     * @param priority the priority
+     * @return The number of messages at the priority
+     * @throws QueuePollException if the priority is not accepted by the queue, like the consumer side's other reads
+     */
+    @Override
+    public long depth(final P priority) {
+        final int index = pollIndex(priority);
+        expireDue();
+        final Band<M> band = band(index);
+        //an envelope expiring while a lock-free band is being replaced can leave its band a message short
+        return band == null ? 0L : Math.max(0L, band.depth().sum());
     }
 
     @Override
     public void purge() {
-        for (Queue<M> queue : queues) {
-            if (!queue.isEmpty()) {
-                queue.clear();
+        putLock.lock();
+        pollLock.lock();
+        try {
+            //drain rather than clear so that lock-free producers racing the purge keep the count consistent
+            for (int i = 0; i < queues.length; i++) {
+                final Band<M> band = band(i);
+                if (band != null) {
+                    M stored;
+                    while ((stored = band.poll()) != null) {
+                        if (claim(stored) != null) {
+                            leftBand(band, i);
+                            count.decrementAndGet();
+                        }
+                    }
+                    if (journalDirectory == null) {
+                        release(i, band);
+                    }
+                }
+                clearOccupancy(i);
             }
+            notFull.signalAll();
+        } finally {
+            pollLock.unlock();
+            putLock.unlock();
         }
+        reportDiscarded();
+        signalNotFull(); //for messages waiting on an async offer
     }
 
     @Override
     public Optional<M> peek() {
-        for (int i = queues.length - 1; i >= 0; i--) {
-            final Queue<M> queue = queues[i];
-            if (!queue.isEmpty()) {
-                return Optional.of(queue.peek());
+        expireDue();
+        final M message;
+        if (lockFreePoll) {
+            message = peekNext();
+        } else {
+            //ring bands only allow one consumer at a time and peeking is a consumer operation, a busy lock fails like a poll
+            lockPoll(pollWaitTimeout);
+            try {
+                message = peekNext();
+            } finally {
+                pollLock.unlock();
             }
         }
-        return Optional.empty();
+        afterUnlocking();
+        return Optional.ofNullable(message);
     }
 
     @Override
     public boolean isEmpty() {
-        for (Queue<M> queue : queues) {
-            if (!queue.isEmpty()) {
-                return false;
+        expireDue();
+        //a band holding only tombstones below its head stays occupied until a consumer reaches them
+        return occupancy.highest() < 0 || count.get() == 0L;
+    }
+
+    /**
+     * Forces the journal of a durable queue to disk, the queue must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        putLock.lock();
+        pollLock.lock();
+        try {
+            for (int i = 0; i < queues.length; i++) {
+                final Band<M> band = band(i);
+                if (band != null) {
+                    band.close();
+                }
+            }
+        } finally {
+            pollLock.unlock();
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Counts the bands currently allocated, for tests.
+     *
+     * @return The number of priorities with a band
+     */
+    int allocatedBands() {
+        int allocated = 0;
+        for (int i = 0; i < queues.length; i++) {
+            if (band(i) != null) {
+                allocated++;
+            }
+        }
+        return allocated;
+    }
+
+    private int pollIndex(final P priority) {
+        final int index = getPriorityIndex(priority);
+        if (index < 0 || index >= priorityCount) {
+            throw new QueuePollException("%s is not in the priority set", priority);
+        }
+        return index;
+    }
+
+    /**
+     * Passes an envelope off as a message so that it can be stored in a band. Bands hold envelopes alongside messages
+     * without looking at them, and whatever a consumer takes off a band is checked for an envelope and unwrapped before it
+     * is handed out, see {@link #claim(Object)}. Bands with a codec never see an envelope, offers needing one are refused.
+     *
+     * @param envelope the envelope
+     * @return The envelope, typed as a message
+     */
+    @SuppressWarnings("unchecked")
+    private M stored(final Envelope<?> envelope) {
+        return (M) envelope;
+    }
+
+    @SuppressWarnings("unchecked")
+    private M unwrap(final Envelope<?> envelope) {
+        return (M) envelope.message();
+    }
+
+    private int checkedPriorityIndex(final P priority) {
+        final int index = getPriorityIndex(priority);
+        if (index < 0 || index >= priorityCount) {
+            throw new QueuePutException("%s is not in the priority set", priority);
+        }
+        return index;
+    }
+
+    /**
+     * Adds a message whose slot has already been reserved to its band.
+     *
+     * @param index band index
+     * @param message message to add
+     */
+    private void publish(final int index, final M message) {
+        publish(index, message, -1);
+    }
+
+    /**
+     * Adds a message whose slot has already been reserved to its band, recording it as enqueued or, if it is moving from
+     * another band, as moved.
+     *
+     * @param index band index
+     * @param message message to add
+     * @param movedFrom band index the message is moving from, or -1 if it is new to the queue
+     */
+    private void publish(final int index, final M message, final int movedFrom) {
+        final Band<M> band = bandForPut(index);
+        band.depth().increment(); //count before publishing so a racing poll cannot take the band count negative
+        try {
+            band.offer(residenceTracked ? timestamped(message, index) : message);
+        } catch (final RuntimeException e) {
+            //a codec or journal failure, hand back the slot that was reserved for the message
+            leftBand(band, index);
+            count.decrementAndGet();
+            throw e;
+        }
+        if (metrics != null && movedFrom < 0) {
+            metrics.enqueued(index);
+        } else if (metrics != null) {
+            metrics.moved(movedFrom, index);
+        }
+        if (lockFree && BANDS.getVolatile(queues, index) != band) {
+            rehome(index, band);
+        }
+        occupancy.set(index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Band<M> band(final int index) {
+        return (Band<M>) BANDS.getAcquire(queues, index);
+    }
+
+    private Band<M> bandForPut(final int index) {
+        final Band<M> band = band(index);
+        if (band != null) {
+            return band;
+        }
+        if (journalDirectory != null) {
+            return journalBandForPut(index);
+        }
+        final Band<M> created = newBand(index);
+        @SuppressWarnings("unchecked") final Band<M> witness = (Band<M>) BANDS.compareAndExchange(queues, index, null, created);
+        return witness == null ? created : witness;
+    }
+
+    /**
+     * Creates a journal band for a producer that found none. A journal band owns the files in its directory, so it is
+     * created holding a lock rather than raced for, a losing band would be left with the files mapped and open.
+     * Journal bands are never released, so the lock is only taken on the first offer to each priority.
+     *
+     * @param index band index
+     * @return The band
+     */
+    private Band<M> journalBandForPut(final int index) {
+        journalLock.lock();
+        try {
+            Band<M> band = band(index);
+            if (band == null) {
+                band = newBand(index);
+                BANDS.setRelease(queues, index, band);
+            }
+            return band;
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    private Band<M> newBand(final int index) {
+        if (journalDirectory != null) {
+            return new JournalBand<>(codec, journalDirectory.resolve(JOURNAL_BAND_PREFIX + index), journalSegmentSize, journalSyncInterval);
+        }
+        if (codec != null) {
+            return new OffHeapBand<>(codec, offHeapSlabSize);
+        }
+        return lockFree ? new LinkedBand<>() : new RingBand<>();
+    }
+
+    /**
+     * Opens the band journals found in the journal directory and counts their messages back into the queue.
+     */
+    private void recoverJournal() {
+        try {
+            Files.createDirectories(journalDirectory);
+            try (DirectoryStream<Path> directories = Files.newDirectoryStream(journalDirectory, JOURNAL_BAND_PREFIX + "*")) {
+                for (Path directory : directories) {
+                    final int index = JournalBand.parseNumber(directory.getFileName().toString().substring(JOURNAL_BAND_PREFIX.length()));
+                    if (index < 0 || !Files.isDirectory(directory)) {
+                        continue; //not a band's journal, such as a backup copy of one
+                    }
+                    if (index >= priorityCount) {
+                        throw new QueueInstantiationException("Journal %s holds a band outside the priority range", directory);
+                    }
+                    final JournalBand<M> band = (JournalBand<M>) newBand(index);
+                    BANDS.setRelease(queues, index, band);
+                    band.depth().add(band.size());
+                    count.addAndGet(band.size());
+                    if (bandCounts != null) {
+                        bandCounts.addAndGet(index, band.size());
+                    }
+                    if (!band.isEmpty()) {
+                        occupancy.set(index);
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            throw new QueueJournalException(e, "Could not read the journal directory %s", journalDirectory);
+        }
+    }
+
+    /**
+     * Moves the messages of a band that was released while a lock-free producer was publishing to it into the band that
+     * has replaced it, repeating if the replacement is released in turn.
+     *
+     * @param index band index
+     * @param released the band that is no longer in the band array
+     */
+    private void rehome(final int index, final Band<M> released) {
+        Band<M> from = released;
+        Band<M> to;
+        while ((to = bandForPut(index)) != from) {
+            M message;
+            while ((message = from.poll()) != null) {
+                if (message instanceof Envelope<?> envelope && !envelope.isPending()) {
+                    continue; //no longer counted anywhere
+                }
+                to.depth().increment();
+                to.offer(message);
+                from.depth().decrement();
+            }
+            if (BANDS.getVolatile(queues, index) == to) {
+                return;
+            }
+            from = to;
+        }
+    }
+
+    /**
+     * Wraps a message in an envelope recording when it was offered, so that its residence time can be measured.
+     *
+     * @param message the message, or an envelope that already records the time
+     * @param index band index
+     * @return The envelope
+     */
+    private M timestamped(final M message, final int index) {
+        if (message instanceof Envelope<?>) {
+            return message;
+        }
+        return stored(new Envelope<>(message, index, System.nanoTime()));
+    }
+
+    /**
+     * Drops an empty band from the band array. The locking engine must hold both locks, lock-free producers can still
+     * be publishing so anything that reaches the band after it has gone is moved to a replacement.
+     *
+     * @param index band index
+     * @param band the band to release
+     */
+    private void release(final int index, final Band<M> band) {
+        if (!lockFree) {
+            BANDS.setRelease(queues, index, null);
+        } else if (BANDS.compareAndSet(queues, index, band, null) && !band.isEmpty()) {
+            rehome(index, band);
+            occupancy.set(index);
+        }
+    }
+
+    /**
+     * Records that a consumer has emptied a band and, at most once per idle timeout, releases every band that has been
+     * empty for at least that long. Locking engine callers must hold the poll lock.
+     *
+     * @param band the band that has just been emptied
+     */
+    private void bandEmptied(final Band<M> band) {
+        if (bandIdleTimeout < 0L || journalDirectory != null) {
+            return;
+        }
+        final long now = System.nanoTime();
+        band.markEmptied(now);
+        final long sweepAt = nextIdleSweep.get();
+        if (now - sweepAt < 0L || !nextIdleSweep.compareAndSet(sweepAt, now + bandIdleTimeout)) {
+            return;
+        }
+        //the poll lock is already held and the put lock comes first in the lock order, so only try it
+        if (!lockFree && !putLock.tryLock()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < queues.length; i++) {
+                final Band<M> idle = band(i);
+                if (idle != null && idle.isEmpty() && now - idle.emptiedAt() >= bandIdleTimeout) {
+                    release(i, idle);
+                }
+            }
+        } finally {
+            if (!lockFree) {
+                putLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Reserves space for and adds a batch of messages to a band, claiming as many slots as are free at a time.
+     * Locking engine callers must hold the put lock.
+     *
+     * @param index band index
+     * @param messages messages to add
+     * @param deadline {@link System#nanoTime()} after which waiting for space is abandoned
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    private void publishAll(final int index, final Collection<M> messages, final long deadline) throws InterruptedException {
+        final Iterator<M> iterator = messages.iterator();
+        long remaining = messages.size();
+        while (remaining > 0L && iterator.hasNext()) {
+            long granted = reserveInLine(index, remaining);
+            if (granted == 0L) {
+                if (waitingPollers.get() > 0) {
+                    signalNotEmpty(); //pollers must see what has been added so far or they cannot make room for the rest
+                }
+                granted = lockFree ? reserveBlocking(index, remaining, deadline) : overflow(index, remaining, deadline);
+                if (granted == 0L) {
+                    discarded.add(new Discarded<>(iterator.next(), index, false));
+                    remaining--;
+                    continue;
+                }
+            }
+            remaining -= granted;
+            for (long i = 0L; i < granted; i++) {
+                publish(index, iterator.next());
             }
         }
-        return true;
     }
 
-    private static <M, P> Queue<M>[] createQueueArray(final Set<P> prioritySet) {
-        @SuppressWarnings("unchecked") final Queue<M>[] queueArray = new Queue[prioritySet.size()];
-        for (int i = 0; i < Priority.values().length; i++) {
-            queueArray[i] = new LinkedList<>();
+    /**
+     * Claims up to the wanted number of slots for a band, with a CAS on the band's count if it has a capacity and then
+     * on the total count.
+     *
+     * @param index band index
+     * @param wanted number of slots wanted
+     * @return The number of slots claimed, 0 if the queue or the band is full
+     */
+    private long tryReserve(final int index, final long wanted) {
+        final CapacityLimits limits = limited ? limits() : null;
+        final long limit = limits == null ? maxQueueDepth : limits.depthLimits()[index];
+        final long inBand = bandCounts == null ? wanted : reserveInBand(limits.capacities()[index], index, wanted);
+        if (inBand == 0L) {
+            return 0L;
         }
-        return queueArray;
+        long current;
+        long granted;
+        do {
+            current = count.get();
+            granted = Math.min(inBand, limit - current);
+            if (granted <= 0L) {
+                granted = 0L;
+                break;
+            }
+        } while (!count.compareAndSet(current, current + granted));
+        if (granted < inBand && bandCounts != null) {
+            //hand back what the band granted beyond the room on the queue
+            bandCounts.addAndGet(index, granted - inBand);
+            if (waitingProducers.get() > 0) {
+                freedWhileFull.set(true);
+            }
+        }
+        return granted;
+    }
+
+    /**
+     * Claims room like {@link #tryReserve(int, long)} unless async offers are waiting for room, so that an offer does not
+     * jump the line. Producers that find offers waiting take the slow path, which checks the line for their band under
+     * the put lock.
+     *
+     * @param index band index
+     * @param wanted number of slots wanted
+     * @return The number of slots claimed
+     */
+    private long reserveInLine(final int index, final long wanted) {
+        return pendingOfferCount == 0 ? tryReserve(index, wanted) : 0L;
     }
 
-    private Optional<M> pollMessage() {
-        for (int i = queues.length - 1; i >= 0; i--) {
-            final Queue<M> queue = queues[i];
-            if (!queue.isEmpty()) {
-                return Optional.of(queue.poll());
+    private long reserveInBand(final long capacity, final int index, final long wanted) {
+        long current;
+        long granted;
+        do {
+            current = bandCounts.get(index);
+            granted = Math.min(wanted, capacity - current);
+            if (granted <= 0L) {
+                return 0L;
             }
+        } while (!bandCounts.compareAndSet(index, current, current + granted));
+        return granted;
+    }
+
+    /**
+     * Slow path for lock-free producers, takes the put lock to apply the overflow policy.
+     *
+     * @param index band index
+     * @param wanted number of slots wanted
+     * @param deadline {@link System#nanoTime()} after which the wait is abandoned
+     * @return The number of slots claimed, 0 if the message is to be dropped
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private long reserveBlocking(final int index, final long wanted, final long deadline) throws InterruptedException {
+        lockPut(deadline);
+        try {
+            return overflow(index, wanted, deadline);
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Applies a band's overflow policy once an offer has found no room, waiting for room if the policy blocks or there is
+     * nothing to evict. Must be called holding the put lock.
+     *
+     * @param index band index
+     * @param wanted number of slots wanted
+     * @param deadline {@link System#nanoTime()} after which the wait is abandoned
+     * @return The number of slots claimed, 0 if the message is to be dropped
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private long overflow(final int index, final long wanted, final long deadline) throws InterruptedException {
+        final long granted = makeRoom(index, wanted);
+        return granted >= 0L ? granted : awaitReservation(index, wanted, deadline);
+    }
+
+    /**
+     * Applies a band's overflow policy short of waiting. Must be called holding the put lock.
+     *
+     * @param index band index
+     * @param wanted number of slots wanted
+     * @return The number of slots claimed, 0 if the message is to be dropped or -1 if the offer has to wait for room
+     * @throws QueuePutException if the policy is to fail
+     */
+    private long makeRoom(final int index, final long wanted) {
+        final OverflowPolicy policy = overflowPolicy(index);
+        if (policy == OverflowPolicy.BLOCK) {
+            return -1L;
+        }
+        final long granted = tryReserve(index, wanted); //room may have been freed since the caller looked
+        if (granted > 0L) {
+            return granted;
+        }
+        if (policy == OverflowPolicy.FAIL) {
+            throw new QueuePutException("Put failed, no room left for priority band %d", index);
+        }
+        if (policy == OverflowPolicy.DROP_NEWEST) {
+            return 0L;
+        }
+        return evict(index, policy) ? 1L : -1L;
+    }
+
+    /**
+     * Evicts messages until a slot can be claimed for a band, oldest first from the band itself or, for
+     * {@link OverflowPolicy#EVICT_LOWEST}, from the lowest occupied band no higher than it. Must be called holding the put
+     * lock, takes the poll lock as removing messages is a consumer operation. The evicted messages are reported once the
+     * offer has let go of the locks, see {@link #reportDiscarded()}.
+     *
+     * @param index band index
+     * @param policy the band's overflow policy
+     * @return true once a slot has been claimed, false if nothing the policy allows evicting is left
+     */
+    private boolean evict(final int index, final OverflowPolicy policy) {
+        pollLock.lock();
+        try {
+            while (true) {
+                final boolean bandFull = bandCounts != null && bandCounts.get(index) >= limits().capacities()[index];
+                final int victim = policy == OverflowPolicy.DROP_OLDEST || bandFull ? index : occupancy.lowest();
+                if (victim < 0 || victim > index) {
+                    return false;
+                }
+                if (evictHead(victim)) {
+                    if (tryReserve(index, 1L) > 0L) {
+                        return true;
+                    }
+                } else if (victim == index) {
+                    return false;
+                }
+            }
+        } finally {
+            pollLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest live message of a band for an evicting overflow policy. Must be called holding the poll lock.
+     *
+     * @param index band index
+     * @return true if a message was evicted, false if the band is empty
+     */
+    private boolean evictHead(final int index) {
+        final Band<M> band = band(index);
+        M stored;
+        while (band != null && (stored = band.poll()) != null) {
+            final M message = claim(stored);
+            if (message != null) {
+                leftBand(band, index);
+                count.decrementAndGet();
+                if (band.isEmpty()) {
+                    clearOccupancy(index);
+                }
+                discarded.add(new Discarded<>(message, index, false));
+                return true;
+            }
+        }
+        clearOccupancy(index);
+        return false;
+    }
+
+    /**
+     * Parks on the not full condition until at least one slot can be claimed. Must be called holding the put lock.
+     *
+     * @param index band index
+     * @param wanted number of slots wanted
+     * @param deadline {@link System#nanoTime()} after which the wait is abandoned
+     * @return The number of slots claimed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private long awaitReservation(final int index, final long wanted, final long deadline) throws InterruptedException {
+        long granted = offersWaitingFor(index) ? 0L : tryReserve(index, wanted);
+        if (granted == 0L) {
+            //counted before trying again so that a consumer freeing room in between sees the waiter
+            if (limited) {
+                waitingProducers.incrementAndGet();
+            }
+            try {
+                //async offers waiting for the band are admitted first by whoever frees the room, before waking producers
+                while ((granted = offersWaitingFor(index) ? 0L : tryReserve(index, wanted)) == 0L) {
+                    final long remainingNanos = deadline - System.nanoTime();
+                    if (remainingNanos <= 0L) {
+                        if (metrics != null) {
+                            metrics.putTimedOut();
+                        }
+                        throw new QueuePutException("Put failed after timeout, max queue depth exceeded");
+                    }
+                    notFull.awaitNanos(remainingNanos);
+                }
+            } finally {
+                if (limited) {
+                    waitingProducers.decrementAndGet();
+                }
+            }
+        }
+        if (count.get() < maxQueueDepth) {
+            notFull.signal(); //cascade to the next waiting producer
+        }
+        return granted;
+    }
+
+    private void lockPut(final long deadline) throws InterruptedException {
+        final long start = System.nanoTime();
+        if (!putLock.tryLock(deadline - start, TimeUnit.NANOSECONDS)) {
+            if (metrics != null) {
+                metrics.putTimedOut();
+            }
+            throw new QueuePutException("Could not gain the lock on offer within the timeout period");
+        }
+        if (metrics != null) {
+            metrics.putLockAcquired(System.nanoTime() - start);
+        }
+    }
+
+    private void lockPoll(final long waitTimeout) {
+        try {
+            final long start = metrics == null ? 0L : System.nanoTime();
+            if (!pollLock.tryLock(waitTimeout, TimeUnit.MILLISECONDS)) {
+                throw new QueuePollException("Could not gain the lock on poll within the timeout");
+            }
+            if (metrics != null) {
+                metrics.pollLockAcquired(System.nanoTime() - start);
+            }
+        } catch (final InterruptedException e) { //NOSONAR: java:S2142, Throwing wrapped exception
+            throw new QueuePollException("Could not gain the lock on poll", e);
+        }
+    }
+
+    /**
+     * Polls a single message, updating the count and waking a blocked producer if the queue was full.
+     *
+     * @param waitTimeout maximum time in milliseconds to wait for the poll lock
+     * @return The message or null if the queue is empty
+     */
+    private M takeMessage(final long waitTimeout) {
+        expireDue();
+        if (!lockFreePoll) {
+            lockPoll(waitTimeout);
+        }
+        return takeAndRelease(null);
+    }
+
+    /**
+     * Polls a single message from the bands a selective poll picks, waiting for up to the poll wait timeout for the poll
+     * lock.
+     *
+     * @param selection the bands and messages to take
+     * @return The message or null if none was selected
+     */
+    private M takeSelected(final Selection<M> selection) {
+        expireDue();
+        if (!lockFreePoll) {
+            lockPoll(pollWaitTimeout);
+        }
+        return takeAndRelease(selection);
+    }
+
+    /**
+     * Polls without waiting for the poll lock, for callers that have other queues to try instead.
+     *
+     * @return The message or null if the queue is empty or another consumer holds the poll lock
+     */
+    M tryPoll() {
+        expireDue();
+        if (!lockFreePoll && !pollLock.tryLock()) {
+            return null;
+        }
+        return takeAndRelease(null);
+    }
+
+    /**
+     * Polls waiting no longer than given for the poll lock, for callers that have other queues to try instead.
+     *
+     * @param lockWaitNanos maximum time in nanoseconds to wait for the poll lock, not waiting at all if not positive
+     * @return The message or null if the queue is empty or the poll lock did not come in time
+     */
+    M tryPoll(final long lockWaitNanos) {
+        if (lockWaitNanos <= 0L) {
+            return tryPoll();
+        }
+        expireDue();
+        try {
+            if (!lockFreePoll && !pollLock.tryLock(lockWaitNanos, TimeUnit.NANOSECONDS)) {
+                return null;
+            }
+        } catch (final InterruptedException e) { //NOSONAR: java:S2142, Throwing wrapped exception
+            throw new QueuePollException("Could not gain the lock on poll", e);
+        }
+        return takeAndRelease(null);
+    }
+
+    /**
+     * Finds the highest priority band holding messages, for callers comparing queues.
+     *
+     * @return The band index or -1 if the queue is empty
+     */
+    int highestOccupiedBand() {
+        return occupancy.highest();
+    }
+
+    /**
+     * Polls a single message once the locking engine holds the poll lock, which this releases.
+     *
+     * @param selection the bands and messages a selective poll may take, or null for the next message
+     * @return The message or null if the queue is empty
+     */
+    private M takeAndRelease(final Selection<M> selection) {
+        final M message;
+        final long previousCount;
+        if (lockFreePoll) {
+            message = selection == null ? pollNext() : pollSelected(selection);
+            previousCount = message != null ? count.getAndDecrement() : 0L;
+        } else {
+            try {
+                message = selection == null ? pollNext() : pollSelected(selection);
+                previousCount = message != null ? takeCount(1L) : 0L;
+            } finally {
+                pollLock.unlock();
+            }
+        }
+        if (freedRoomWanted(previousCount)) {
+            signalNotFull();
+        }
+        afterUnlocking();
+        return message;
+    }
+
+    /**
+     * Removes the head of the highest occupied band.
+     *
+     * @return The message or null if every band is empty
+     */
+    private M pollNext() {
+        int index;
+        while ((index = nextBand()) >= 0) {
+            final Band<M> queue = band(index);
+            final M stored = queue == null ? null : queue.poll();
+            final boolean emptied = queue == null || queue.isEmpty();
+            if (emptied) {
+                clearOccupancy(index);
+            }
+            final M message = stored == null ? null : claim(stored);
+            if (message != null) {
+                taken(queue, index, stored, emptied);
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the head of the highest band in a selection's range that holds a message the selection accepts, going
+     * down the bands in strict priority order.
+     *
+     * @param selection the bands and messages to take
+     * @return The message or null if no band in the range has an accepted head
+     */
+    private M pollSelected(final Selection<M> selection) {
+        int index = selection.highest() + 1 < priorityCount ? occupancy.highestBelow(selection.highest() + 1) : occupancy.highest();
+        while (index >= selection.lowest()) {
+            final Band<M> queue = band(index);
+            final M head = queue == null ? null : queue.peek();
+            if (head instanceof Envelope<?> envelope && (!envelope.isPending() || envelope.isDue(System.nanoTime()))) {
+                expire(envelope);
+                queue.removeHead(head);
+                continue;
+            }
+            M stored = null;
+            if (head != null) {
+                stored = selection.filter() == null ? queue.poll() : queue.pollIf(selection.filter());
+            }
+            final boolean emptied = queue == null || queue.isEmpty();
+            if (emptied) {
+                clearOccupancy(index);
+            }
+            if (stored == null) {
+                index = occupancy.highestBelow(index);
+                continue;
+            }
+            final M message = claim(stored);
+            if (message != null) {
+                taken(queue, index, stored, emptied);
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Updates the counts, metrics and scheduler once a consumer has taken a message off a band.
+     *
+     * @param queue the band
+     * @param index band index
+     * @param stored the message or envelope taken off the band
+     * @param emptied whether the band was left empty
+     */
+    private void taken(final Band<M> queue, final int index, final M stored, final boolean emptied) {
+        leftBand(queue, index);
+        if (metrics != null) {
+            metrics.dequeued(index, stored instanceof Envelope<?> envelope ? System.nanoTime() - envelope.enqueuedAt() : -1L);
+        }
+        if (scheduler != null) {
+            scheduler.taken(index, emptied);
+        }
+        if (emptied) {
+            bandEmptied(queue);
+        }
+    }
+
+    private M peekNext() {
+        int index;
+        while ((index = nextBand()) >= 0) {
+            final Band<M> queue = band(index);
+            final M stored = queue == null ? null : queue.peek();
+            if (stored == null) {
+                clearOccupancy(index);
+            } else if (!(stored instanceof Envelope<?> envelope)) {
+                return stored;
+            } else if (envelope.isPending() && !envelope.isDue(System.nanoTime())) {
+                return unwrap(envelope);
+            } else {
+                expire(envelope);
+                queue.removeHead(stored);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Turns what a consumer has taken off a band into the message to deliver, unwrapping envelopes that are still live.
+     *
+     * @param stored the message or envelope taken off the band
+     * @return The message or null if it had expired and must be skipped
+     */
+    private M claim(final M stored) {
+        if (!(stored instanceof Envelope<?> envelope)) {
+            return stored;
+        }
+        if (envelope.isDue(System.nanoTime())) {
+            expire(envelope); //the wheel has not reached it yet
+            return null;
+        }
+        if (!envelope.complete(Envelope.TAKEN)) {
+            return null;
+        }
+        if (envelope.isTimed()) {
+            timingWheel.cancel(envelope);
+        }
+        forget(envelope);
+        return unwrap(envelope);
+    }
+
+    /**
+     * Expires an envelope unless it has already been taken, giving up its place in the count. It is reported to the
+     * metrics and the dead letter handler once the locks are released, expiries are found holding the timing wheel's
+     * lock or the poll lock.
+     *
+     * @param envelope the envelope
+     */
+    private void expire(final Envelope<?> envelope) {
+        if (!envelope.complete(Envelope.EXPIRED)) {
+            return;
+        }
+        vacate(envelope);
+        forget(envelope);
+        discarded.add(new Discarded<>(unwrap(envelope), envelope.index(), true));
+    }
+
+    /**
+     * Checks that a band has room for a message moving into it from another band, claiming its place in the band's
+     * capacity if it has one. Must be called holding the put lock.
+     *
+     * @param index band index
+     * @return true if the message may move
+     */
+    private boolean reserveMove(final int index) {
+        final CapacityLimits limits = limited ? limits() : null;
+        //the message already counts towards the total, which the reserved capacity may not let a lower band reach
+        return !(limits != null && count.get() > limits.depthLimits()[index]
+                || bandCounts != null && reserveInBand(limits.capacities()[index], index, 1L) == 0L);
+    }
+
+    /**
+     * Replaces a pending envelope with one holding a message in another band, leaving the old one as a tombstone. The
+     * message keeps its place in the total count, its offer time and its deadline. Must be called holding the put lock,
+     * after {@link #reserveMove(int)}, whose reservation is handed back if the envelope is no longer pending.
+     *
+     * @param current the pending envelope
+     * @param index band index of the replacement
+     * @param message message of the replacement
+     * @return The replacement, or null if the envelope has already been taken or has expired
+     */
+    private Envelope<M> replace(final Envelope<M> current, final int index, final M message) {
+        if (!current.complete(Envelope.CANCELLED)) {
+            if (bandCounts != null) {
+                bandCounts.decrementAndGet(index);
+            }
+            return null;
+        }
+        leftBand(band(current.index()), current.index());
+        staleSinceTrim = true;
+        final Envelope<M> replacement = current.isTimed()
+                ? new Envelope<>(message, index, current.enqueuedAt(), current.deadline())
+                : new Envelope<>(message, index, current.enqueuedAt());
+        publish(index, stored(replacement), current.index());
+        if (current.isTimed()) {
+            timingWheel.cancel(current);
+            timingWheel.schedule(replacement);
+        }
+        return replacement;
+    }
+
+    /**
+     * Gives up the place in the count of an envelope that has been expired or cancelled, leaving it in its band as a
+     * tombstone for consumers or the next trim to remove.
+     *
+     * @param envelope the envelope, no longer pending
+     */
+    private void vacate(final Envelope<?> envelope) {
+        leftBand(band(envelope.index()), envelope.index());
+        if (freedRoomWanted(count.getAndDecrement())) {
+            freedWhileFull.set(true); //producers are woken once the caller has let go of any poll lock
+        }
+        staleSinceTrim = true;
+    }
+
+    /**
+     * Passes a message that will never be delivered to the dead letter handler, if there is one.
+     *
+     * @param message the message
+     */
+    private void deadLetter(final M message) {
+        if (deadLetterHandler != null) {
+            try {
+                deadLetterHandler.accept(message);
+            } catch (final RuntimeException e) { //NOSONAR: java:S1166, a failing handler must not stop the queue
+                //ignored, the message is gone either way
+            }
+        }
+    }
+
+    /**
+     * Reports the messages discarded or expired holding a lock, so that the metrics and the dead letter handler never run
+     * under a lock of the queue. Called once the locks are released, a message discarded by one thread may be reported
+     * by another that gets here first.
+     */
+    private void reportDiscarded() {
+        Discarded<M> next;
+        while ((next = discarded.poll()) != null) {
+            if (!next.expired()) {
+                dropped(next.message(), next.index());
+                continue;
+            }
+            if (metrics != null) {
+                metrics.expired(next.index());
+            }
+            deadLetter(next.message());
+        }
+    }
+
+    /**
+     * Records that a band's overflow policy has discarded a message, passing the message rather than its envelope to the
+     * dead letter handler. Must not be called holding a lock, see {@link #reportDiscarded()}.
+     *
+     * @param message the message
+     * @param index band index
+     */
+    private void dropped(final M message, final int index) {
+        if (metrics != null) {
+            metrics.dropped(index);
+        }
+        if (message instanceof Envelope<?> envelope) {
+            //never counted, so neither its expiry nor its handle may give up its place
+            envelope.complete(Envelope.CANCELLED);
+            final M unwrapped = unwrap(envelope);
+            deadLetter(unwrapped);
+        } else {
+            deadLetter(message);
+        }
+    }
+
+    /**
+     * Updates a band's counts as a message leaves it, the caller updates the total count.
+     *
+     * @param band the band, or null if it has been released since
+     * @param index band index
+     */
+    private void leftBand(final Band<M> band, final int index) {
+        if (band != null) {
+            band.depth().decrement();
+        }
+        if (bandCounts != null) {
+            bandCounts.decrementAndGet(index);
+        }
+    }
+
+    /**
+     * Tells whether a consumer that has just freed room must wake producers, either because the queue was full or
+     * because producers are waiting for room under per priority limits.
+     *
+     * @param previousCount the count before the room was freed, 0 if none was
+     * @return true if producers must be signalled
+     */
+    private boolean freedRoomWanted(final long previousCount) {
+        return previousCount == maxQueueDepth || previousCount > 0L && limited && waitingProducers.get() > 0;
+    }
+
+    /**
+     * Advances the timing wheel if any message has a time to live, then drops expired and cancelled envelopes from the
+     * heads of the bands. Must be called without holding either lock.
+     */
+    private void expireDue() {
+        if (!timingWheel.isEmpty()) {
+            timingWheel.advance(System.nanoTime(), expiry);
+        }
+        if (staleSinceTrim) {
+            staleSinceTrim = false;
+            trimStale();
+        }
+        afterUnlocking();
+    }
+
+    private void trimStale() {
+        //ring bands need the poll lock to remove anything, if consumers have it they will skip the envelopes themselves
+        if (!lockFree && !pollLock.tryLock()) {
+            return;
+        }
+        try {
+            for (int index = occupancy.highest(); index >= 0; index = occupancy.highestBelow(index)) {
+                final Band<M> band = band(index);
+                M head;
+                while (band != null && (head = band.peek()) instanceof Envelope<?> envelope && !envelope.isPending()) {
+                    band.removeHead(head);
+                }
+                if (band == null || band.isEmpty()) {
+                    clearOccupancy(index);
+                }
+            }
+        } finally {
+            if (!lockFree) {
+                pollLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Does what is left for once the locks are released: reports the messages discarded or expired while they were held
+     * and wakes producers if room was freed while the queue was full. Must be called without holding either lock.
+     */
+    private void afterUnlocking() {
+        reportDiscarded();
+        signalIfFreedWhileFull();
+    }
+
+    private void signalIfFreedWhileFull() {
+        if (freedWhileFull.get() && freedWhileFull.getAndSet(false)) {
+            signalNotFull();
+        }
+    }
+
+    /**
+     * Chooses the band to poll, the highest occupied one unless a {@link DequeueScheduler} is in use.
+     *
+     * @return The band index or -1 if every band is empty
+     */
+    private int nextBand() {
+        if (!scheduled) {
+            return occupancy.highest();
+        }
+        if (scheduler == null) {
+            scheduler = createScheduler(); //consumers hold the poll lock whenever a scheduler is in use
+        }
+        return scheduler.select(occupiedBands);
+    }
+
+    /**
+     * Creates the scheduler for the configured policy. Called on first use rather than from the constructor because the
+     * priority weights can only be mapped onto bands once the subclass is constructed.
+     *
+     * @return The scheduler
+     */
+    private DequeueScheduler createScheduler() {
+        if (schedulingPolicy instanceof DequeueScheduler custom) {
+            return custom;
+        }
+        final double[] weights = new double[priorityCount];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = i + 1.0;
+        }
+        for (Map.Entry<P, ? extends Number> weight : priorityWeights.entrySet()) {
+            weights[configuredIndex(weight.getKey())] = weight.getValue().doubleValue();
+        }
+        if (schedulingPolicy == SchedulingPolicy.WEIGHTED_ROUND_ROBIN) {
+            final long[] wholeWeights = new long[priorityCount];
+            for (int i = 0; i < wholeWeights.length; i++) {
+                wholeWeights[i] = Math.max(1L, (long) weights[i]);
+            }
+            return new WeightedRoundRobinScheduler(wholeWeights);
+        }
+        if (schedulingPolicy == SchedulingPolicy.DEFICIT_ROUND_ROBIN) {
+            return new DeficitRoundRobinScheduler(weights);
+        }
+        return new AgingScheduler(priorityCount, agingThreshold);
+    }
+
+    private OverflowPolicy overflowPolicy(final int index) {
+        return limited ? limits().policies()[index] : OverflowPolicy.BLOCK;
+    }
+
+    private CapacityLimits limits() {
+        CapacityLimits limits = capacityLimits;
+        if (limits == null) {
+            limits = createLimits();
+            capacityLimits = limits; //threads racing to create them create the same limits
+        }
+        return limits;
+    }
+
+    /**
+     * Maps the per priority capacities, reservations and overflow policies onto bands. Called by {@link #mapPriorities()}
+     * or on first use, for the same reason as {@link #createScheduler()}.
+     *
+     * @return The limits
+     */
+    private CapacityLimits createLimits() {
+        final long[] capacities = new long[priorityCount];
+        Arrays.fill(capacities, Long.MAX_VALUE);
+        priorityCapacities.forEach((priority, capacity) -> capacities[configuredIndex(priority)] = capacity.longValue());
+        final long[] reserved = new long[priorityCount];
+        reservedCapacity.forEach((priority, headroom) -> reserved[configuredIndex(priority)] = headroom.longValue());
+        //a band may fill the queue up to the capacity reserved for the bands above it
+        final long[] depthLimits = new long[priorityCount];
+        long reservedAbove = 0L;
+        for (int i = priorityCount - 1; i >= 0; i--) {
+            depthLimits[i] = maxQueueDepth - reservedAbove;
+            reservedAbove += reserved[i];
+        }
+        final OverflowPolicy[] policies = new OverflowPolicy[priorityCount];
+        if (overflowPolicy instanceof Map<?, ?>) {
+            Arrays.fill(policies, OverflowPolicy.BLOCK);
+            @SuppressWarnings("unchecked") final Map<P, OverflowPolicy> byPriority = (Map<P, OverflowPolicy>) overflowPolicy;
+            byPriority.forEach((priority, policy) -> policies[configuredIndex(priority)] = policy);
+        } else {
+            Arrays.fill(policies, (OverflowPolicy) overflowPolicy);
+        }
+        return new CapacityLimits(depthLimits, capacities, policies);
+    }
+
+    private int configuredIndex(final P priority) {
+        final int index = getPriorityIndex(priority);
+        if (index < 0 || index >= priorityCount) {
+            throw new QueueInstantiationException("%s is not in the priority set", priority);
+        }
+        return index;
+    }
+
+    private int drainMessages(final Collection<? super M> target, final int maxElements) {
+        int drained = 0;
+        M message;
+        while (drained < maxElements && (message = pollNext()) != null) {
+            target.add(message);
+            drained++;
+        }
+        return drained;
+    }
+
+    private void clearOccupancy(final int index) {
+        occupancy.clear(index);
+        final Band<M> band = band(index);
+        if (band != null && !band.isEmpty()) {
+            occupancy.set(index); //a producer refilled the band after it was seen empty
+        }
+    }
+
+    /**
+     * Waits, holding the poll lock, until a message is available or the timeout expires.
+     *
+     * @param waitNanos maximum time in nanoseconds to wait for the lock and a message combined, {@link Long#MAX_VALUE}
+     *                  waits for as long as it takes
+     * @return The polled message or null if none arrived in time
+     */
+    private M awaitMessage(final long waitNanos) {
+        expireDue();
+        M message = null;
+        long previousCount = 0L;
+        try {
+            long remainingNanos = waitNanos;
+            final long deadline = System.nanoTime() + remainingNanos; //wraps for an endless wait, the difference still holds
+            if (!pollLock.tryLock(remainingNanos, TimeUnit.NANOSECONDS)) {
+                throw new QueuePollException("Could not gain the lock on poll within the timeout");
+            }
+            if (metrics != null) {
+                metrics.pollLockAcquired(System.nanoTime() - (deadline - waitNanos));
+            }
+            waitingPollers.incrementAndGet();
+            try {
+                remainingNanos = deadline - System.nanoTime();
+                //producers reserve their count before the message reaches a band, so poll rather than trust the count
+                while ((message = pollNext()) == null && remainingNanos > 0L) {
+                    remainingNanos = notEmpty.awaitNanos(remainingNanos);
+                }
+                if (message != null) {
+                    previousCount = takeCount(1L);
+                }
+            } finally {
+                waitingPollers.decrementAndGet();
+                pollLock.unlock();
+            }
+        } catch (final InterruptedException e) { //NOSONAR: java:S2142, Throwing wrapped exception
+            throw new QueuePollException("Interrupted while waiting for a message", e);
+        }
+        if (freedRoomWanted(previousCount)) {
+            signalNotFull();
+        }
+        afterUnlocking();
+        return message;
+    }
+
+    /**
+     * Takes a message for each async poller in line, for as long as there are messages. Must be called holding the poll
+     * lock, the futures are completed by running the completions once it is released.
+     *
+     * @param completions collects the completions of the futures that were served
+     * @return The count before the messages were taken
+     */
+    private long servePendingPolls(final List<Runnable> completions) {
+        int served = 0;
+        M message;
+        while (!pendingPolls.isEmpty() && (message = pollNext()) != null) {
+            final PendingFuture<M> future = pendingPolls.poll();
+            waitingPollers.decrementAndGet();
+            future.claim();
+            final M taken = message;
+            completions.add(() -> future.deliver(taken));
+            served++;
+        }
+        return served > 0 ? takeCount(served) : 0L;
+    }
+
+    /**
+     * Adds the messages of async producers in line for as long as there is space. Must be called holding the put lock,
+     * the futures are completed by running the completions once it is released.
+     *
+     * @param completions collects the completions of the futures that were served
+     */
+    private void admitPendingOffers(final List<Runnable> completions) {
+        final Iterator<PendingOffer<M>> iterator = pendingOffers.iterator();
+        while (iterator.hasNext()) {
+            final PendingOffer<M> pending = iterator.next();
+            final boolean coalesced = keyIndex != null && coalesce(keyOf(pending.message()), pending.message(), pending.index());
+            if (!coalesced && tryReserve(pending.index(), 1L) == 0L) {
+                if (!limited) {
+                    return; //the queue is full for every band
+                }
+                continue; //other bands may still have room
+            }
+            iterator.remove();
+            pendingOfferCount = pendingOffers.size();
+            if (limited) {
+                waitingProducers.decrementAndGet();
+            }
+            final PendingFuture<Void> future = pending.future();
+            future.claim();
+            try {
+                if (!coalesced) {
+                    publish(pending.index(), keyIndex == null ? pending.message() : register(pending.message(), pending.index()));
+                }
+                completions.add(() -> future.deliver(null));
+            } catch (final RuntimeException e) {
+                completions.add(() -> future.fail(e));
+            }
+        }
+    }
+
+    private void withdrawPoll(final PendingFuture<M> future) {
+        if (pendingPolls.remove(future)) {
+            waitingPollers.decrementAndGet();
+        }
+    }
+
+    private void withdrawOffer(final PendingFuture<Void> future) {
+        final boolean withdrawn = pendingOffers.removeIf(pending -> pending.future() == future);
+        pendingOfferCount = pendingOffers.size();
+        if (withdrawn && limited) {
+            waitingProducers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Tells whether async offers are waiting for room in a band, which later offers to the band must not overtake.
+     * Without per priority limits the queue is full for every band alike. Must be called holding the put lock.
+     *
+     * @param index band index
+     * @return true if an async offer to the band is waiting
+     */
+    private boolean offersWaitingFor(final int index) {
+        if (pendingOffers.isEmpty()) {
+            return false;
+        }
+        return !limited || pendingOffers.stream().anyMatch(pending -> pending.index() == index);
+    }
+
+    /**
+     * Decrements the message count after a successful poll, waking the next consumer if messages remain.
+     * Must be called holding the poll lock.
+     *
+     * @param taken number of messages taken
+     * @return The count before the decrement
+     */
+    private long takeCount(final long taken) {
+        final long previousCount = count.getAndAdd(-taken);
+        if (previousCount > taken) {
+            notEmpty.signal();
+        }
+        return previousCount;
+    }
+
+    private void signalNotEmpty() {
+        final List<Runnable> completions = new ArrayList<>(0);
+        final long previousCount;
+        pollLock.lock();
+        try {
+            notEmpty.signal();
+            previousCount = servePendingPolls(completions);
+        } finally {
+            pollLock.unlock();
+        }
+        completions.forEach(Runnable::run);
+        if (freedRoomWanted(previousCount)) {
+            signalNotFull();
+        }
+    }
+
+    private void signalNotFull() {
+        final List<Runnable> completions = new ArrayList<>(0);
+        putLock.lock();
+        try {
+            if (limited) {
+                notFull.signalAll(); //waiting producers may be after different bands
+            } else {
+                notFull.signal();
+            }
+            admitPendingOffers(completions);
+        } finally {
+            putLock.unlock();
+        }
+        completions.forEach(Runnable::run);
+        if (!completions.isEmpty() && waitingPollers.get() > 0) {
+            signalNotEmpty();
+        }
+    }
+
+    /**
+     * A message waiting for space on behalf of an async producer.
+     *
+     * @param message the message
+     * @param index band index
+     * @param future completed once the message is added
+     * @param <M> The type of message
+     */
+    private record PendingOffer<M>(M message, int index, PendingFuture<Void> future) {
+    }
+
+    /**
+     * A message discarded by an overflow policy or expired holding a lock, waiting to be reported.
+     *
+     * @param message the message, or its envelope if an overflow policy discarded it with a time to live
+     * @param index band index
+     * @param expired whether the message expired rather than being discarded
+     * @param <M> The type of message
+     */
+    private record Discarded<M>(M message, int index, boolean expired) {
+    }
+
+    /**
+     * Per band limits, built when the queue is created, see {@link #mapPriorities()}.
+     *
+     * @param depthLimits the total count each band may fill the queue to, the maximum depth less the capacity reserved
+     *                    for the bands above it
+     * @param capacities the most messages each band may hold, {@link Long#MAX_VALUE} for no limit
+     * @param policies what each band does once it has no room
+     */
+    private record CapacityLimits(long[] depthLimits, long[] capacities, OverflowPolicy[] policies) {
+    }
+
+    /**
+     * What a selective poll may take: the heads of the bands from lowest to highest, inclusive, that the filter accepts.
+     *
+     * @param lowest lowest band index
+     * @param highest highest band index
+     * @param filter test for a stored message or envelope, or null to accept any
+     * @param <M> The type of message
+     */
+    private record Selection<M>(int lowest, int highest, Predicate<M> filter) {
+    }
+
+    /**
+     * Handle on an envelope offered by {@link #offerWithHandle(Object, Object)}. A move replaces the envelope, so both
+     * operations hold the put lock to see the current one, which also keeps a move's publish to a ring band to the one
+     * producer it allows.
+     */
+    private final class Handle implements MessageHandle<P> {
+        private volatile Envelope<M> envelope;
+
+        private Handle(final Envelope<M> envelope) {
+            this.envelope = envelope;
+        }
+
+        @Override
+        public boolean cancel() {
+            final Envelope<M> cancelled;
+            putLock.lock();
+            try {
+                cancelled = envelope;
+                if (!cancelled.complete(Envelope.CANCELLED)) {
+                    return false;
+                }
+            } finally {
+                putLock.unlock();
+            }
+            vacate(cancelled);
+            afterUnlocking();
+            return true;
+        }
+
+        @Override
+        public boolean changePriority(final P priority) {
+            final int index = checkedPriorityIndex(priority);
+            expireDue();
+            putLock.lock();
+            try {
+                final Envelope<M> current = envelope;
+                if (!current.isPending() || current.index() == index) {
+                    return current.isPending();
+                }
+                if (!reserveMove(index)) {
+                    throw new QueuePutException("Move failed, no room left for priority band %d", index);
+                }
+                final Envelope<M> moved = replace(current, index, current.message());
+                if (moved == null) {
+                    return false;
+                }
+                envelope = moved;
+            } finally {
+                putLock.unlock();
+            }
+            if (waitingPollers.get() > 0) {
+                signalNotEmpty();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isPending() {
+            return envelope.isPending();
+        }
+    }
+
+    /**
+     * The occupancy index as seen by a {@link DequeueScheduler}.
+     */
+    private final class OccupiedBands implements DequeueScheduler.Bands {
+
+        @Override
+        public int count() {
+            return priorityCount;
+        }
+
+        @Override
+        public int highest() {
+            return occupancy.highest();
+        }
+
+        @Override
+        public int highestBelow(final int index) {
+            return occupancy.highestBelow(index);
         }
-        return Optional.empty();
     }
 }
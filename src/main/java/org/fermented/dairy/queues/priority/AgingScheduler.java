@@ -0,0 +1,106 @@
+package org.fermented.dairy.queues.priority;
+
+/**
+ * {@link SchedulingPolicy#AGING} scheduler.
+ *
+ * <p>The wait of a band is measured from when it was last polled, or from when the scheduler first saw it occupied if it
+ * had been emptied, which bounds how long its oldest message can have waited for service.
+ *
+ * <p>Waiting bands are kept in a list ordered by how long they have waited, a poll moves its band to the young end, so
+ * the longest waiting band is always at the old end and a selection does not have to look at every band. Bands that
+ * become occupied are found by a walk over the occupied bands, done at most once every eighth of the threshold, so a
+ * band's wait can be understated by up to that much.
+ */
+final class AgingScheduler implements DequeueScheduler {
+    private static final int DISCOVERY_FRACTION = 8;
+
+    private final long threshold;
+    private final long discoveryInterval;
+    private final long[] waitingSince;
+    //the waiting list, linked through band indexes, -1 ends it
+    private final int[] older;
+    private final int[] younger;
+    private int oldest = -1;
+    private int youngest = -1;
+    private long lastDiscovery;
+    private boolean discovered;
+
+    AgingScheduler(final int bandCount, final long threshold) {
+        this.threshold = threshold;
+        this.discoveryInterval = threshold / DISCOVERY_FRACTION;
+        this.waitingSince = new long[bandCount];
+        this.older = new int[bandCount];
+        this.younger = new int[bandCount];
+    }
+
+    @Override
+    public int select(final Bands bands) {
+        final int highest = bands.highest();
+        if (highest < 0) {
+            return -1;
+        }
+        final long now = System.nanoTime();
+        if (!discovered || now - lastDiscovery >= discoveryInterval) {
+            discover(bands, now);
+        }
+        //bands emptied without a poll through the scheduler, by a drain or a purge, are dropped once they reach the old end
+        while (oldest >= 0 && !WeightedRoundRobinScheduler.isOccupied(bands, oldest)) {
+            forget(oldest);
+        }
+        return oldest >= 0 && now - waitingSince[oldest] > threshold ? oldest : highest;
+    }
+
+    @Override
+    public void taken(final int index, final boolean emptied) {
+        if (waitingSince[index] != 0L) {
+            unlink(index);
+        }
+        if (emptied) {
+            waitingSince[index] = 0L;
+        } else {
+            append(index, System.nanoTime());
+        }
+    }
+
+    private void discover(final Bands bands, final long now) {
+        for (int index = bands.highest(); index >= 0; index = bands.highestBelow(index)) {
+            if (waitingSince[index] == 0L) {
+                append(index, now);
+            }
+        }
+        lastDiscovery = now;
+        discovered = true;
+    }
+
+    private void forget(final int index) {
+        unlink(index);
+        waitingSince[index] = 0L;
+    }
+
+    private void append(final int index, final long since) {
+        waitingSince[index] = since == 0L ? 1L : since; //zero marks a band that is not waiting
+        older[index] = youngest;
+        younger[index] = -1;
+        if (youngest >= 0) {
+            younger[youngest] = index;
+        } else {
+            oldest = index;
+        }
+        youngest = index;
+    }
+
+    private void unlink(final int index) {
+        final int before = older[index];
+        final int after = younger[index];
+        if (before >= 0) {
+            younger[before] = after;
+        } else {
+            oldest = after;
+        }
+        if (after >= 0) {
+            older[after] = before;
+        } else {
+            youngest = before;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.fermented.dairy.queues.priority;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * FIFO storage for the messages of a single priority.
+ *
+ * @param <E> The type of element held in the band
+ */
+interface Band<E> {
+
+    boolean offer(E element);
+
+    E poll();
+
+    E peek();
+
+    boolean isEmpty();
+
+    /**
+     * Number of messages counted into the band, incremented before an offer and decremented after a poll.
+     *
+     * @return The band's counter
+     */
+    LongAdder depth();
+
+    /**
+     * Records when a consumer last took the band's final message, used to decide when an idle band can be released.
+     *
+     * @param nanoTime {@link System#nanoTime()} at which the band was emptied
+     */
+    void markEmptied(long nanoTime);
+
+    long emptiedAt();
+
+    /**
+     * Removes the head of the band if it is still the expected element, used to drop expired {@link Envelope}s.
+     *
+     * @param expected the element previously seen at the head
+     * @return Whether the element was removed
+     */
+    default boolean removeHead(final E expected) {
+        //single consumer bands, the caller is the only one who could have moved the head
+        return peek() == expected && poll() != null;
+    }
+
+    /**
+     * Removes the head of the band if it matches a filter, used by selective polls.
+     *
+     * @param filter test for the head
+     * @return The head or null if the band is empty or the head does not match
+     */
+    default E pollIf(final Predicate<? super E> filter) {
+        //single consumer bands, the caller is the only one who could have moved the head
+        final E head = peek();
+        return head != null && filter.test(head) ? poll() : null;
+    }
+
+    /**
+     * Releases any resources held outside the heap, the band must not be used afterwards.
+     */
+    default void close() {
+        //nothing to release for heap and direct memory bands
+    }
+}
@@ -0,0 +1,58 @@
+package org.fermented.dairy.queues.priority;
+
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/**
+ * Priority queue with a band per priority, which lets messages be tracked by handle and consumers pick the bands they
+ * poll, see {@link AbstractArrayPriorityQueue}.
+ *
+ * <p>The selective polls do not wait for a message to arrive, but they do wait up to the
+ * {@link #MAX_POLL_WAIT_TIME_PROPERTY poll wait timeout} for the poll lock when another consumer holds it.
+ *
+ * @param <M> Message type
+ * @param <P> Priority type
+ */
+public interface BandedPriorityQueue<M, P> extends PriorityQueue<M, P> {
+
+    /**
+     * Puts a message on the queue and returns a handle for cancelling it or changing its priority while it waits.
+     *
+     * @param message message to offer
+     * @param priority priority of the message
+     * @return The message's handle
+     * @see AbstractArrayPriorityQueue#offerWithHandle(Object, Object)
+     */
+    MessageHandle<P> offerWithHandle(M message, P priority);
+
+    /**
+     * Polls the highest priority message at or above a floor, without touching the bands below it.
+     *
+     * @param floor lowest priority to take
+     * @return The message or empty if no band at or above the floor holds one
+     * @throws org.fermented.dairy.queues.priority.exceptions.QueuePollException if the priority is not accepted or the
+     *          poll lock does not come within the poll wait timeout
+     */
+    Optional<M> pollAtLeast(P floor);
+
+    /**
+     * Polls the highest priority message within a range of priorities, without touching the bands outside it.
+     *
+     * @param lowest lowest priority to take
+     * @param highest highest priority to take
+     * @return The message or empty if no band in the range holds one
+     * @throws org.fermented.dairy.queues.priority.exceptions.QueuePollException if either priority is not accepted, the
+     *          range is empty or the poll lock does not come within the poll wait timeout
+     */
+    Optional<M> pollBetween(P lowest, P highest);
+
+    /**
+     * Polls the highest priority message that a filter accepts, see {@link AbstractArrayPriorityQueue#pollIf(Predicate)}.
+     *
+     * @param filter test for the messages at the heads of the bands
+     * @return The message or empty if no band's head is accepted
+     * @throws org.fermented.dairy.queues.priority.exceptions.QueuePollException if the poll lock does not come within the
+     *          poll wait timeout
+     */
+    Optional<M> pollIf(Predicate<? super M> filter);
+}
@@ -0,0 +1,619 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.fermented.dairy.queues.priority.AbstractArrayPriorityQueue.DEFAULT_MAX_QUEUE_DEPTH;
+import static org.fermented.dairy.queues.priority.AbstractArrayPriorityQueue.DEFAULT_POLL_WAIT_TIMEOUT_MS;
+import static org.fermented.dairy.queues.priority.AbstractArrayPriorityQueue.DEFAULT_PUT_BLOCK_TIMEOUT_MS;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import org.fermented.dairy.queues.priority.exceptions.QueueInstantiationException;
+import org.fermented.dairy.queues.priority.exceptions.QueuePollException;
+import org.fermented.dairy.queues.priority.exceptions.QueuePutException;
+
+/**
+ * Priority queue for priorities drawn from the whole range of a long, such as deadlines, costs or scores, where a band per
+ * priority is out of the question.
+ *
+ * <p>Messages are kept in a concurrent skip list ordered by priority and then by a sequence number taken as they are
+ * offered, so messages of equal priority are polled in the order they were offered. Offers and polls are O(log n) in the
+ * number of messages, however many distinct priorities they carry, and neither takes a lock: a poll removes the first
+ * entry of the skip list with a CAS. The highest priority is polled first, as with the banded queues, unless
+ * {@link #LOWEST_FIRST_PROPERTY} is set, which suits deadlines and costs.
+ *
+ * <p>The {@link #MAX_QUEUE_DEPTH_PROPERTY maximum depth}, put wait timeout, poll wait timeout, time to live and
+ * {@link #DEAD_LETTER_HANDLER_PROPERTY dead letter handler} work as they do for the banded queues, the other properties
+ * of {@link PriorityQueue} do not apply. Messages offered without a priority get priority 0. An expired message is
+ * removed from the skip list straight away rather than waiting for a consumer to skip it.
+ *
+ * @param <M> The type of objects placed on the queue.
+ */
+public final class ContinuousPriorityQueue<M> implements PriorityQueue<M, Long> {
+    public static final String LOWEST_FIRST_PROPERTY = "lowestFirst";
+
+    static final long DEFAULT_PRIORITY = 0L;
+
+    private final ConcurrentSkipListSet<Node<M>> nodes;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong count = new AtomicLong();
+    private final long maxQueueDepth;
+    private final long putBlockTimeout;
+    private final long pollWaitTimeout;
+    private final Consumer<? super M> deadLetterHandler;
+    private final TimingWheel timingWheel = new TimingWheel();
+    private final Consumer<Envelope<?>> expiry = this::expire;
+    private final ConcurrentLinkedQueue<M> expired = new ConcurrentLinkedQueue<>();
+
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notFull = putLock.newCondition();
+    //blocked and async producers, the async ones are guarded by the put lock
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+    private final ArrayDeque<PendingOffer<M>> pendingOffers = new ArrayDeque<>();
+    //size of pendingOffers, for producers deciding without the put lock whether they would jump the line
+    private volatile int pendingOfferCount;
+    //set by consumers that free room producers are waiting for, who are signalled once the consumer is outside any lock
+    private final AtomicBoolean freedWhileFull = new AtomicBoolean();
+
+    private final ReentrantLock pollLock = new ReentrantLock();
+    private final Condition notEmpty = pollLock.newCondition();
+    //blocked and async consumers, the async ones are guarded by the poll lock
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+    private final ArrayDeque<PendingFuture<M>> pendingPolls = new ArrayDeque<>();
+
+    /**
+     * Creates a queue.
+     *
+     * @param properties see {@link PriorityQueue} and {@link #LOWEST_FIRST_PROPERTY}
+     */
+    public ContinuousPriorityQueue(final Map<String, Object> properties) {
+        this.maxQueueDepth = (long) properties.getOrDefault(MAX_QUEUE_DEPTH_PROPERTY, DEFAULT_MAX_QUEUE_DEPTH);
+        this.putBlockTimeout = (long) properties.getOrDefault(MAX_PUT_WAIT_TIME_PROPERTY, DEFAULT_PUT_BLOCK_TIMEOUT_MS);
+        this.pollWaitTimeout = (long) properties.getOrDefault(MAX_POLL_WAIT_TIME_PROPERTY, DEFAULT_POLL_WAIT_TIMEOUT_MS);
+        if (maxQueueDepth <= 0L) {
+            throw new QueueInstantiationException("%s must be greater than 0", MAX_QUEUE_DEPTH_PROPERTY);
+        }
+        final Object handler = properties.get(DEAD_LETTER_HANDLER_PROPERTY);
+        if (handler != null && !(handler instanceof Consumer<?>)) {
+            throw new QueueInstantiationException("%s must be a Consumer of the message type", DEAD_LETTER_HANDLER_PROPERTY);
+        }
+        @SuppressWarnings("unchecked") final Consumer<? super M> typedHandler = (Consumer<? super M>) handler;
+        this.deadLetterHandler = typedHandler;
+        final Comparator<Node<M>> byPriority = (boolean) properties.getOrDefault(LOWEST_FIRST_PROPERTY, false)
+                ? Comparator.comparingLong(node -> node.priority)
+                : (first, second) -> Long.compare(second.priority, first.priority);
+        this.nodes = new ConcurrentSkipListSet<>(byPriority.thenComparingLong(node -> node.sequence));
+    }
+
+    @Override
+    public void offer(final M message, final Long priority) {
+        add(message, checkedPriority(priority), null);
+    }
+
+    @Override
+    public void offer(final M message) {
+        add(message, DEFAULT_PRIORITY, null);
+    }
+
+    @Override
+    public void offer(final M message, final Long priority, final Duration ttl) {
+        final long checked = checkedPriority(priority);
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new QueuePutException("The time to live must be positive, was %s", ttl);
+        }
+        add(message, checked, ttl);
+    }
+
+    @Override
+    public CompletableFuture<Void> offerAsync(final M message, final Long priority) {
+        final long checked = checkedPriority(priority);
+        expireDue();
+        putLock.lock();
+        try {
+            //stay behind messages already waiting for space
+            if (!pendingOffers.isEmpty() || !tryReserve()) {
+                final PendingFuture<Void> future = new PendingFuture<>(putLock, this::withdrawOffer);
+                pendingOffers.add(new PendingOffer<>(message, checked, future));
+                pendingOfferCount = pendingOffers.size();
+                waitingProducers.incrementAndGet();
+                return future;
+            }
+        } finally {
+            putLock.unlock();
+        }
+        insert(message, checked, null);
+        wakeConsumers();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> offerAsync(final M message) {
+        return offerAsync(message, DEFAULT_PRIORITY);
+    }
+
+    @Override
+    public void offerAll(final Collection<M> messages, final Long priority) {
+        final long checked = checkedPriority(priority);
+        expireDue();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(putBlockTimeout);
+        for (M message : messages) {
+            reserve(deadline);
+            insert(message, checked, null);
+        }
+        wakeConsumers();
+    }
+
+    @Override
+    public void offerAll(final Map<Long, ? extends Collection<M>> messages) {
+        messages.keySet().forEach(ContinuousPriorityQueue::checkedPriority);
+        expireDue();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(putBlockTimeout);
+        for (Map.Entry<Long, ? extends Collection<M>> entry : messages.entrySet()) {
+            for (M message : entry.getValue()) {
+                reserve(deadline);
+                insert(message, entry.getKey(), null);
+            }
+        }
+        wakeConsumers();
+    }
+
+    @Override
+    public Optional<M> poll() {
+        return Optional.ofNullable(pollOrNull());
+    }
+
+    @Override
+    public Optional<M> poll(final boolean wait) {
+        return wait ? poll(pollWaitTimeout) : poll();
+    }
+
+    @Override
+    public Optional<M> poll(final long waitTimeout) {
+        return Optional.ofNullable(awaitMessage(TimeUnit.MILLISECONDS.toNanos(waitTimeout)));
+    }
+
+    @Override
+    public M pollOrNull() {
+        expireDue();
+        final M message = takeNext();
+        afterUnlocking();
+        return message;
+    }
+
+    @Override
+    public M take() {
+        return awaitMessage(Long.MAX_VALUE);
+    }
+
+    @Override
+    public CompletableFuture<M> pollAsync() {
+        final M message = pollOrNull();
+        if (message != null) {
+            return CompletableFuture.completedFuture(message);
+        }
+        final PendingFuture<M> future = new PendingFuture<>(pollLock, this::withdrawPoll);
+        final List<Runnable> completions = new ArrayList<>(1);
+        pollLock.lock();
+        try {
+            pendingPolls.add(future);
+            waitingConsumers.incrementAndGet();
+            servePendingPolls(completions);
+        } finally {
+            pollLock.unlock();
+        }
+        completions.forEach(Runnable::run);
+        afterUnlocking();
+        return future;
+    }
+
+    @Override
+    public int drainTo(final Collection<? super M> target, final int maxElements) {
+        expireDue();
+        int drained = 0;
+        M message;
+        while (drained < maxElements && (message = takeNext()) != null) {
+            target.add(message);
+            drained++;
+        }
+        afterUnlocking();
+        return drained;
+    }
+
+    /**
+     * Drains messages without waiting, polls never wait for a lock on this queue.
+     *
+     * @param target collection to add the messages to
+     * @param maxElements maximum number of messages to drain
+     * @param waitTimeout ignored
+     * @return The number of messages drained
+     */
+    @Override
+    public int drainTo(final Collection<? super M> target, final int maxElements, final long waitTimeout) {
+        return drainTo(target, maxElements);
+    }
+
+    @Override
+    public Optional<M> peek() {
+        expireDue();
+        for (Node<M> node : nodes) {
+            if (node.envelope == null || node.envelope.isPending()) {
+                return Optional.of(node.message);
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public void purge() {
+        while (takeNext() != null) {
+            //discarded
+        }
+        afterUnlocking();
+    }
+
+    @Override
+    public long depth() {
+        expireDue();
+        return count.get();
+    }
+
+    /**
+     * Counts the messages of one priority, walking them in the skip list, so it is O(log n) plus the number counted.
+     *
+     * @param priority the priority
+     * @return The number of messages of the priority
+     */
+    @Override
+    public long depth(final Long priority) {
+        final long checked = checkedPriority(priority);
+        expireDue();
+        long depth = 0L;
+        for (Node<M> node : nodes.subSet(new Node<>(checked, Long.MIN_VALUE, null), true, new Node<>(checked, Long.MAX_VALUE, null), true)) {
+            if (node.envelope == null || node.envelope.isPending()) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return depth() == 0L;
+    }
+
+    private static long checkedPriority(final Long priority) {
+        if (priority == null) {
+            throw new QueuePutException("The priority must not be null");
+        }
+        return priority;
+    }
+
+    /**
+     * Reserves room for a message and puts it on the queue, waiting for room for up to the put wait timeout.
+     *
+     * @param message message to offer
+     * @param priority priority of the message
+     * @param ttl time to live or null if the message does not expire
+     */
+    private void add(final M message, final long priority, final Duration ttl) {
+        expireDue();
+        reserve(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(putBlockTimeout));
+        insert(message, priority, ttl);
+        wakeConsumers();
+    }
+
+    /**
+     * Adds a message that room has been reserved for to the skip list.
+     *
+     * @param message message to offer
+     * @param priority priority of the message
+     * @param ttl time to live or null if the message does not expire
+     */
+    private void insert(final M message, final long priority, final Duration ttl) {
+        final Node<M> node = new Node<>(priority, sequence.getAndIncrement(), message);
+        if (ttl != null) {
+            final long now = System.nanoTime();
+            node.envelope = new Envelope<>(node, 0, now, now + ttl.toNanos());
+            nodes.add(node);
+            timingWheel.schedule(node.envelope);
+        } else {
+            nodes.add(node);
+        }
+    }
+
+    private boolean tryReserve() {
+        long current;
+        do {
+            current = count.get();
+            if (current >= maxQueueDepth) {
+                return false;
+            }
+        } while (!count.compareAndSet(current, current + 1L));
+        return true;
+    }
+
+    /**
+     * Reserves room for one message, waiting on the put lock while the queue is full or async offers are waiting for
+     * room, which are added first.
+     *
+     * @param deadline {@link System#nanoTime()} after which to give up
+     */
+    private void reserve(final long deadline) {
+        if (pendingOfferCount == 0 && tryReserve()) {
+            return;
+        }
+        try {
+            putLock.lockInterruptibly();
+            waitingProducers.incrementAndGet();
+            try {
+                //consumers check for waiting producers after freeing room, so try again before every wait
+                while (!pendingOffers.isEmpty() || !tryReserve()) {
+                    final long remainingNanos = deadline - System.nanoTime();
+                    if (remainingNanos <= 0L) {
+                        throw new QueuePutException("Put failed after timeout, max queue depth exceeded");
+                    }
+                    notFull.awaitNanos(remainingNanos);
+                }
+            } finally {
+                waitingProducers.decrementAndGet();
+                putLock.unlock();
+            }
+        } catch (final InterruptedException e) { //NOSONAR: java:S2142, Throwing wrapped exception
+            throw new QueuePutException("Could not gain the lock on offer", e);
+        }
+    }
+
+    /**
+     * Removes the first live message from the skip list and gives up its room. Expired messages met on the way are
+     * skipped.
+     *
+     * @return The message or null if the queue is empty
+     */
+    private M takeNext() {
+        Node<M> node;
+        while ((node = nodes.pollFirst()) != null) {
+            if (node.envelope == null || claim(node.envelope)) {
+                released();
+                return node.message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decides a timed message's outcome for the consumer that removed it.
+     *
+     * @param envelope the message's envelope
+     * @return true if the consumer has taken the message, false if it has expired
+     */
+    private boolean claim(final Envelope<Node<M>> envelope) {
+        if (envelope.isDue(System.nanoTime())) {
+            expire(envelope); //the wheel has not reached it yet
+            return false;
+        }
+        if (!envelope.complete(Envelope.TAKEN)) {
+            return false;
+        }
+        timingWheel.cancel(envelope);
+        return true;
+    }
+
+    /**
+     * Expires a timed message unless it has already been taken, removing it from the skip list and giving up its room. It
+     * is passed to the dead letter handler once the locks are released, expiries are found holding the timing wheel's lock
+     * or the poll lock.
+     *
+     * @param envelope the message's envelope
+     */
+    private void expire(final Envelope<?> envelope) {
+        if (!envelope.complete(Envelope.EXPIRED)) {
+            return;
+        }
+        @SuppressWarnings("unchecked") final Node<M> node = (Node<M>) envelope.message();
+        nodes.remove(node);
+        released();
+        if (deadLetterHandler != null) {
+            expired.add(node.message);
+        }
+    }
+
+    /**
+     * Passes the messages expired holding a lock to the dead letter handler. Must be called without holding either lock,
+     * a message expired by one thread may be passed on by another that gets here first.
+     */
+    private void reportExpired() {
+        M message;
+        while ((message = expired.poll()) != null) {
+            try {
+                deadLetterHandler.accept(message);
+            } catch (final RuntimeException e) { //NOSONAR: java:S1166, a failing handler must not stop the queue
+                //ignored, the message is gone either way
+            }
+        }
+    }
+
+    /**
+     * Gives up the room of a message that has left the queue, noting whether producers are waiting for it.
+     */
+    private void released() {
+        if (count.getAndDecrement() == maxQueueDepth || waitingProducers.get() > 0) {
+            freedWhileFull.set(true);
+        }
+    }
+
+    /**
+     * Advances the timing wheel if any message has a time to live. Must be called without holding either lock.
+     */
+    private void expireDue() {
+        if (!timingWheel.isEmpty()) {
+            timingWheel.advance(System.nanoTime(), expiry);
+        }
+        afterUnlocking();
+    }
+
+    /**
+     * Does what is left for once the locks are released: passes expired messages to the dead letter handler and wakes
+     * producers if room was freed while the queue was full. Must be called without holding either lock.
+     */
+    private void afterUnlocking() {
+        reportExpired();
+        signalIfFreedWhileFull();
+    }
+
+    /**
+     * Wakes a blocked producer and adds the async offers in line for as long as there is room, if a consumer has freed
+     * room they are waiting for. Must be called without holding either lock.
+     */
+    private void signalIfFreedWhileFull() {
+        if (!freedWhileFull.compareAndSet(true, false)) {
+            return;
+        }
+        final List<Runnable> completions = new ArrayList<>(0);
+        putLock.lock();
+        try {
+            notFull.signal();
+            PendingOffer<M> offer;
+            while ((offer = pendingOffers.peek()) != null && tryReserve()) {
+                pendingOffers.poll();
+                pendingOfferCount = pendingOffers.size();
+                waitingProducers.decrementAndGet();
+                offer.future().claim();
+                insert(offer.message(), offer.priority(), null);
+                final PendingFuture<Void> future = offer.future();
+                completions.add(() -> future.deliver(null));
+            }
+        } finally {
+            putLock.unlock();
+        }
+        completions.forEach(Runnable::run);
+        if (!completions.isEmpty()) {
+            wakeConsumers();
+        }
+    }
+
+    /**
+     * Waits, holding the poll lock, until a message arrives or the timeout expires.
+     *
+     * @param waitNanos maximum time in nanoseconds to wait, {@link Long#MAX_VALUE} waits for as long as it takes
+     * @return The message or null if none arrived in time
+     */
+    private M awaitMessage(final long waitNanos) {
+        M message = pollOrNull();
+        if (message != null || waitNanos <= 0L) {
+            return message;
+        }
+        final long deadline = System.nanoTime() + waitNanos; //wraps for an endless wait, the difference still holds
+        try {
+            pollLock.lockInterruptibly();
+            waitingConsumers.incrementAndGet();
+            try {
+                long remainingNanos = deadline - System.nanoTime();
+                //producers only signal once a message is in the skip list, so poll again before every wait
+                while ((message = takeNext()) == null && remainingNanos > 0L) {
+                    remainingNanos = notEmpty.awaitNanos(remainingNanos);
+                }
+                if (message != null && !nodes.isEmpty()) {
+                    notEmpty.signal(); //an offer of several messages only wakes one consumer
+                }
+            } finally {
+                waitingConsumers.decrementAndGet();
+                pollLock.unlock();
+            }
+        } catch (final InterruptedException e) { //NOSONAR: java:S2142, Throwing wrapped exception
+            throw new QueuePollException("Interrupted while waiting for a message", e);
+        }
+        afterUnlocking();
+        return message;
+    }
+
+    private void wakeConsumers() {
+        if (waitingConsumers.get() == 0) {
+            return;
+        }
+        final List<Runnable> completions = new ArrayList<>(0);
+        pollLock.lock();
+        try {
+            notEmpty.signal();
+            servePendingPolls(completions);
+        } finally {
+            pollLock.unlock();
+        }
+        completions.forEach(Runnable::run);
+        afterUnlocking();
+    }
+
+    /**
+     * Takes a message for each async poller in line, for as long as there are messages. Must be called holding the poll
+     * lock, the futures are completed by running the completions once it is released.
+     *
+     * @param completions collects the completions of the futures that were served
+     */
+    private void servePendingPolls(final List<Runnable> completions) {
+        M message;
+        while (!pendingPolls.isEmpty() && (message = takeNext()) != null) {
+            final PendingFuture<M> future = pendingPolls.poll();
+            waitingConsumers.decrementAndGet();
+            future.claim();
+            final M taken = message;
+            completions.add(() -> future.deliver(taken));
+        }
+    }
+
+    private void withdrawPoll(final PendingFuture<M> future) {
+        if (pendingPolls.remove(future)) {
+            waitingConsumers.decrementAndGet();
+        }
+    }
+
+    private void withdrawOffer(final PendingFuture<Void> future) {
+        final boolean withdrawn = pendingOffers.removeIf(offer -> offer.future() == future);
+        pendingOfferCount = pendingOffers.size();
+        if (withdrawn) {
+            waitingProducers.decrementAndGet();
+        }
+    }
+
+    /**
+     * A message in the skip list. Its envelope, if it has a time to live, wraps the node itself so that the timing wheel
+     * can find it in the skip list when it expires.
+     *
+     * @param <M> The type of message
+     */
+    private static final class Node<M> {
+        private final long priority;
+        private final long sequence;
+        private final M message;
+        private Envelope<Node<M>> envelope;
+
+        private Node(final long priority, final long sequence, final M message) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+
+    /**
+     * An async offer waiting in line for room.
+     *
+     * @param message message to offer
+     * @param priority priority of the message
+     * @param future completed once the message is on the queue
+     * @param <M> The type of message
+     */
+    private record PendingOffer<M>(M message, long priority, PendingFuture<Void> future) {
+    }
+}
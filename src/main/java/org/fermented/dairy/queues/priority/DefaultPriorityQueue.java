@@ -5,5 +5,5 @@ package org.fermented.dairy.queues.priority;
  *
  * @param <M> The type of objects placed on the queue.
  */
-public interface DefaultPriorityQueue<M> extends PriorityQueue<M, Priority> {
+public interface DefaultPriorityQueue<M> extends BandedPriorityQueue<M, Priority> {
 }
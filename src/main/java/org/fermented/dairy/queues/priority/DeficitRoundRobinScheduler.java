@@ -0,0 +1,44 @@
+package org.fermented.dairy.queues.priority;
+
+/**
+ * {@link SchedulingPolicy#DEFICIT_ROUND_ROBIN} scheduler.
+ */
+final class DeficitRoundRobinScheduler implements DequeueScheduler {
+    private final double[] quanta;
+    private final double[] deficits;
+    private int current = -1;
+
+    DeficitRoundRobinScheduler(final double[] quanta) {
+        this.quanta = quanta;
+        this.deficits = new double[quanta.length];
+    }
+
+    @Override
+    public int select(final Bands bands) {
+        if (current >= 0 && deficits[current] >= 1.0 && WeightedRoundRobinScheduler.isOccupied(bands, current)) {
+            return current;
+        }
+        if (bands.highest() < 0) {
+            return -1;
+        }
+        int next = current;
+        do {
+            next = next < 0 ? -1 : bands.highestBelow(next);
+            if (next < 0) {
+                next = bands.highest(); //end of the round, start again from the top
+                if (next < 0) {
+                    return -1;
+                }
+            }
+            deficits[next] += quanta[next];
+        } while (deficits[next] < 1.0);
+        current = next;
+        return next;
+    }
+
+    @Override
+    public void taken(final int index, final boolean emptied) {
+        //an emptied band forfeits what it has left so an idle band cannot save up a burst
+        deficits[index] = emptied ? 0.0 : deficits[index] - 1.0;
+    }
+}
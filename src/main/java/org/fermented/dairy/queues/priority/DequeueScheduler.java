@@ -0,0 +1,55 @@
+package org.fermented.dairy.queues.priority;
+
+/**
+ * Chooses which priority band a queue polls next, set with {@link PriorityQueue#SCHEDULING_POLICY_PROPERTY}.
+ *
+ * <p>Schedulers are only ever called by one consumer at a time, a queue with a scheduler other than strict priority
+ * polls under its poll lock even with the {@link QueueEngine#LOCK_FREE} engine. Selecting must not change the outcome of
+ * the next selection unless a message is taken in between, so that a peek returns what the next poll will.
+ */
+public interface DequeueScheduler {
+
+    /**
+     * Chooses the band to poll next.
+     *
+     * @param bands the occupied bands of the queue
+     * @return The index of an occupied band or -1 if no band is occupied
+     */
+    int select(Bands bands);
+
+    /**
+     * Called after a message has been taken from the band returned by {@link #select(Bands)}.
+     *
+     * @param index band index
+     * @param emptied whether the band is now empty
+     */
+    void taken(int index, boolean emptied);
+
+    /**
+     * Read only view of which bands hold messages, higher indexes are higher priorities.
+     */
+    interface Bands {
+
+        /**
+         * Number of bands, one per priority.
+         *
+         * @return The band count
+         */
+        int count();
+
+        /**
+         * Finds the highest occupied band.
+         *
+         * @return The band index or -1 if no band is occupied
+         */
+        int highest();
+
+        /**
+         * Finds the highest occupied band below another.
+         *
+         * @param index exclusive upper bound
+         * @return The band index or -1 if no band below index is occupied
+         */
+        int highestBelow(int index);
+    }
+}
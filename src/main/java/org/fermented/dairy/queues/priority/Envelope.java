@@ -0,0 +1,142 @@
+package org.fermented.dairy.queues.priority;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Wraps a message that was offered with a time to live, or any message while its residence time is being measured for
+ * {@link org.fermented.dairy.queues.priority.metrics.QueueMetrics}, bands hold envelopes alongside plain messages.
+ *
+ * <p>An envelope is pending until exactly one of a consumer taking it, its expiry or its {@link MessageHandle} cancelling
+ * or moving it wins the CAS on its state, the winner does the accounting for the message. Expired and cancelled envelopes
+ * stay in their band as tombstones until a consumer skips over them. A pending envelope's message can be swapped in
+ * place by {@link #merge(Object)}, which holds the state at {@link #MERGING} for the two writes it takes, so that the
+ * message a winner reads is never one that was merged into after it won.
+ * The link fields belong to the {@link TimingWheel} and are only touched holding its lock.
+ *
+ * @param <M> The type of the wrapped message
+ */
+final class Envelope<M> {
+    static final int PENDING = 0;
+    static final int TAKEN = 1;
+    static final int EXPIRED = 2;
+    static final int CANCELLED = 3;
+    static final int MERGING = 4;
+
+    private static final VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(Envelope.class, "state", int.class);
+        } catch (final ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile M message;
+    private final int index;
+    private final long enqueuedAt;
+    private final long deadline;
+    private final boolean timed;
+    private volatile int state;
+
+    Envelope<?> previous;
+    Envelope<?> next;
+    TimingWheel.Bucket bucket;
+
+    /**
+     * Wraps a message that expires at a deadline.
+     *
+     * @param message the message
+     * @param index band index
+     * @param enqueuedAt {@link System#nanoTime()} when the message was offered
+     * @param deadline {@link System#nanoTime()} at which the message expires
+     */
+    Envelope(final M message, final int index, final long enqueuedAt, final long deadline) {
+        this.message = message;
+        this.index = index;
+        this.enqueuedAt = enqueuedAt;
+        this.deadline = deadline;
+        this.timed = true;
+    }
+
+    /**
+     * Wraps a message that never expires.
+     *
+     * @param message the message
+     * @param index band index
+     * @param enqueuedAt {@link System#nanoTime()} when the message was offered
+     */
+    Envelope(final M message, final int index, final long enqueuedAt) {
+        this.message = message;
+        this.index = index;
+        this.enqueuedAt = enqueuedAt;
+        this.deadline = 0L;
+        this.timed = false;
+    }
+
+    M message() {
+        return message;
+    }
+
+    int index() {
+        return index;
+    }
+
+    long enqueuedAt() {
+        return enqueuedAt;
+    }
+
+    long deadline() {
+        return deadline;
+    }
+
+    boolean isTimed() {
+        return timed;
+    }
+
+    /**
+     * Checks whether the envelope's deadline has passed.
+     *
+     * @param now current {@link System#nanoTime()}
+     * @return true if the envelope has a deadline and it has passed
+     */
+    boolean isDue(final long now) {
+        return timed && now - deadline >= 0L;
+    }
+
+    boolean isPending() {
+        final int current = state;
+        return current == PENDING || current == MERGING;
+    }
+
+    /**
+     * Moves the envelope out of the pending state, waiting out a merge in progress.
+     *
+     * @param outcome {@link #TAKEN}, {@link #EXPIRED} or {@link #CANCELLED}
+     * @return Whether this call decided the outcome
+     */
+    boolean complete(final int outcome) {
+        int current;
+        while ((current = (int) STATE.compareAndExchange(this, PENDING, outcome)) == MERGING) {
+            Thread.onSpinWait(); //the merge is two writes away from finishing
+        }
+        return current == PENDING;
+    }
+
+    /**
+     * Swaps the message of a pending envelope, keeping its place in its band. Merges must not race each other, the
+     * queue only merges holding its put lock.
+     *
+     * @param merged the new message
+     * @return true if the envelope was still pending and now holds the new message
+     */
+    boolean merge(final M merged) {
+        if (!STATE.compareAndSet(this, PENDING, MERGING)) {
+            return false;
+        }
+        message = merged;
+        state = PENDING;
+        return true;
+    }
+}
@@ -5,5 +5,16 @@ package org.fermented.dairy.queues.priority;
  *
  * @param <M> The type of objects placed on the queue.
  */
-public interface IntegerRangePriorityQueue<M> extends PriorityQueue<M, Integer> {
+public interface IntegerRangePriorityQueue<M> extends BandedPriorityQueue<M, Integer> {
+
+    /**
+     * Puts a message on the queue using a primitive priority, avoiding the {@link Integer} boxing of
+     * {@link #offer(Object, Object)}.
+     *
+     * @param message message to offer
+     * @param priority priority of the message, must be inside the queue's range
+     * @throws org.fermented.dairy.queues.priority.exceptions.QueuePutException if the priority is out of range or the
+     *          queue stays full for longer than the put timeout
+     */
+    void offer(M message, int priority);
 }
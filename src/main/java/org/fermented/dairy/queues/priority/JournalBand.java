@@ -0,0 +1,382 @@
+package org.fermented.dairy.queues.priority;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import org.fermented.dairy.queues.priority.exceptions.QueueJournalException;
+
+/**
+ * Band that appends its messages to a memory-mapped journal so that they survive a restart.
+ *
+ * <p>The journal is a directory of numbered segment files and a consumer offset file. Each message is encoded by a
+ * {@link MessageCodec} and written as its length plus one followed by its bytes, the length is written last so a torn
+ * write reads as the end of the journal. A segment that has no room left for a message is closed and the next one is
+ * created. The consumer offset records the segment and position of the next unread message and moves forward on every
+ * poll. Segments the consumer has read to the end are deleted, which keeps the journal to roughly the unread messages.
+ * Files in the directory that are not named like segments are left alone.
+ *
+ * <p>Taking a message off the band is its acknowledgement: the offset moves past it before it is handed over, so delivery
+ * is at most once and a message polled just before the process dies is not recovered, even if its consumer never got to
+ * act on it.
+ *
+ * <p>Writes land in the page cache straight away, so they survive the process dying. They are forced to disk within a
+ * sync interval: by the first write after the interval has passed or, once the band goes quiet, by a daemon thread
+ * shared by every journal that forces a band's outstanding writes once per interval. The band stops being synced in the
+ * background once it is {@link #close() closed}, which forces it one last time, so a journal must be closed to be
+ * released.
+ *
+ * <p>Segments stay mapped from when they are opened or created until they are read to the end and deleted, or the band
+ * is closed. Closing drops the band's references to every mapping, the mappings themselves are only unmapped once the
+ * buffers are garbage collected, so a closed journal's files can stay mapped for a while after it is closed. A closed
+ * band cannot be used again.
+ *
+ * <p>Offers and polls are serialised on the band's monitor, so the band can be used with either {@link QueueEngine}.
+ *
+ * @param <E> The type of element held in the band
+ */
+final class JournalBand<E> implements Band<E> {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String OFFSET_FILE = "consumer.offset";
+    private static final int HEADER_BYTES = Integer.BYTES;
+    private static final int POSITION_BITS = 32;
+    private static final long POSITION_MASK = 0xFFFFFFFFL;
+    private static final ScheduledExecutorService SYNCER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "journal-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path directory;
+    private final MessageCodec<E> codec;
+    private final int segmentSize;
+    private final long syncInterval;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private MappedByteBuffer offset;
+    private int readPosition;
+    private int nextSegment;
+    private long lastSync = System.nanoTime();
+    private boolean dirty;
+    private final ScheduledFuture<?> syncTask;
+    private volatile long size;
+
+    private final LongAdder depth = new LongAdder();
+    private volatile long emptiedAt;
+
+    /**
+     * Opens the journal in a directory, creating it if needed, and counts the unread messages already in it.
+     *
+     * @param codec codec used to serialise messages
+     * @param directory directory holding the band's journal
+     * @param segmentSize size in bytes of each segment file
+     * @param syncInterval minimum time in nanoseconds between forcing writes to disk, 0 forces every write
+     */
+    JournalBand(final MessageCodec<E> codec, final Path directory, final int segmentSize, final long syncInterval) {
+        this.codec = codec;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+        try {
+            Files.createDirectories(directory);
+            offset = map(directory.resolve(OFFSET_FILE), Long.BYTES);
+            recover();
+        } catch (final IOException e) {
+            throw new QueueJournalException(e, "Could not open the journal in %s", directory);
+        }
+        //every write is forced without an interval, otherwise a quiet band's last writes are forced in the background
+        syncTask = syncInterval > 0L
+                ? SYNCER.scheduleWithFixedDelay(this::syncIfDirty, syncInterval, syncInterval, TimeUnit.NANOSECONDS)
+                : null;
+    }
+
+    @Override
+    public synchronized boolean offer(final E element) {
+        ensureOpen();
+        final byte[] bytes = codec.encode(element);
+        final int needed = HEADER_BYTES + bytes.length;
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.buffer.capacity() - tail.writePosition < needed) {
+            if (tail != null) {
+                tail.buffer.force(); //its last writes would otherwise wait for the next sync of the new segment
+            }
+            tail = createSegment(needed);
+        }
+        tail.buffer.put(tail.writePosition + HEADER_BYTES, bytes);
+        tail.buffer.putInt(tail.writePosition, bytes.length + 1);
+        tail.writePosition += needed;
+        size++; //NOSONAR: java:S3078, only written holding the monitor
+        syncIfDue();
+        return true;
+    }
+
+    @Override
+    public synchronized E poll() {
+        return take(null);
+    }
+
+    @Override
+    public synchronized E peek() {
+        ensureOpen();
+        final Segment head = headSegment();
+        if (head == null) {
+            return null;
+        }
+        return codec.decode(head.buffer.slice(readPosition + HEADER_BYTES, head.buffer.getInt(readPosition) - 1));
+    }
+
+    @Override
+    public synchronized E pollIf(final Predicate<? super E> filter) {
+        return take(filter);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0L;
+    }
+
+    @Override
+    public LongAdder depth() {
+        return depth;
+    }
+
+    @Override
+    public void markEmptied(final long nanoTime) {
+        emptiedAt = nanoTime;
+    }
+
+    @Override
+    public long emptiedAt() {
+        return emptiedAt;
+    }
+
+    /**
+     * Forces any outstanding writes to disk, stops syncing the band in the background and drops the band's references to
+     * its mappings, so that they can be unmapped once they are garbage collected. Closing a closed band does nothing.
+     */
+    @Override
+    public synchronized void close() {
+        if (offset == null) {
+            return;
+        }
+        if (syncTask != null) {
+            syncTask.cancel(false);
+        }
+        sync();
+        segments.clear();
+        offset = null;
+    }
+
+    /**
+     * Number of unread messages in the journal.
+     *
+     * @return The message count
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Decodes the next message and removes it, unless a filter rejects it, moving the consumer offset past it. Must be
+     * called holding the monitor.
+     *
+     * @param filter test for the message, or null to take it whatever it is
+     * @return The message or null if the band is empty or the filter rejected it
+     */
+    private E take(final Predicate<? super E> filter) {
+        ensureOpen();
+        final Segment head = headSegment();
+        if (head == null) {
+            return null;
+        }
+        final int length = head.buffer.getInt(readPosition) - 1;
+        final E message = codec.decode(head.buffer.slice(readPosition + HEADER_BYTES, length));
+        if (filter != null && !filter.test(message)) {
+            return null;
+        }
+        readPosition += HEADER_BYTES + length;
+        offset.putLong(0, ((long) head.number << POSITION_BITS) | readPosition);
+        size--; //NOSONAR: java:S3078, only written holding the monitor
+        syncIfDue();
+        return message;
+    }
+
+    /**
+     * Finds the segment holding the next message, moving the consumer offset past segments that have been read to the
+     * end and deleting them.
+     *
+     * @return The segment or null if the band is empty
+     */
+    private Segment headSegment() {
+        if (size == 0L) {
+            return null;
+        }
+        Segment head = segments.peekFirst();
+        while (recordLength(head.buffer, readPosition) < 0) {
+            final Segment consumed = segments.pollFirst();
+            head = segments.peekFirst();
+            readPosition = 0;
+            offset.putLong(0, (long) head.number << POSITION_BITS);
+            try {
+                Files.deleteIfExists(segmentPath(consumed.number));
+            } catch (final IOException e) { //NOSONAR: java:S108, a segment that cannot be deleted now is deleted on recovery
+                //ignored, the offset has already moved past the segment
+            }
+        }
+        return head;
+    }
+
+    private void recover() throws IOException {
+        final long consumed = offset.getLong(0);
+        final int offsetSegment = (int) (consumed >>> POSITION_BITS);
+        final List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                final int number = parseNumber(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                if (number < 0) {
+                    continue; //not a segment, such as a backup copy of one
+                }
+                if (number < offsetSegment) {
+                    Files.delete(file); //read to the end before the last shutdown
+                } else {
+                    numbers.add(number);
+                }
+            }
+        }
+        numbers.sort(null);
+        nextSegment = numbers.isEmpty() ? offsetSegment : numbers.get(numbers.size() - 1) + 1;
+        for (int number : numbers) {
+            final Path file = segmentPath(number);
+            final Segment segment = new Segment(number, map(file, (int) Files.size(file)));
+            int position = 0;
+            if (segments.isEmpty()) {
+                position = number == offsetSegment ? (int) (consumed & POSITION_MASK) : 0;
+                readPosition = position;
+            }
+            int length;
+            while ((length = recordLength(segment.buffer, position)) >= 0) {
+                position += HEADER_BYTES + length;
+                size++; //NOSONAR: java:S3078, not yet shared
+            }
+            segment.writePosition = position;
+            segments.addLast(segment);
+        }
+    }
+
+    /**
+     * Parses the number in a journal file or directory name.
+     *
+     * @param digits the part of the name holding the number
+     * @return The number or -1 if the name does not hold a non-negative int in decimal digits only
+     */
+    static int parseNumber(final String digits) {
+        if (digits.isEmpty() || !digits.chars().allMatch(character -> character >= '0' && character <= '9')) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(digits);
+        } catch (final NumberFormatException e) { //NOSONAR: java:S1166, too many digits for an int is not a journal name
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the length of the record at a position.
+     *
+     * @param buffer segment buffer
+     * @param position record position
+     * @return The length of the message or -1 if there is no complete record at the position
+     */
+    private static int recordLength(final MappedByteBuffer buffer, final int position) {
+        if (buffer.capacity() - position < HEADER_BYTES) {
+            return -1;
+        }
+        final int length = buffer.getInt(position) - 1;
+        return length < 0 || length > buffer.capacity() - position - HEADER_BYTES ? -1 : length;
+    }
+
+    private Segment createSegment(final int needed) {
+        final int number = nextSegment;
+        try {
+            final Segment segment = new Segment(number, map(segmentPath(number), Math.max(segmentSize, needed)));
+            if (segments.isEmpty()) {
+                readPosition = 0;
+                offset.putLong(0, (long) number << POSITION_BITS);
+            }
+            segments.addLast(segment);
+            nextSegment++;
+            return segment;
+        } catch (final IOException e) {
+            throw new QueueJournalException(e, "Could not create journal segment %d in %s", number, directory);
+        }
+    }
+
+    private Path segmentPath(final int number) {
+        return directory.resolve(String.format("%010d%s", number, SEGMENT_SUFFIX));
+    }
+
+    private void ensureOpen() {
+        if (offset == null) {
+            throw new QueueJournalException("The journal in %s has been closed", directory);
+        }
+    }
+
+    private void syncIfDue() {
+        dirty = true;
+        if (System.nanoTime() - lastSync >= syncInterval) {
+            sync();
+        }
+    }
+
+    /**
+     * Forces the writes made since the last sync, for the background syncer.
+     */
+    private synchronized void syncIfDirty() {
+        if (dirty && offset != null) {
+            sync();
+        }
+    }
+
+    private void sync() {
+        lastSync = System.nanoTime();
+        dirty = false;
+        final Segment tail = segments.peekLast();
+        if (tail != null) {
+            tail.buffer.force();
+        }
+        offset.force();
+    }
+
+    private static MappedByteBuffer map(final Path file, final int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //the mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0L, Math.max(length, channel.size()));
+        }
+    }
+
+    /**
+     * A mapped segment file and the producer's position within it.
+     */
+    private static final class Segment {
+        private final int number;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+
+        private Segment(final int number, final MappedByteBuffer buffer) {
+            this.number = number;
+            this.buffer = buffer;
+        }
+    }
+}
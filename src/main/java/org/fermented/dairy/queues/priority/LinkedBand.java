@@ -0,0 +1,186 @@
+package org.fermented.dairy.queues.priority;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Unbounded multi-producer, multi-consumer band, a Michael-Scott linked queue that allocates a node per message.
+ *
+ * <p>The head is a sentinel node whose successor holds the next message, producers link nodes after the tail and
+ * consumers move the head on to the successor with a CAS. Taking the head node itself, rather than an element equal to
+ * it, is what lets {@link #removeHead(Object)} and {@link #pollIf(Predicate)} take exactly the message they looked at in
+ * one CAS, and give up as soon as another consumer has taken it first.
+ *
+ * @param <E> The type of element held in the band
+ */
+final class LinkedBand<E> implements Band<E> {
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+    private static final VarHandle NEXT;
+    private static final VarHandle ITEM;
+
+    static {
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(LinkedBand.class, "head", Node.class);
+            TAIL = lookup.findVarHandle(LinkedBand.class, "tail", Node.class);
+            NEXT = lookup.findVarHandle(Node.class, "next", Node.class);
+            ITEM = lookup.findVarHandle(Node.class, "item", Object.class);
+        } catch (final ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    //updated through HEAD and TAIL
+    private volatile Node<E> head;
+    private volatile Node<E> tail;
+    private final LongAdder depth = new LongAdder();
+    private volatile long emptiedAt;
+
+    LinkedBand() {
+        final Node<E> sentinel = new Node<>(null);
+        head = sentinel;
+        tail = sentinel;
+    }
+
+    @Override
+    public boolean offer(final E element) {
+        final Node<E> node = new Node<>(element);
+        while (true) {
+            final Node<E> last = tail;
+            final Node<E> next = last.next;
+            if (next != null) {
+                TAIL.compareAndSet(this, last, next); //help a producer that has linked its node but not moved the tail
+            } else if (NEXT.compareAndSet(last, null, node)) {
+                TAIL.compareAndSet(this, last, node);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public E poll() {
+        while (true) {
+            final Node<E> first = head;
+            final Node<E> next = first.next;
+            if (next == null) {
+                return null;
+            }
+            final E element = next.item;
+            if (take(first, next)) {
+                return element;
+            }
+        }
+    }
+
+    @Override
+    public E peek() {
+        while (true) {
+            final Node<E> first = head;
+            final Node<E> next = first.next;
+            if (next == null) {
+                return null;
+            }
+            final E element = next.item;
+            if (first == head) {
+                return element; //a taken node's item is only cleared once the head has moved past it
+            }
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+
+    /**
+     * Removes the head if it is still the element seen there, by identity, as a plain message may be equal to others in
+     * the band.
+     *
+     * @param expected the element previously seen at the head
+     * @return Whether the element was removed, false if another consumer has taken it
+     */
+    @Override
+    public boolean removeHead(final E expected) {
+        final Node<E> first = head;
+        final Node<E> next = first.next;
+        return next != null && next.item == expected && take(first, next);
+    }
+
+    /**
+     * Removes the head if it matches, trying the new head if another consumer takes the one that matched first.
+     *
+     * @param filter test for the head
+     * @return The head or null if the band is empty or its head does not match
+     */
+    @Override
+    public E pollIf(final Predicate<? super E> filter) {
+        while (true) {
+            final Node<E> first = head;
+            final Node<E> next = first.next;
+            if (next == null) {
+                return null;
+            }
+            final E element = next.item;
+            if (first != head) {
+                continue; //taken while it was read
+            }
+            if (!filter.test(element)) {
+                return null;
+            }
+            if (take(first, next)) {
+                return element;
+            }
+        }
+    }
+
+    @Override
+    public LongAdder depth() {
+        return depth;
+    }
+
+    @Override
+    public void markEmptied(final long nanoTime) {
+        emptiedAt = nanoTime;
+    }
+
+    @Override
+    public long emptiedAt() {
+        return emptiedAt;
+    }
+
+    /**
+     * Moves the head on to its successor, which becomes the new sentinel.
+     *
+     * @param first the head that was read
+     * @param next its successor, holding the element being taken
+     * @return false if another consumer moved the head first
+     */
+    private boolean take(final Node<E> first, final Node<E> next) {
+        if (first == tail) {
+            TAIL.compareAndSet(this, first, next); //never let the head pass a tail that a producer has yet to move
+        }
+        if (!HEAD.compareAndSet(this, first, next)) {
+            return false;
+        }
+        ITEM.setRelease(next, null); //the sentinel does not keep its message reachable
+        NEXT.setRelease(first, first); //nor does the old sentinel keep the queue behind it reachable
+        return true;
+    }
+
+    /**
+     * A message and the link to the next one.
+     *
+     * @param <E> The type of element held in the band
+     */
+    private static final class Node<E> {
+        private volatile E item;
+        private volatile Node<E> next;
+
+        private Node(final E item) {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.fermented.dairy.queues.priority;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts messages to and from bytes so that a queue can hold them off the heap.
+ *
+ * <p>Set an instance as the {@link PriorityQueue#MESSAGE_CODEC_PROPERTY} to store every band in direct memory slabs. The
+ * codec is called by producers and consumers concurrently, so it must be thread safe.
+ *
+ * @param <M> The type of objects placed on the queue.
+ */
+public interface MessageCodec<M> {
+
+    /**
+     * Serialises a message.
+     *
+     * @param message message to serialise
+     * @return The serialised message, the array is copied off the heap and not kept
+     */
+    byte[] encode(M message);
+
+    /**
+     * Deserialises a message.
+     *
+     * @param bytes buffer positioned at the start of the serialised message with its limit at the end, only valid for
+     *              the duration of the call
+     * @return The message
+     */
+    M decode(ByteBuffer bytes);
+}
@@ -0,0 +1,40 @@
+package org.fermented.dairy.queues.priority;
+
+/**
+ * Handle on a message offered with {@link AbstractArrayPriorityQueue#offerWithHandle(Object, Object)}, for cancelling it
+ * or changing its priority while it waits on the queue, without scanning the bands for it.
+ *
+ * <p>Both operations are O(1): the message's envelope is marked as a tombstone, which gives up its place in the depth
+ * straight away and is skipped by consumers when they reach it. They race with consumers, whichever gets to the envelope
+ * first wins, so a message that has been polled can no longer be cancelled or moved.
+ *
+ * @param <P> The priority type
+ */
+public interface MessageHandle<P> {
+
+    /**
+     * Removes the message from the queue if it is still waiting. A cancelled message is not passed to the dead letter
+     * handler.
+     *
+     * @return true if the message was cancelled, false if it has already been polled, expired, dropped or cancelled
+     */
+    boolean cancel();
+
+    /**
+     * Moves the message to another priority if it is still waiting. It keeps its place in the depth but joins the back
+     * of the new priority's band, behind messages already offered at that priority.
+     *
+     * @param priority the new priority
+     * @return true if the message has the new priority, false if it has already left the queue
+     * @throws org.fermented.dairy.queues.priority.exceptions.QueuePutException if the priority is not accepted by the
+     *          queue or its capacity leaves no room for the message
+     */
+    boolean changePriority(P priority);
+
+    /**
+     * Tells whether the message is still waiting on the queue.
+     *
+     * @return true until the message is polled, expires, is dropped or is cancelled
+     */
+    boolean isPending();
+}
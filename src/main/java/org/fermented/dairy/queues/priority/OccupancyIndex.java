@@ -0,0 +1,167 @@
+package org.fermented.dairy.queues.priority;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Hierarchical bitset recording which priority bands hold messages.
+ *
+ * <p>Level 0 has one bit per band, every level above it has one bit per word of the level below, up to a single summary
+ * word. Finding the highest occupied band is one {@link Long#numberOfLeadingZeros(long)} per level, so three words
+ * cover 262,144 bands.
+ *
+ * <p>Bits are set with atomic ORs and cleared with atomic ANDs, so producers and consumers can update the index
+ * concurrently. A bit is only a hint: producers set it after adding to a band, and consumers clear it once they see the
+ * band empty and then re-check the band, so an occupied band can never be left without its bit.
+ */
+final class OccupancyIndex {
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int WORD_SHIFT = 6;
+    private static final int WORD_MASK = 63;
+
+    private final long[][] levels;
+
+    OccupancyIndex(final int size) {
+        int levelCount = 0;
+        int bits = size;
+        do {
+            bits = (bits + WORD_MASK) >>> WORD_SHIFT;
+            levelCount++;
+        } while (bits > 1);
+        levels = new long[levelCount][];
+        bits = size;
+        for (int level = 0; level < levelCount; level++) {
+            bits = (bits + WORD_MASK) >>> WORD_SHIFT;
+            levels[level] = new long[Math.max(bits, 1)];
+        }
+    }
+
+    /**
+     * Marks a band as occupied.
+     *
+     * @param index band index
+     */
+    void set(final int index) {
+        setFrom(0, index);
+    }
+
+    /**
+     * Marks a band as empty, the caller must re-check the band afterwards and call {@link #set(int)} if it has been
+     * refilled in the meantime.
+     *
+     * @param index band index
+     */
+    void clear(final int index) {
+        clearFrom(0, index);
+    }
+
+    /**
+     * Finds the highest occupied band.
+     *
+     * @return The band index or -1 if no band is marked as occupied
+     */
+    int highest() {
+        final int top = levels.length - 1;
+        int position = 0;
+        int level = top;
+        while (level >= 0) {
+            final long word = (long) WORDS.getVolatile(levels[level], position);
+            if (word == 0L) {
+                if (level == top) {
+                    return -1;
+                }
+                //raced with a clear between levels, start again from the summary word
+                position = 0;
+                level = top;
+                continue;
+            }
+            position = (position << WORD_SHIFT) + WORD_MASK - Long.numberOfLeadingZeros(word);
+            level--;
+        }
+        return position;
+    }
+
+    /**
+     * Finds the lowest occupied band.
+     *
+     * @return The band index or -1 if no band is marked as occupied
+     */
+    int lowest() {
+        final int top = levels.length - 1;
+        int position = 0;
+        int level = top;
+        while (level >= 0) {
+            final long word = (long) WORDS.getVolatile(levels[level], position);
+            if (word == 0L) {
+                if (level == top) {
+                    return -1;
+                }
+                position = 0;
+                level = top;
+                continue;
+            }
+            position = (position << WORD_SHIFT) + Long.numberOfTrailingZeros(word);
+            level--;
+        }
+        return position;
+    }
+
+    /**
+     * Finds the highest occupied band below a limit, for walking the occupied bands from the top down.
+     *
+     * @param limit exclusive upper bound
+     * @return The band index or -1 if no band below the limit is marked as occupied
+     */
+    int highestBelow(final int limit) {
+        return highestBelowFrom(0, limit);
+    }
+
+    private int highestBelowFrom(final int level, final int limit) {
+        if (limit <= 0) {
+            return -1;
+        }
+        final int position = limit - 1;
+        final int word = position >>> WORD_SHIFT;
+        final long bits = (long) WORDS.getVolatile(levels[level], word) & (-1L >>> (WORD_MASK - (position & WORD_MASK)));
+        if (bits != 0L) {
+            return (word << WORD_SHIFT) + WORD_MASK - Long.numberOfLeadingZeros(bits);
+        }
+        if (level + 1 == levels.length) {
+            return -1;
+        }
+        final int upper = highestBelowFrom(level + 1, word);
+        if (upper < 0) {
+            return -1;
+        }
+        final long upperWord = (long) WORDS.getVolatile(levels[level], upper);
+        if (upperWord == 0L) {
+            return highestBelowFrom(level, upper << WORD_SHIFT); //raced with a clear, keep looking below it
+        }
+        return (upper << WORD_SHIFT) + WORD_MASK - Long.numberOfLeadingZeros(upperWord);
+    }
+
+    private void setFrom(final int fromLevel, final int index) {
+        int position = index;
+        for (int level = fromLevel; level < levels.length; level++) {
+            final int word = position >>> WORD_SHIFT;
+            final long previous = (long) WORDS.getAndBitwiseOr(levels[level], word, 1L << position);
+            if (previous != 0L) {
+                return; //the word was already non-empty so the levels above already point at it
+            }
+            position = word;
+        }
+    }
+
+    private void clearFrom(final int level, final int position) {
+        final int word = position >>> WORD_SHIFT;
+        final long bit = 1L << position;
+        final long previous = (long) WORDS.getAndBitwiseAnd(levels[level], word, ~bit);
+        if ((previous & ~bit) == 0L && level + 1 < levels.length) {
+            clearFrom(level + 1, word);
+            //a set may have landed between emptying the word and clearing its summary bit
+            if ((long) WORDS.getVolatile(levels[level], word) != 0L) {
+                setFrom(level + 1, word);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.fermented.dairy.queues.priority;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Band that holds its messages serialised in direct memory, so its heap footprint does not grow with its depth.
+ *
+ * <p>Messages are encoded by a {@link MessageCodec} and appended, length first, to a chain of direct slabs. The heap only
+ * holds one small read and write cursor per slab. A slab is dropped as soon as the consumer has read past it, apart from
+ * one spare that is kept for reuse so a band that hovers around a slab boundary does not keep allocating direct memory.
+ * Messages larger than a slab get a slab of their own.
+ *
+ * <p>Offers and polls are serialised on the band's monitor, which makes the band safe for any number of producers and
+ * consumers and so usable with either {@link QueueEngine}.
+ *
+ * @param <E> The type of element held in the band
+ */
+final class OffHeapBand<E> implements Band<E> {
+    private static final int LENGTH_BYTES = Integer.BYTES;
+
+    private final MessageCodec<E> codec;
+    private final int slabSize;
+    private final ArrayDeque<Slab> slabs = new ArrayDeque<>();
+    private Slab spare;
+    private volatile long size;
+
+    private final LongAdder depth = new LongAdder();
+    private volatile long emptiedAt;
+
+    OffHeapBand(final MessageCodec<E> codec, final int slabSize) {
+        this.codec = codec;
+        this.slabSize = slabSize;
+    }
+
+    @Override
+    public synchronized boolean offer(final E element) {
+        final byte[] bytes = codec.encode(element);
+        final int needed = LENGTH_BYTES + bytes.length;
+        Slab tail = slabs.peekLast();
+        if (tail == null || tail.buffer.capacity() - tail.writePosition < needed) {
+            tail = newSlab(needed);
+            slabs.addLast(tail);
+        }
+        tail.buffer.putInt(tail.writePosition, bytes.length);
+        tail.buffer.put(tail.writePosition + LENGTH_BYTES, bytes);
+        tail.writePosition += needed;
+        size++; //NOSONAR: java:S3078, only written holding the monitor
+        return true;
+    }
+
+    @Override
+    public synchronized E poll() {
+        return take(null);
+    }
+
+    @Override
+    public synchronized E peek() {
+        final Slab head = headSlab();
+        if (head == null) {
+            return null;
+        }
+        return codec.decode(head.buffer.slice(head.readPosition + LENGTH_BYTES, head.buffer.getInt(head.readPosition)));
+    }
+
+    @Override
+    public synchronized E pollIf(final Predicate<? super E> filter) {
+        return take(filter);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0L;
+    }
+
+    @Override
+    public LongAdder depth() {
+        return depth;
+    }
+
+    @Override
+    public void markEmptied(final long nanoTime) {
+        emptiedAt = nanoTime;
+    }
+
+    @Override
+    public long emptiedAt() {
+        return emptiedAt;
+    }
+
+    /**
+     * Decodes the next message and removes it, unless a filter rejects it. Must be called holding the monitor.
+     *
+     * @param filter test for the message, or null to take it whatever it is
+     * @return The message or null if the band is empty or the filter rejected it
+     */
+    private E take(final Predicate<? super E> filter) {
+        final Slab head = headSlab();
+        if (head == null) {
+            return null;
+        }
+        final int length = head.buffer.getInt(head.readPosition);
+        final E message = codec.decode(head.buffer.slice(head.readPosition + LENGTH_BYTES, length));
+        if (filter != null && !filter.test(message)) {
+            return null;
+        }
+        head.readPosition += LENGTH_BYTES + length;
+        size--; //NOSONAR: java:S3078, only written holding the monitor
+        return message;
+    }
+
+    /**
+     * Finds the slab holding the next message, recycling slabs that have been read to the end.
+     *
+     * @return The slab or null if the band is empty
+     */
+    private Slab headSlab() {
+        Slab head = slabs.peekFirst();
+        while (head != null && head.readPosition == head.writePosition) {
+            slabs.pollFirst();
+            if (head.buffer.capacity() == slabSize) {
+                head.readPosition = 0;
+                head.writePosition = 0;
+                spare = head;
+            }
+            head = slabs.peekFirst();
+        }
+        return head;
+    }
+
+    private Slab newSlab(final int needed) {
+        if (needed <= slabSize && spare != null) {
+            final Slab reused = spare;
+            spare = null;
+            return reused;
+        }
+        return new Slab(ByteBuffer.allocateDirect(Math.max(needed, slabSize)));
+    }
+
+    /**
+     * A direct buffer and the cursors of the consumer and producer within it.
+     */
+    private static final class Slab {
+        private final ByteBuffer buffer;
+        private int readPosition;
+        private int writePosition;
+
+        private Slab(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
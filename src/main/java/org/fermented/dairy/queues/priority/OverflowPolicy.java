@@ -0,0 +1,38 @@
+package org.fermented.dairy.queues.priority;
+
+/**
+ * What an offer does when there is no room for its message, selected per priority with
+ * {@link PriorityQueue#OVERFLOW_POLICY_PROPERTY}.
+ *
+ * <p>There is no room when the queue has reached its maximum depth, less any capacity reserved for higher priorities with
+ * {@link PriorityQueue#RESERVED_CAPACITY_PROPERTY}, or when the priority has reached its own capacity set with
+ * {@link PriorityQueue#PRIORITY_CAPACITIES_PROPERTY}. Messages that are dropped or evicted go to the
+ * {@link PriorityQueue#DEAD_LETTER_HANDLER_PROPERTY dead letter handler} if there is one.
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait up to {@link PriorityQueue#MAX_PUT_WAIT_TIME_PROPERTY} for room and then fail, the default. Async offers wait
+     * in line instead.
+     */
+    BLOCK,
+    /**
+     * Fail straight away with a {@link org.fermented.dairy.queues.priority.exceptions.QueuePutException}, async offers
+     * with a failed future.
+     */
+    FAIL,
+    /**
+     * Discard the message being offered, the offer returns normally.
+     */
+    DROP_NEWEST,
+    /**
+     * Evict the oldest message of the same priority to make room, or wait as for {@link #BLOCK} if the priority holds no
+     * messages.
+     */
+    DROP_OLDEST,
+    /**
+     * Evict the oldest message of the lowest priority holding any, as long as that priority is no higher than the one
+     * offered to, or wait as for {@link #BLOCK} if there is none. When the priority's own capacity is what has been
+     * reached its oldest message is evicted instead, evicting other priorities would not make room.
+     */
+    EVICT_LOWEST
+}
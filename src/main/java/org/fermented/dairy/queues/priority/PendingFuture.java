@@ -0,0 +1,92 @@
+package org.fermented.dairy.queues.priority;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Future handed out by the async poll and offer methods, waiting in line behind one of the queue's locks.
+ *
+ * <p>The queue claims a future holding that lock before taking a message or a slot for it, and completes it once the lock
+ * is released so that callbacks do not run under it. Completing the future any other way, by cancelling it, timing it
+ * out or completing it by hand, claims it under the same lock and withdraws it from the line. Whichever claims it first
+ * decides the outcome, so a message is never taken for a future that has been cancelled, and a future that has been
+ * claimed for a message can no longer be cancelled.
+ *
+ * @param <T> The type of result
+ */
+final class PendingFuture<T> extends CompletableFuture<T> {
+    private final ReentrantLock lock;
+    private final Consumer<PendingFuture<T>> withdraw;
+    private boolean claimed;
+
+    /**
+     * Creates a future waiting in line behind a lock.
+     *
+     * @param lock lock guarding the line
+     * @param withdraw removes the future from the line, called holding the lock
+     */
+    PendingFuture(final ReentrantLock lock, final Consumer<PendingFuture<T>> withdraw) {
+        this.lock = lock;
+        this.withdraw = withdraw;
+    }
+
+    /**
+     * Claims the future for the queue to complete. Must be called holding the lock.
+     *
+     * @return true if the future was claimed, false if it has already been completed some other way
+     */
+    boolean claim() {
+        if (claimed) {
+            return false;
+        }
+        claimed = true;
+        return true;
+    }
+
+    /**
+     * Completes a future claimed by the queue. Must be called without holding the lock.
+     *
+     * @param result the result
+     */
+    void deliver(final T result) {
+        super.complete(result);
+    }
+
+    /**
+     * Fails a future claimed by the queue. Must be called without holding the lock.
+     *
+     * @param failure the reason
+     */
+    void fail(final Throwable failure) {
+        super.completeExceptionally(failure);
+    }
+
+    @Override
+    public boolean complete(final T value) {
+        return claimFromOutside() && super.complete(value);
+    }
+
+    @Override
+    public boolean completeExceptionally(final Throwable ex) {
+        return claimFromOutside() && super.completeExceptionally(ex);
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return claimFromOutside() && super.cancel(mayInterruptIfRunning);
+    }
+
+    private boolean claimFromOutside() {
+        lock.lock();
+        try {
+            if (!claim()) {
+                return false;
+            }
+            withdraw.accept(this);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package org.fermented.dairy.queues.priority;
 
+import java.time.Duration;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import org.fermented.dairy.queues.priority.impl.DefaultPriorityQueueImpl;
 import org.fermented.dairy.queues.priority.impl.IntegerRangePriorityQueueImpl;
 
@@ -11,11 +14,28 @@ import org.fermented.dairy.queues.priority.impl.IntegerRangePriorityQueueImpl;
  * @param <M> Message type
  * @param <P> Priority type
  */
-public interface PriorityQueue<M, P> {
+public interface PriorityQueue<M, P> extends AutoCloseable {
 
     String MAX_QUEUE_DEPTH_PROPERTY = "maxQueueDepth";
     String MAX_POLL_WAIT_TIME_PROPERTY = "maxPollWaitTime";
     String MAX_PUT_WAIT_TIME_PROPERTY = "maxPutWaitTime";
+    String QUEUE_ENGINE_PROPERTY = "queueEngine";
+    String BAND_IDLE_TIMEOUT_PROPERTY = "bandIdleTimeout";
+    String MESSAGE_CODEC_PROPERTY = "messageCodec";
+    String OFF_HEAP_SLAB_SIZE_PROPERTY = "offHeapSlabSize";
+    String JOURNAL_DIRECTORY_PROPERTY = "journalDirectory";
+    String JOURNAL_SEGMENT_SIZE_PROPERTY = "journalSegmentSize";
+    String JOURNAL_SYNC_INTERVAL_PROPERTY = "journalSyncInterval";
+    String SCHEDULING_POLICY_PROPERTY = "schedulingPolicy";
+    String PRIORITY_WEIGHTS_PROPERTY = "priorityWeights";
+    String AGING_THRESHOLD_PROPERTY = "agingThreshold";
+    String DEAD_LETTER_HANDLER_PROPERTY = "deadLetterHandler";
+    String METRICS_PROPERTY = "metrics";
+    String PRIORITY_CAPACITIES_PROPERTY = "priorityCapacities";
+    String RESERVED_CAPACITY_PROPERTY = "reservedCapacity";
+    String OVERFLOW_POLICY_PROPERTY = "overflowPolicy";
+    String DEDUPLICATION_KEY_PROPERTY = "deduplicationKey";
+    String COALESCE_FUNCTION_PROPERTY = "coalesceFunction";
 
     static <T> org.fermented.dairy.queues.priority.DefaultPriorityQueue<T> getQueue() {
         return new DefaultPriorityQueueImpl<>(Map.of());
@@ -37,21 +57,133 @@ public interface PriorityQueue<M, P> {
         return new IntegerRangePriorityQueueImpl<>(Map.of(), max, min, defaultPriority);
     }
 
+    /**
+     * Creates a queue using the {@link Priority} enum that is spread over several shards, trading strict priority order
+     * across the shards for producers and consumers that scale with the number of cores, see {@link ShardedPriorityQueue}.
+     *
+     * @param properties properties every shard is created with
+     * @param shardCount number of shards
+     * @param <T> The type of objects placed on the queue.
+     * @return The queue
+     */
+    static <T> ShardedPriorityQueue<T, Priority> getShardedQueue(final Map<String, Object> properties, final int shardCount) {
+        return new ShardedPriorityQueue<>(properties, shardCount, DefaultPriorityQueueImpl::new);
+    }
+
+    /**
+     * Creates a queue taking any long as a priority, for priorities such as deadlines or scores that are too many to
+     * give each a band, see {@link ContinuousPriorityQueue}.
+     *
+     * @param properties queue properties
+     * @param <T> The type of objects placed on the queue.
+     * @return The queue
+     */
+    static <T> ContinuousPriorityQueue<T> getContinuousQueue(final Map<String, Object> properties) {
+        return new ContinuousPriorityQueue<>(properties);
+    }
+
     void offer(M message, P priority);
 
     void offer(M message);
 
+    /**
+     * Puts a message on the queue that is dropped if it has not been polled within its time to live. An expired message
+     * stops counting towards the depth straight away and is passed to the {@link #DEAD_LETTER_HANDLER_PROPERTY dead
+     * letter handler}, a {@link java.util.function.Consumer} of the message type, if one is set. The handler runs on
+     * whichever thread notices the expiry once it has let go of the queue's locks, so it may use the queue, but it holds
+     * up that thread's call and should be quick. Exceptions it throws are ignored.
+     *
+     * @param message message to offer
+     * @param priority priority of the message
+     * @param ttl how long the message stays deliverable, must be positive
+     * @throws org.fermented.dairy.queues.priority.exceptions.QueuePutException if the queue stays full for longer than the
+     *          put timeout, or if the queue stores messages with a {@link MessageCodec}, which cannot hold the deadline
+     */
+    void offer(M message, P priority, Duration ttl);
+
+    /**
+     * Puts a message on the queue without blocking the caller, waiting in line for space if the queue is full. Messages
+     * waiting for space are added in the order they were offered, and later offers to the same priority, blocking or
+     * not, wait behind them, so a producer's messages stay in order however it offers them. Cancelling the future, or
+     * letting {@link CompletableFuture#orTimeout} time it out, withdraws the message unless it has already been added.
+     *
+     * @param message message to offer
+     * @param priority priority of the message
+     * @return A future that completes once the message is on the queue
+     * @throws org.fermented.dairy.queues.priority.exceptions.QueuePutException if the priority is not accepted by the queue
+     */
+    CompletableFuture<Void> offerAsync(M message, P priority);
+
+    /**
+     * Puts a message on the queue at the default priority without blocking the caller, see
+     * {@link #offerAsync(Object, Object)}.
+     *
+     * @param message message to offer
+     * @return A future that completes once the message is on the queue
+     */
+    CompletableFuture<Void> offerAsync(M message);
+
+    void offerAll(Collection<M> messages, P priority);
+
+    void offerAll(Map<P, ? extends Collection<M>> messages);
+
     Optional<M> poll();
 
     Optional<M> poll(boolean wait);
 
+    /**
+     * Polls, waiting for a message if the queue is empty.
+     *
+     * @param waitTimeout maximum time in milliseconds to wait for the poll lock and a message combined
+     * @return The highest priority message or empty if none arrived in time
+     */
     Optional<M> poll(long waitTimeout);
 
+    /**
+     * Polls, waiting for as long as it takes for a message to arrive. Waiting parks the thread on the queue's locks, so a
+     * virtual thread waiting here does not hold on to its carrier thread.
+     *
+     * @return The highest priority message
+     * @throws org.fermented.dairy.queues.priority.exceptions.QueuePollException if interrupted while waiting
+     */
+    M take();
+
+    /**
+     * Polls without blocking the caller. The future completes straight away if the queue holds a message, otherwise
+     * with the first message offered that no other consumer takes first, in the order the futures were created.
+     * Cancelling the future, or letting {@link CompletableFuture#orTimeout} time it out, stops it waiting unless a
+     * message has already been taken for it.
+     *
+     * @return A future that completes with the highest priority message
+     */
+    CompletableFuture<M> pollAsync();
+
+    /**
+     * Polls without waiting for the poll lock, like {@link #poll()}, but without allocating an {@link Optional}.
+     *
+     * @return The highest priority message or null if the queue is empty
+     */
+    M pollOrNull();
+
+    int drainTo(Collection<? super M> target, int maxElements);
+
+    int drainTo(Collection<? super M> target, int maxElements, long waitTimeout);
+
     Optional<M> peek();
 
     void purge();
 
     long depth();
 
+    long depth(P priority);
+
     boolean isEmpty();
+
+    /**
+     * Releases anything the queue holds outside the heap and forces a durable queue's journal to disk.
+     */
+    @Override
+    default void close() {
+        //in-memory queues hold nothing to release
+    }
 }
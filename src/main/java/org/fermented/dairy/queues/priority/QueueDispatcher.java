@@ -0,0 +1,207 @@
+package org.fermented.dairy.queues.priority;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.fermented.dairy.queues.priority.exceptions.QueueException;
+import org.fermented.dairy.queues.priority.exceptions.QueueInstantiationException;
+
+/**
+ * Pool of workers that take messages off a {@link PriorityQueue} and pass each one to a handler, so that consumers do
+ * not need their own polling loops.
+ *
+ * <p>Each worker drains a batch of messages, in priority order, into a local deque and handles them from its head. A
+ * worker whose deque is empty first drains the next batch, then steals the head of a sibling's deque, and only then
+ * parks on the queue until a message arrives. Priority order holds within a batch, a message offered while a batch is
+ * being handled waits for the batch, so smaller batches keep the order closer to strict at the cost of more trips to
+ * the queue. A worker only drains a new batch once it has handled, or had stolen, the last one, so at most the
+ * concurrency times the batch size messages are off the queue at a time; the rest wait on the queue, where its depth
+ * limit holds back producers.
+ *
+ * <p>Workers are created by the {@link #THREAD_FACTORY_PROPERTY thread factory}, platform daemon threads by default. A
+ * virtual thread factory works as well, workers only wait on the queue's locks and conditions. A runtime exception from
+ * the handler goes to the {@link #ERROR_HANDLER_PROPERTY error handler}, or the worker's uncaught exception handler if
+ * there is none. Errors, and anything the error handler itself throws, go to the worker's uncaught exception handler.
+ * Either way the worker carries on with the next message.
+ *
+ * @param <M> The type of message
+ */
+public final class QueueDispatcher<M> implements AutoCloseable {
+    public static final String CONCURRENCY_PROPERTY = "concurrency";
+    public static final String BATCH_SIZE_PROPERTY = "batchSize";
+    public static final String THREAD_FACTORY_PROPERTY = "threadFactory";
+    public static final String ERROR_HANDLER_PROPERTY = "errorHandler";
+    public static final String IDLE_WAIT_PROPERTY = "idleWait";
+
+    private static final int DEFAULT_BATCH_SIZE = 16;
+    private static final long DEFAULT_IDLE_WAIT_MS = 100L;
+    private static final AtomicInteger NEXT_POOL = new AtomicInteger();
+
+    private final PriorityQueue<M, ?> queue;
+    private final Consumer<? super M> handler;
+    private final BiConsumer<? super M, ? super RuntimeException> errorHandler;
+    private final int batchSize;
+    private final long idleWait;
+    private final List<Worker> workers = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = true;
+
+    private QueueDispatcher(final PriorityQueue<M, ?> queue, final Consumer<? super M> handler, final Map<String, Object> properties) {
+        this.queue = Objects.requireNonNull(queue, "queue");
+        this.handler = Objects.requireNonNull(handler, "handler");
+        @SuppressWarnings("unchecked") final BiConsumer<? super M, ? super RuntimeException> onError =
+                (BiConsumer<? super M, ? super RuntimeException>) properties.get(ERROR_HANDLER_PROPERTY);
+        this.errorHandler = onError;
+        this.batchSize = (int) properties.getOrDefault(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE);
+        this.idleWait = (long) properties.getOrDefault(IDLE_WAIT_PROPERTY, DEFAULT_IDLE_WAIT_MS);
+        final int concurrency = (int) properties.getOrDefault(CONCURRENCY_PROPERTY, Runtime.getRuntime().availableProcessors());
+        if (concurrency <= 0 || batchSize <= 0) {
+            throw new QueueInstantiationException("%s and %s must be positive, were %d and %d",
+                    CONCURRENCY_PROPERTY, BATCH_SIZE_PROPERTY, concurrency, batchSize);
+        }
+        final ThreadFactory threadFactory = (ThreadFactory) properties.getOrDefault(THREAD_FACTORY_PROPERTY, defaultThreadFactory());
+        for (int i = 0; i < concurrency; i++) {
+            final Worker worker = new Worker(i);
+            workers.add(worker);
+            threads.add(threadFactory.newThread(worker));
+        }
+    }
+
+    /**
+     * Starts dispatching messages from a queue to a handler.
+     *
+     * @param queue the queue to consume
+     * @param handler called with each message, on a worker thread
+     * @param properties dispatcher settings, see the property constants
+     * @param <M> The type of message
+     * @return The running dispatcher
+     */
+    public static <M> QueueDispatcher<M> start(final PriorityQueue<M, ?> queue, final Consumer<? super M> handler,
+                                               final Map<String, Object> properties) {
+        final QueueDispatcher<M> dispatcher = new QueueDispatcher<>(queue, handler, properties);
+        dispatcher.threads.forEach(Thread::start);
+        return dispatcher;
+    }
+
+    /**
+     * Stops taking messages off the queue and waits for the workers to handle the messages they have already taken.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueueException(e, "Interrupted while waiting for the dispatcher's workers to finish");
+        }
+    }
+
+    private static ThreadFactory defaultThreadFactory() {
+        final int pool = NEXT_POOL.incrementAndGet();
+        final AtomicInteger nextWorker = new AtomicInteger();
+        return task -> {
+            final Thread thread = new Thread(task, "queue-dispatcher-" + pool + "-" + nextWorker.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private void handle(final M message) {
+        try {
+            handler.accept(message);
+        } catch (final RuntimeException e) {
+            if (errorHandler == null) {
+                reportUncaught(e);
+                return;
+            }
+            try {
+                errorHandler.accept(message, e);
+            } catch (final Throwable errorHandlerFailure) { //NOSONAR: java:S1181, a failing error handler must not end the worker
+                errorHandlerFailure.addSuppressed(e);
+                reportUncaught(errorHandlerFailure);
+            }
+        } catch (final Throwable e) { //NOSONAR: java:S1181, the worker carries on whatever the handler throws
+            reportUncaught(e);
+        }
+    }
+
+    private static void reportUncaught(final Throwable e) {
+        final Thread worker = Thread.currentThread();
+        try {
+            worker.getUncaughtExceptionHandler().uncaughtException(worker, e);
+        } catch (final Throwable ignored) { //NOSONAR: java:S1181, java:S1166, nowhere left to report to, the worker carries on
+            //ignored, the message has been dealt with as far as it can be
+        }
+    }
+
+    /**
+     * A worker and the batch it has taken off the queue, which its siblings steal from when they run dry.
+     */
+    private final class Worker implements Runnable {
+        private final int index;
+        private final ConcurrentLinkedDeque<M> local = new ConcurrentLinkedDeque<>();
+        private final List<M> batch = new ArrayList<>();
+
+        private Worker(final int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                M message = local.pollFirst();
+                if (message == null) {
+                    message = refill();
+                }
+                if (message != null) {
+                    handle(message);
+                }
+            }
+            //finish the batch already taken off the queue, unless siblings have stolen it
+            M message;
+            while ((message = local.pollFirst()) != null) {
+                handle(message);
+            }
+        }
+
+        /**
+         * Finds the next message once the local deque is empty: the next batch from the queue, else a sibling's message,
+         * else the first message to arrive on the queue within the idle wait.
+         *
+         * @return The message or null if none arrived
+         */
+        private M refill() {
+            try {
+                batch.clear();
+                if (queue.drainTo(batch, batchSize, idleWait) > 0) {
+                    local.addAll(batch);
+                    return local.pollFirst();
+                }
+                final M stolen = steal();
+                return stolen != null ? stolen : queue.poll(idleWait).orElse(null);
+            } catch (final QueueException e) { //NOSONAR: java:S1166, lock timeouts and interrupts end this attempt only
+                return null;
+            }
+        }
+
+        private M steal() {
+            final int workerCount = workers.size();
+            for (int i = 1; i < workerCount; i++) {
+                final M stolen = workers.get((index + i) % workerCount).local.pollFirst();
+                if (stolen != null) {
+                    return stolen;
+                }
+            }
+            return null;
+        }
+    }
+}
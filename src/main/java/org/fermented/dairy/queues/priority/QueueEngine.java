@@ -0,0 +1,15 @@
+package org.fermented.dairy.queues.priority;
+
+/**
+ * Concurrency strategy used by the array backed queues, selected with {@link PriorityQueue#QUEUE_ENGINE_PROPERTY}.
+ */
+public enum QueueEngine {
+    /**
+     * Producers share a put lock and consumers share a poll lock, the default.
+     */
+    LOCKING,
+    /**
+     * Producers and consumers work directly on the bands using CAS, taking a lock only to block on a full queue.
+     */
+    LOCK_FREE
+}
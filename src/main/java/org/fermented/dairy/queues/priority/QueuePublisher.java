@@ -0,0 +1,199 @@
+package org.fermented.dairy.queues.priority;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.fermented.dairy.queues.priority.exceptions.QueuePollException;
+
+/**
+ * {@link Flow.Publisher} view of a {@link PriorityQueue}, so the queue can feed a reactive pipeline without a thread
+ * polling it.
+ *
+ * <p>Each subscriber consumes from the queue, so several subscribers share the messages between them rather than each
+ * seeing all of them. While a subscriber has outstanding demand its subscription drains the queue in priority order, up
+ * to a batch at a time, and once the queue is empty it leaves a {@link PriorityQueue#pollAsync()} future waiting, which
+ * the next producer completes. Nothing runs while the queue is empty or the subscriber has no demand, and messages left
+ * on the queue for want of demand hold back producers through the queue's own depth limit.
+ *
+ * <p>Signals to a subscriber are serialised and run on the executor. A drain waits at most the queue's default poll wait
+ * timeout for the queue's poll lock, and if the lock is still busy it hands the executor thread back and tries again in a
+ * fresh run, so a contended queue never pins the executor's threads. The queue has no end, so subscribers are never
+ * completed, they are only given an error if the queue fails.
+ *
+ * @param <M> The type of message
+ */
+public final class QueuePublisher<M> implements Flow.Publisher<M> {
+    private static final int DEFAULT_BATCH_SIZE = 64;
+    private static final long DRAIN_LOCK_WAIT_MS = AbstractArrayPriorityQueue.DEFAULT_POLL_WAIT_TIMEOUT_MS;
+
+    private final PriorityQueue<M, ?> queue;
+    private final Executor executor;
+    private final int batchSize;
+
+    /**
+     * Creates a publisher that delivers on the common fork join pool in batches of 64.
+     *
+     * @param queue the queue to consume
+     */
+    public QueuePublisher(final PriorityQueue<M, ?> queue) {
+        this(queue, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a publisher.
+     *
+     * @param queue the queue to consume
+     * @param executor runs the deliveries to subscribers
+     * @param batchSize maximum number of messages taken off the queue at a time
+     */
+    public QueuePublisher(final PriorityQueue<M, ?> queue, final Executor executor, final int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("The batch size must be positive, was " + batchSize);
+        }
+        this.queue = Objects.requireNonNull(queue, "queue");
+        this.executor = Objects.requireNonNull(executor, "executor");
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super M> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        subscriber.onSubscribe(new QueueSubscription(subscriber));
+    }
+
+    /**
+     * Subscription whose drain loop runs on the executor, at most one run at a time.
+     */
+    private final class QueueSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super M> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger scheduledRuns = new AtomicInteger();
+        private final List<M> batch = new ArrayList<>();
+        private volatile boolean cancelled;
+        private Throwable invalidRequest;
+        //only touched by the drain loop
+        private CompletableFuture<M> pending;
+        private boolean done;
+
+        private QueueSubscription(final Flow.Subscriber<? super M> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0L) {
+                invalidRequest = new IllegalArgumentException("Demand must be positive, was " + n);
+                cancelled = true;
+            } else {
+                requested.getAndAccumulate(n, (current, added) -> current + added < 0L ? Long.MAX_VALUE : current + added);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            boolean lockBusy;
+            do {
+                lockBusy = drain();
+                missed = scheduledRuns.addAndGet(-missed);
+            } while (missed != 0);
+            if (lockBusy) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            if (scheduledRuns.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (final RuntimeException e) {
+                    cancelled = true;
+                    scheduledRuns.set(0);
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        /**
+         * Delivers what the subscriber has asked for, as far as the queue holds it.
+         *
+         * @return true if the queue's poll lock stayed busy, so the drain should be tried again in another run
+         */
+        private boolean drain() {
+            if (done) {
+                return false;
+            }
+            try {
+                if (pending != null && !deliverPending()) {
+                    return false; //the next producer completes it and schedules another run
+                }
+                if (cancelled) {
+                    done = true;
+                    if (invalidRequest != null) {
+                        subscriber.onError(invalidRequest);
+                    }
+                    return false;
+                }
+                long demand;
+                while ((demand = requested.get()) > 0L && !cancelled) {
+                    batch.clear();
+                    final int drained = queue.drainTo(batch, (int) Math.min(demand, batchSize), DRAIN_LOCK_WAIT_MS);
+                    if (drained == 0) {
+                        pending = queue.pollAsync();
+                        pending.whenComplete((message, failure) -> schedule());
+                        return false;
+                    }
+                    batch.forEach(subscriber::onNext);
+                    produced(drained);
+                }
+            } catch (final QueuePollException e) { //NOSONAR: java:S1166, the lock was busy, the drain is retried in a new run
+                return true;
+            } catch (final RuntimeException e) {
+                done = true;
+                cancelled = true;
+                subscriber.onError(e);
+            }
+            return false;
+        }
+
+        /**
+         * Settles the waiting poll, withdrawing it if the subscription has been cancelled.
+         *
+         * @return false if the poll is still waiting
+         */
+        private boolean deliverPending() {
+            if (cancelled && pending.cancel(false)) {
+                pending = null;
+                return true;
+            }
+            if (!pending.isDone()) {
+                return false;
+            }
+            //taken for this subscriber before any cancellation, so it is delivered regardless
+            final M message = pending.join();
+            pending = null;
+            subscriber.onNext(message);
+            produced(1L);
+            return true;
+        }
+
+        private void produced(final long count) {
+            if (requested.get() != Long.MAX_VALUE) {
+                requested.addAndGet(-count);
+            }
+        }
+    }
+}
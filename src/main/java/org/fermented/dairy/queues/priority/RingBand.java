@@ -0,0 +1,166 @@
+package org.fermented.dairy.queues.priority;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Unbounded single-producer, single-consumer band backed by a growable array ring.
+ *
+ * <p>Only safe with at most one thread offering and one thread polling or peeking at a time, which the put and poll locks
+ * of the {@link QueueEngine#LOCKING} engine guarantee. Slots are nulled as they are consumed so the producer knows
+ * they are free. When the producer would fill the last free slot it links a ring of twice the size, writes the message
+ * there and leaves a jump marker in the old ring for the consumer to follow. Once a band has grown to its working size
+ * offers and polls allocate nothing.
+ *
+ * <p>The producer and the consumer each keep their ring and index in their own {@link Cursor}, padded with a cache line
+ * either side, so a producer and a consumer on different cores do not invalidate each other's line on every message.
+ * The producer tells free slots by their nulls rather than by reading the consumer index, and the slots are written with
+ * release and read with acquire semantics, so the only lines the two sides share are the slots being handed over.
+ *
+ * @param <E> The type of element held in the band
+ */
+final class RingBand<E> implements Band<E> {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final Object JUMP = new Object();
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle INDEX;
+
+    static {
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            INDEX = lookup.findVarHandle(CursorFields.class, "index", long.class);
+        } catch (final ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Cursor producer = new Cursor();
+    private final Cursor consumer = new Cursor();
+    private final LongAdder depth = new LongAdder();
+    private volatile long emptiedAt;
+
+    RingBand() {
+        //each ring has one extra slot past the mask holding the link to the next, larger, ring
+        producer.ring = new Object[INITIAL_CAPACITY + 1];
+        consumer.ring = producer.ring;
+    }
+
+    @Override
+    public boolean offer(final E element) {
+        final Object[] ring = producer.ring;
+        final int mask = ring.length - 2;
+        final long index = producer.index;
+        final int offset = (int) (index & mask);
+        if (SLOTS.getAcquire(ring, (int) ((index + 1) & mask)) == null) {
+            SLOTS.setRelease(ring, offset, element);
+        } else {
+            //keep the last free slot for the jump marker and move on to a larger ring
+            final Object[] nextRing = new Object[(mask + 1) * 2 + 1];
+            nextRing[(int) (index & (nextRing.length - 2))] = element;
+            ring[mask + 1] = nextRing;
+            producer.ring = nextRing;
+            SLOTS.setRelease(ring, offset, JUMP);
+        }
+        INDEX.setRelease(producer, index + 1);
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        final long index = consumer.index;
+        final Object[] ring = currentConsumerRing(index);
+        final int offset = (int) (index & (ring.length - 2));
+        final Object element = SLOTS.getAcquire(ring, offset);
+        if (element == null) {
+            return null;
+        }
+        SLOTS.setRelease(ring, offset, null);
+        INDEX.setRelease(consumer, index + 1);
+        @SuppressWarnings("unchecked") final E message = (E) element;
+        return message;
+    }
+
+    @Override
+    public E peek() {
+        final long index = consumer.index;
+        final Object[] ring = currentConsumerRing(index);
+        @SuppressWarnings("unchecked") final E message = (E) SLOTS.getAcquire(ring, (int) (index & (ring.length - 2)));
+        return message;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return (long) INDEX.getAcquire(consumer) == (long) INDEX.getAcquire(producer);
+    }
+
+    @Override
+    public LongAdder depth() {
+        return depth;
+    }
+
+    @Override
+    public void markEmptied(final long nanoTime) {
+        emptiedAt = nanoTime;
+    }
+
+    @Override
+    public long emptiedAt() {
+        return emptiedAt;
+    }
+
+    /**
+     * Follows any jump markers left by the producer so the consumer reads from the ring holding the next element.
+     *
+     * @param index consumer index
+     * @return The ring to read the element at index from
+     */
+    private Object[] currentConsumerRing(final long index) {
+        Object[] ring = consumer.ring;
+        while (SLOTS.getAcquire(ring, (int) (index & (ring.length - 2))) == JUMP) {
+            ring = (Object[]) ring[ring.length - 1];
+            consumer.ring = ring;
+        }
+        return ring;
+    }
+
+    /**
+     * Cache line of padding laid out ahead of a cursor's fields, as a superclass's fields come before its subclasses'.
+     * The int fills the gap after the object header so that the cursor's own fields cannot be placed in it.
+     */
+    @SuppressWarnings("unused")
+    private abstract static class LeftPadding {
+        private int p00;
+        private long p01;
+        private long p02;
+        private long p03;
+        private long p04;
+        private long p05;
+        private long p06;
+        private long p07;
+        private long p08;
+    }
+
+    /**
+     * One side's position, only written by that side.
+     */
+    private abstract static class CursorFields extends LeftPadding {
+        Object[] ring;
+        long index;
+    }
+
+    /**
+     * Cursor with a cache line of padding after its fields as well, so no neighbouring object shares their line.
+     */
+    @SuppressWarnings("unused")
+    private static final class Cursor extends CursorFields {
+        private long p11;
+        private long p12;
+        private long p13;
+        private long p14;
+        private long p15;
+        private long p16;
+        private long p17;
+        private long p18;
+    }
+}
@@ -0,0 +1,30 @@
+package org.fermented.dairy.queues.priority;
+
+/**
+ * Built in {@link DequeueScheduler}s, selected with {@link PriorityQueue#SCHEDULING_POLICY_PROPERTY}.
+ *
+ * <p>The weighted policies take their weights from {@link PriorityQueue#PRIORITY_WEIGHTS_PROPERTY}, a map from priority to
+ * weight. Priorities missing from the map weigh their band index plus one, so by default the lowest priority weighs 1
+ * and each priority above it 1 more.
+ */
+public enum SchedulingPolicy {
+    /**
+     * Always poll the highest occupied priority, the default. Low priorities starve while higher ones are busy.
+     */
+    STRICT,
+    /**
+     * Visit occupied priorities from the highest down, taking up to each priority's whole number weight of messages per
+     * visit.
+     */
+    WEIGHTED_ROUND_ROBIN,
+    /**
+     * Like weighted round-robin but with fractional weights, each visit adds the weight to a deficit that is spent at
+     * one per message, so a weight of 0.25 means a message every fourth round.
+     */
+    DEFICIT_ROUND_ROBIN,
+    /**
+     * Strict priority, except that a priority that has gone without being polled for longer than
+     * {@link PriorityQueue#AGING_THRESHOLD_PROPERTY} is polled first, the longest waiting first.
+     */
+    AGING
+}
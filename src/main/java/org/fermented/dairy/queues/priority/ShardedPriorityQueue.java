@@ -0,0 +1,418 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.fermented.dairy.queues.priority.AbstractArrayPriorityQueue.DEFAULT_POLL_WAIT_TIMEOUT_MS;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import org.fermented.dairy.queues.priority.exceptions.QueueInstantiationException;
+import org.fermented.dairy.queues.priority.exceptions.QueuePollException;
+
+/**
+ * Priority queue spread over independent shards, so that producers on many cores are not all contending for one
+ * queue's locks and counters.
+ *
+ * <p>Each producing thread sticks to one shard, so the messages it offers at a priority stay in order, unless it offers
+ * to a partition key with {@link #offerToPartition(Object, Object, Object)}, which maps every key to one shard.
+ * Consumers pick two shards at random and poll the one whose highest occupied band is higher, the MultiQueue scheme, so
+ * polls are spread over the shards as well. Priority order is therefore only approximate across shards: a poll can
+ * return a message of lower priority than one waiting on a shard it did not look at. If the two shards are empty, or
+ * the chosen one is busy, every shard holding messages is tried before a poll reports the queue empty.
+ *
+ * <p>Every shard is a complete queue built from the same properties, so limits such as the maximum depth apply per shard
+ * and a producer is refused space when its own shard is full. A journal directory gets a shard-index sub-directory per
+ * shard. Consumers waiting for a message, or with an async poll outstanding, wait on the sharded queue itself and are
+ * woken by an offer to any shard.
+ *
+ * @param <M> The type of objects placed on the queue.
+ * @param <P> The priority type
+ */
+public final class ShardedPriorityQueue<M, P> implements PriorityQueue<M, P> {
+    private static final String SHARD_DIRECTORY_PREFIX = "shard-";
+    private static final AtomicInteger NEXT_THREAD = new AtomicInteger();
+    private static final ThreadLocal<Integer> THREAD_NUMBER = ThreadLocal.withInitial(NEXT_THREAD::getAndIncrement);
+
+    private final AbstractArrayPriorityQueue<M, P>[] shards;
+    private final long pollWaitTimeout;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    //blocked and async consumers, the async ones are guarded by the lock
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+    private final ArrayDeque<PendingFuture<M>> pendingPolls = new ArrayDeque<>();
+
+    /**
+     * Creates a sharded queue.
+     *
+     * @param properties properties every shard is created with, see {@link PriorityQueue}
+     * @param shardCount number of shards
+     * @param shardFactory creates a shard from its properties
+     */
+    public ShardedPriorityQueue(final Map<String, Object> properties, final int shardCount,
+                                final Function<Map<String, Object>, ? extends AbstractArrayPriorityQueue<M, P>> shardFactory) {
+        if (shardCount <= 0) {
+            throw new QueueInstantiationException("The shard count must be positive, was %d", shardCount);
+        }
+        this.pollWaitTimeout = (long) properties.getOrDefault(MAX_POLL_WAIT_TIME_PROPERTY, DEFAULT_POLL_WAIT_TIMEOUT_MS);
+        final Object journal = properties.get(JOURNAL_DIRECTORY_PROPERTY);
+        @SuppressWarnings("unchecked") final AbstractArrayPriorityQueue<M, P>[] created =
+                (AbstractArrayPriorityQueue<M, P>[]) new AbstractArrayPriorityQueue<?, ?>[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            Map<String, Object> shardProperties = properties;
+            if (journal != null) {
+                shardProperties = new HashMap<>(properties);
+                shardProperties.put(JOURNAL_DIRECTORY_PROPERTY, Path.of(journal.toString()).resolve(SHARD_DIRECTORY_PREFIX + i));
+            }
+            created[i] = shardFactory.apply(shardProperties);
+        }
+        this.shards = created;
+    }
+
+    @Override
+    public void offer(final M message, final P priority) {
+        ownShard().offer(message, priority);
+        wakeConsumers();
+    }
+
+    @Override
+    public void offer(final M message) {
+        ownShard().offer(message);
+        wakeConsumers();
+    }
+
+    @Override
+    public void offer(final M message, final P priority, final Duration ttl) {
+        ownShard().offer(message, priority, ttl);
+        wakeConsumers();
+    }
+
+    /**
+     * Puts a message on the shard its partition key maps to rather than the calling thread's shard, so that messages
+     * with the same key and priority are polled in the order they were offered whichever thread offers them.
+     *
+     * @param key partition key
+     * @param message message to offer
+     * @param priority priority of the message
+     */
+    public void offerToPartition(final Object key, final M message, final P priority) {
+        final int hash = key.hashCode();
+        shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)].offer(message, priority);
+        wakeConsumers();
+    }
+
+    @Override
+    public CompletableFuture<Void> offerAsync(final M message, final P priority) {
+        return wakeConsumersOnceAdded(ownShard().offerAsync(message, priority));
+    }
+
+    @Override
+    public CompletableFuture<Void> offerAsync(final M message) {
+        return wakeConsumersOnceAdded(ownShard().offerAsync(message));
+    }
+
+    @Override
+    public void offerAll(final Collection<M> messages, final P priority) {
+        ownShard().offerAll(messages, priority);
+        wakeConsumers();
+    }
+
+    @Override
+    public void offerAll(final Map<P, ? extends Collection<M>> messages) {
+        ownShard().offerAll(messages);
+        wakeConsumers();
+    }
+
+    @Override
+    public Optional<M> poll() {
+        return Optional.ofNullable(pollAnyShard());
+    }
+
+    @Override
+    public Optional<M> poll(final boolean wait) {
+        return wait ? poll(pollWaitTimeout) : poll();
+    }
+
+    @Override
+    public Optional<M> poll(final long waitTimeout) {
+        return Optional.ofNullable(awaitMessage(TimeUnit.MILLISECONDS.toNanos(waitTimeout)));
+    }
+
+    @Override
+    public M pollOrNull() {
+        return pollAnyShard();
+    }
+
+    @Override
+    public M take() {
+        return awaitMessage(Long.MAX_VALUE);
+    }
+
+    @Override
+    public CompletableFuture<M> pollAsync() {
+        final M message = pollAnyShard();
+        if (message != null) {
+            return CompletableFuture.completedFuture(message);
+        }
+        final PendingFuture<M> future = new PendingFuture<>(lock, this::withdrawPoll);
+        final List<Runnable> completions = new ArrayList<>(1);
+        lock.lock();
+        try {
+            pendingPolls.add(future);
+            waitingConsumers.incrementAndGet();
+            servePendingPolls(completions);
+        } finally {
+            lock.unlock();
+        }
+        completions.forEach(Runnable::run);
+        return future;
+    }
+
+    @Override
+    public int drainTo(final Collection<? super M> target, final int maxElements) {
+        int drained = 0;
+        M message;
+        while (drained < maxElements && (message = pollAnyShard()) != null) {
+            target.add(message);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * Drains messages one poll at a time, so that the approximate priority order holds across the shards. The timeout
+     * covers the whole drain: once it has passed, a shard whose poll lock is held by another consumer is skipped rather
+     * than waited for.
+     *
+     * @param target collection to add the messages to
+     * @param maxElements maximum number of messages to drain
+     * @param waitTimeout maximum time in milliseconds to wait for the shards' poll locks, over the whole drain
+     * @return The number of messages drained
+     */
+    @Override
+    public int drainTo(final Collection<? super M> target, final int maxElements, final long waitTimeout) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+        final Function<AbstractArrayPriorityQueue<M, P>, M> withinDeadline = shard -> shard.tryPoll(deadline - System.nanoTime());
+        int drained = 0;
+        M message;
+        while (drained < maxElements && (message = pollAnyShard(withinDeadline)) != null) {
+            target.add(message);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public Optional<M> peek() {
+        int best = -1;
+        int bestBand = -1;
+        for (int i = 0; i < shards.length; i++) {
+            final int band = shards[i].highestOccupiedBand();
+            if (band > bestBand) {
+                best = i;
+                bestBand = band;
+            }
+        }
+        return best < 0 ? Optional.empty() : shards[best].peek();
+    }
+
+    @Override
+    public void purge() {
+        for (AbstractArrayPriorityQueue<M, P> shard : shards) {
+            shard.purge();
+        }
+    }
+
+    @Override
+    public long depth() {
+        long depth = 0L;
+        for (AbstractArrayPriorityQueue<M, P> shard : shards) {
+            depth += shard.depth();
+        }
+        return depth;
+    }
+
+    @Override
+    public long depth(final P priority) {
+        long depth = 0L;
+        for (AbstractArrayPriorityQueue<M, P> shard : shards) {
+            depth += shard.depth(priority);
+        }
+        return depth;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (AbstractArrayPriorityQueue<M, P> shard : shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes every shard, the queue must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        for (AbstractArrayPriorityQueue<M, P> shard : shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Number of shards, for tests.
+     *
+     * @return The shard count
+     */
+    int shardCount() {
+        return shards.length;
+    }
+
+    private AbstractArrayPriorityQueue<M, P> ownShard() {
+        return shards[THREAD_NUMBER.get() % shards.length];
+    }
+
+    /**
+     * Polls the better of two random shards, falling back to every shard that holds messages and waiting for each one's
+     * poll lock for up to its poll wait timeout.
+     *
+     * @return The message or null if every shard is empty
+     */
+    private M pollAnyShard() {
+        return pollAnyShard(shard -> shard.poll(false).orElse(null));
+    }
+
+    /**
+     * Polls the better of two random shards, falling back to every shard that holds messages.
+     *
+     * @param fallback polls each shard tried after the chosen one, deciding how long to wait for its poll lock
+     * @return The message or null if no shard gave one up
+     */
+    private M pollAnyShard(final Function<AbstractArrayPriorityQueue<M, P>, M> fallback) {
+        final int shardCount = shards.length;
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        int chosen = random.nextInt(shardCount);
+        if (shardCount > 1) {
+            int other = random.nextInt(shardCount - 1);
+            if (other >= chosen) {
+                other++;
+            }
+            if (shards[other].highestOccupiedBand() > shards[chosen].highestOccupiedBand()) {
+                chosen = other;
+            }
+        }
+        if (shards[chosen].highestOccupiedBand() >= 0) {
+            final M message = shards[chosen].tryPoll();
+            if (message != null) {
+                return message;
+            }
+        }
+        //a shard that holds messages always has an occupied band, so the others only need locking if they look occupied
+        for (int i = 0; i < shardCount; i++) {
+            final AbstractArrayPriorityQueue<M, P> shard = shards[(chosen + i) % shardCount];
+            if (shard.highestOccupiedBand() >= 0) {
+                final M message = fallback.apply(shard);
+                if (message != null) {
+                    return message;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits, holding the sharded queue's lock, until a shard has a message or the timeout expires.
+     *
+     * @param waitNanos maximum time in nanoseconds to wait, {@link Long#MAX_VALUE} waits for as long as it takes
+     * @return The message or null if none arrived in time
+     */
+    private M awaitMessage(final long waitNanos) {
+        M message = pollAnyShard();
+        if (message != null || waitNanos <= 0L) {
+            return message;
+        }
+        final long deadline = System.nanoTime() + waitNanos; //wraps for an endless wait, the difference still holds
+        try {
+            lock.lockInterruptibly();
+            waitingConsumers.incrementAndGet();
+            try {
+                long remainingNanos = deadline - System.nanoTime();
+                //producers only signal once a message is on a shard, so poll again before every wait
+                while ((message = pollAnyShard()) == null && remainingNanos > 0L) {
+                    remainingNanos = notEmpty.awaitNanos(remainingNanos);
+                }
+                if (message != null && !isEmpty()) {
+                    notEmpty.signal(); //an offer of several messages only wakes one consumer
+                }
+            } finally {
+                waitingConsumers.decrementAndGet();
+                lock.unlock();
+            }
+        } catch (final InterruptedException e) { //NOSONAR: java:S2142, Throwing wrapped exception
+            throw new QueuePollException("Interrupted while waiting for a message", e);
+        }
+        return message;
+    }
+
+    private void wakeConsumers() {
+        if (waitingConsumers.get() == 0) {
+            return;
+        }
+        final List<Runnable> completions = new ArrayList<>(0);
+        lock.lock();
+        try {
+            notEmpty.signal();
+            servePendingPolls(completions);
+        } finally {
+            lock.unlock();
+        }
+        completions.forEach(Runnable::run);
+    }
+
+    private CompletableFuture<Void> wakeConsumersOnceAdded(final CompletableFuture<Void> added) {
+        if (added.isDone()) {
+            wakeConsumers();
+        } else {
+            //a shard can complete the future holding its put lock, which must not be held taking the sharded lock
+            added.thenRunAsync(this::wakeConsumers);
+        }
+        return added;
+    }
+
+    /**
+     * Takes a message for each async poller in line, for as long as the shards have messages. Must be called holding
+     * the lock, the futures are completed by running the completions once it is released.
+     *
+     * @param completions collects the completions of the futures that were served
+     */
+    private void servePendingPolls(final List<Runnable> completions) {
+        M message;
+        while (!pendingPolls.isEmpty() && (message = pollAnyShard()) != null) {
+            final PendingFuture<M> future = pendingPolls.poll();
+            waitingConsumers.decrementAndGet();
+            future.claim();
+            final M taken = message;
+            completions.add(() -> future.deliver(taken));
+        }
+    }
+
+    private void withdrawPoll(final PendingFuture<M> future) {
+        if (pendingPolls.remove(future)) {
+            waitingConsumers.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.fermented.dairy.queues.priority;
+
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel tracking the deadlines of pending {@link Envelope}s with millisecond resolution.
+ *
+ * <p>Each level has 64 buckets, the first a millisecond wide and each level above 64 times wider than the one below, with
+ * levels added as far out as deadlines need. Scheduling and cancelling are O(1). Only buckets holding envelopes are
+ * ordered, by their own expiry, so advancing costs O(log buckets) per bucket and nothing per idle tick. When a higher
+ * level bucket comes due its envelopes cascade down to the finer levels until they expire.
+ *
+ * <p>Producers hand envelopes over through a lock-free inbox. Whichever thread advances the wheel drains the inbox while
+ * holding the wheel lock, and threads that find the lock taken skip advancing, the holder is already doing it.
+ */
+final class TimingWheel {
+    private static final int WHEEL_SIZE = 64;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Envelope<?>> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicLong scheduled = new AtomicLong();
+    private final java.util.PriorityQueue<Bucket> dueBuckets = //NOSONAR: java:S1942, the package has its own PriorityQueue
+            new java.util.PriorityQueue<>(Comparator.comparingLong(bucket -> bucket.expiration));
+    private final long origin = System.nanoTime();
+    private final Level root = new Level(1L, 0L);
+
+    /**
+     * Starts tracking the deadline of an envelope.
+     *
+     * @param envelope envelope to track
+     */
+    void schedule(final Envelope<?> envelope) {
+        scheduled.incrementAndGet();
+        inbox.offer(envelope);
+    }
+
+    /**
+     * Whether any envelope is being tracked, checked before advancing so that queues without TTLs pay nothing.
+     *
+     * @return true if no envelope is scheduled
+     */
+    boolean isEmpty() {
+        return scheduled.get() == 0L;
+    }
+
+    /**
+     * Stops tracking an envelope that has been taken, if the wheel is not busy, so that it does not stay reachable until
+     * its deadline.
+     *
+     * @param envelope the taken envelope
+     */
+    void cancel(final Envelope<?> envelope) {
+        if (!lock.tryLock()) {
+            return; //it is dropped when its deadline comes round instead
+        }
+        try {
+            final Bucket bucket = envelope.bucket;
+            if (bucket != null) {
+                bucket.remove(envelope);
+                scheduled.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands every pending envelope whose deadline has passed to a callback.
+     *
+     * @param now current {@link System#nanoTime()}
+     * @param expired called with each expired envelope that is still pending, holding the wheel lock
+     */
+    void advance(final long now, final Consumer<Envelope<?>> expired) {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            Envelope<?> envelope;
+            while ((envelope = inbox.poll()) != null) {
+                place(envelope, expired);
+            }
+            final long nowMillis = TimeUnit.NANOSECONDS.toMillis(now - origin);
+            Bucket bucket;
+            while ((bucket = dueBuckets.peek()) != null && bucket.expiration <= nowMillis) {
+                dueBuckets.poll();
+                root.advanceClock(bucket.expiration);
+                envelope = bucket.flush();
+                while (envelope != null) {
+                    final Envelope<?> next = envelope.next;
+                    envelope.next = null;
+                    place(envelope, expired);
+                    envelope = next;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void place(final Envelope<?> envelope, final Consumer<Envelope<?>> expired) {
+        if (!envelope.isPending()) {
+            scheduled.decrementAndGet();
+        } else if (!root.add(envelope, expiration(envelope))) {
+            scheduled.decrementAndGet();
+            expired.accept(envelope);
+        }
+    }
+
+    private long expiration(final Envelope<?> envelope) {
+        //round up so an envelope never fires before its deadline
+        return (envelope.deadline() - origin + TimeUnit.MILLISECONDS.toNanos(1L) - 1L) / TimeUnit.MILLISECONDS.toNanos(1L);
+    }
+
+    /**
+     * One level of the wheel.
+     */
+    private final class Level {
+        private final long tick;
+        private final long interval;
+        private final Bucket[] buckets = new Bucket[WHEEL_SIZE];
+        private long currentTime;
+        private Level overflow;
+
+        private Level(final long tick, final long startTime) {
+            this.tick = tick;
+            this.interval = tick * WHEEL_SIZE;
+            this.currentTime = startTime - startTime % tick;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new Bucket();
+            }
+        }
+
+        /**
+         * Adds an envelope to the bucket covering its expiration.
+         *
+         * @param envelope envelope to add
+         * @param expiration expiration in milliseconds since the wheel was created
+         * @return false if the envelope has already expired
+         */
+        private boolean add(final Envelope<?> envelope, final long expiration) {
+            if (expiration < currentTime + tick) {
+                return false;
+            }
+            if (expiration < currentTime + interval) {
+                final long virtualId = expiration / tick;
+                final Bucket bucket = buckets[(int) (virtualId % WHEEL_SIZE)];
+                bucket.add(envelope);
+                if (bucket.expiration != virtualId * tick) {
+                    bucket.expiration = virtualId * tick;
+                    dueBuckets.offer(bucket);
+                }
+                return true;
+            }
+            if (overflow == null) {
+                overflow = new Level(interval, currentTime);
+            }
+            return overflow.add(envelope, expiration);
+        }
+
+        private void advanceClock(final long time) {
+            if (time >= currentTime + tick) {
+                currentTime = time - time % tick;
+                if (overflow != null) {
+                    overflow.advanceClock(currentTime);
+                }
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the envelopes expiring within one tick of a level.
+     */
+    static final class Bucket {
+        private Envelope<?> head;
+        private long expiration = -1L;
+
+        private void add(final Envelope<?> envelope) {
+            envelope.bucket = this;
+            envelope.previous = null;
+            envelope.next = head;
+            if (head != null) {
+                head.previous = envelope;
+            }
+            head = envelope;
+        }
+
+        private void remove(final Envelope<?> envelope) {
+            if (envelope.previous == null) {
+                head = envelope.next;
+            } else {
+                envelope.previous.next = envelope.next;
+            }
+            if (envelope.next != null) {
+                envelope.next.previous = envelope.previous;
+            }
+            envelope.bucket = null;
+            envelope.previous = null;
+            envelope.next = null;
+        }
+
+        /**
+         * Empties the bucket.
+         *
+         * @return The first envelope of the chain that was in the bucket, linked through next
+         */
+        private Envelope<?> flush() {
+            final Envelope<?> first = head;
+            for (Envelope<?> envelope = first; envelope != null; envelope = envelope.next) {
+                envelope.bucket = null;
+                envelope.previous = null;
+            }
+            head = null;
+            expiration = -1L;
+            return first;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.fermented.dairy.queues.priority;
+
+/**
+ * {@link SchedulingPolicy#WEIGHTED_ROUND_ROBIN} scheduler.
+ */
+final class WeightedRoundRobinScheduler implements DequeueScheduler {
+    private final long[] weights;
+    private int current = -1;
+    private long credit;
+
+    WeightedRoundRobinScheduler(final long[] weights) {
+        this.weights = weights;
+    }
+
+    @Override
+    public int select(final Bands bands) {
+        if (current >= 0 && credit > 0L && isOccupied(bands, current)) {
+            return current;
+        }
+        int next = current < 0 ? -1 : bands.highestBelow(current);
+        if (next < 0) {
+            next = bands.highest(); //end of the round, start again from the top
+        }
+        if (next >= 0) {
+            current = next;
+            credit = weights[next];
+        }
+        return next;
+    }
+
+    @Override
+    public void taken(final int index, final boolean emptied) {
+        credit--;
+    }
+
+    static boolean isOccupied(final Bands bands, final int index) {
+        return bands.highestBelow(index + 1) == index;
+    }
+}
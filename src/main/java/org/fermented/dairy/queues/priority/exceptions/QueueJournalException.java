@@ -0,0 +1,23 @@
+package org.fermented.dairy.queues.priority.exceptions;
+
+/**
+ * Runtime Exception thrown when a durable queue cannot read or write its journal.
+ */
+public class QueueJournalException extends QueueException {
+
+    /**
+     * see {@link QueueException#QueueException(Throwable, String, Object...)}.
+     */
+    public QueueJournalException(final Throwable causedBy,
+                                 final String message,
+                                 final Object... params) {
+        super(causedBy, message, params);
+    }
+
+    /**
+     * see {@link QueueException#QueueException(String, Object...)}.
+     */
+    public QueueJournalException(final String message, final Object... params) {
+        super(message, params);
+    }
+}
@@ -16,11 +16,12 @@ public final class DefaultPriorityQueueImpl<M>
         implements org.fermented.dairy.queues.priority.DefaultPriorityQueue<M> {
 
     public DefaultPriorityQueueImpl(final Map<String, Object> properties) {
-        super(properties, Priority.asSet(), MEDIUM);
+        super(properties, Priority.values().length, MEDIUM);
+        mapPriorities();
     }
 
     @Override
     public int getPriorityIndex(final Priority priority) {
-        return priority.ordinal();
+        return priority == null ? -1 : priority.ordinal();
     }
 }
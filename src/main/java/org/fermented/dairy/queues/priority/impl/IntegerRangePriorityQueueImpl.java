@@ -1,11 +1,9 @@
 package org.fermented.dairy.queues.priority.impl;
 
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import org.fermented.dairy.queues.priority.AbstractArrayPriorityQueue;
 import org.fermented.dairy.queues.priority.exceptions.QueueInstantiationException;
+import org.fermented.dairy.queues.priority.exceptions.QueuePutException;
 
 /**
  * PriorityQueue implementation using {@link Integer} as the priority.
@@ -15,32 +13,67 @@ import org.fermented.dairy.queues.priority.exceptions.QueueInstantiationExceptio
 public final class IntegerRangePriorityQueueImpl<M> extends AbstractArrayPriorityQueue<M, Integer>
         implements org.fermented.dairy.queues.priority.IntegerRangePriorityQueue<M> {
 
-    private final Integer minPriority;
+    private final int minPriority;
+    private final int maxPriority;
 
+    /**
+     * Creates a queue whose default priority is the middle of the range.
+     *
+     * @param properties queue properties
+     * @param minPriority lowest priority, inclusive
+     * @param maxPriority highest priority, inclusive
+     */
     public IntegerRangePriorityQueueImpl(final Map<String, Object> properties,
                                          final Integer minPriority,
                                          final Integer maxPriority) {
-        super(properties, getBoundedIntegerSet(minPriority, maxPriority), (minPriority + maxPriority) / 2);
+        super(properties, getPriorityCount(minPriority, maxPriority), (minPriority + maxPriority) / 2);
         this.minPriority = minPriority;
+        this.maxPriority = maxPriority;
+        mapPriorities();
     }
 
+    /**
+     * Creates a queue with an explicit default priority.
+     *
+     * @param properties queue properties
+     * @param minPriority lowest priority, inclusive
+     * @param maxPriority highest priority, inclusive
+     * @param defaultPriority priority used by {@link #offer(Object)}
+     */
     public IntegerRangePriorityQueueImpl(final Map<String, Object> properties,
                                          final Integer minPriority,
                                          final Integer maxPriority,
                                          final Integer defaultPriority) {
-        super(properties, getBoundedIntegerSet(minPriority, maxPriority), defaultPriority);
+        super(properties, getPriorityCount(minPriority, maxPriority), defaultPriority);
         this.minPriority = minPriority;
+        this.maxPriority = maxPriority;
+        mapPriorities();
     }
 
-    private static Set<Integer> getBoundedIntegerSet(final Integer min, final Integer max) {
+    private static int getPriorityCount(final Integer min, final Integer max) {
         if (min > max) {
             throw new QueueInstantiationException("minPriority cannot be greater than maxPriority");
         }
-        return IntStream.range(min, max + 1).boxed().collect(Collectors.toSet());
+        final long count = (long) max - min + 1L;
+        if (count > Integer.MAX_VALUE) {
+            throw new QueueInstantiationException("priority range %d to %d is too wide", min, max);
+        }
+        return (int) count;
     }
 
     @Override
     public int getPriorityIndex(final Integer priority) {
+        if (priority == null || priority < minPriority || priority > maxPriority) {
+            return -1;
+        }
         return priority - minPriority;
     }
+
+    @Override
+    public void offer(final M message, final int priority) {
+        if (priority < minPriority || priority > maxPriority) {
+            throw new QueuePutException("%s is not in the priority set", priority);
+        }
+        offerToBand(message, priority - minPriority);
+    }
 }
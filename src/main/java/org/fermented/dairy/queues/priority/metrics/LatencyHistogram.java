@@ -0,0 +1,104 @@
+package org.fermented.dairy.queues.priority.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Lock-free histogram of non-negative values, bucketed the way HdrHistogram does with one significant hex digit.
+ *
+ * <p>Values below 16 get a bucket each, above that every power of two is split into 16 linear sub-buckets, so a recorded
+ * value is reported to within 1/16 of itself whatever its magnitude. The buckets are a fixed array of 960 counters,
+ * recording is one index calculation and one atomic increment.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK = SUB_BUCKETS - 1;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final double PERCENT = 100.0;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * Creates an empty histogram.
+     */
+    public LatencyHistogram() {
+        //every bucket starts at zero
+    }
+
+    /**
+     * Records a value, negative values are recorded as 0.
+     *
+     * @param value the value
+     */
+    public void record(final long value) {
+        final long recorded = Math.max(value, 0L);
+        counts.incrementAndGet(bucket(recorded));
+        max.accumulate(recorded);
+    }
+
+    /**
+     * Number of values recorded.
+     *
+     * @return The count
+     */
+    public long count() {
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Largest value recorded.
+     *
+     * @return The maximum or 0 if nothing has been recorded
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Finds the value that a percentage of the recorded values are at or below.
+     *
+     * @param percentile percentage between 0 and 100
+     * @return The highest value in the bucket holding the percentile, capped at the maximum, or 0 if nothing has been
+     *          recorded
+     */
+    public long valueAtPercentile(final double percentile) {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        final long target = Math.max(1L, (long) Math.ceil(Math.min(percentile, PERCENT) / PERCENT * total));
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(highestInBucket(i), max());
+            }
+        }
+        return 0L;
+    }
+
+    private static int bucket(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & SUB_BUCKET_MASK);
+    }
+
+    private static long highestInBucket(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowest = (long) (SUB_BUCKETS + (bucket & SUB_BUCKET_MASK)) << shift;
+        return lowest + (1L << shift) - 1L;
+    }
+}
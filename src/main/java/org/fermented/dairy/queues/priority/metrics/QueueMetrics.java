@@ -0,0 +1,97 @@
+package org.fermented.dairy.queues.priority.metrics;
+
+/**
+ * Hooks a queue calls on its hot paths, set with the {@link org.fermented.dairy.queues.priority.PriorityQueue#METRICS_PROPERTY
+ * metrics property}. Without one the queue skips the hooks and the clock reads they need entirely.
+ *
+ * <p>Bands are identified by their index, higher indexes hold higher priorities. The hooks are called on producer and
+ * consumer threads, sometimes holding a queue lock, so they must be thread safe and quick. Every hook does nothing by
+ * default.
+ */
+public interface QueueMetrics {
+
+    /**
+     * Called once by the queue it is set on, before any other hook.
+     *
+     * @param bandCount number of priority bands, band indexes run from 0 to bandCount - 1
+     */
+    default void attached(final int bandCount) {
+        //nothing to size by default
+    }
+
+    /**
+     * A message has been added to a band.
+     *
+     * @param band band index
+     */
+    default void enqueued(final int band) {
+        //not recorded by default
+    }
+
+    /**
+     * A message has been taken off a band by a consumer.
+     *
+     * @param band band index
+     * @param residenceNanos time between the message being offered and taken, or -1 if the band stores messages with a
+     *                       {@link org.fermented.dairy.queues.priority.MessageCodec} and the time is not known
+     */
+    default void dequeued(final int band, final long residenceNanos) {
+        //not recorded by default
+    }
+
+    /**
+     * A pending message has moved to another band, by its {@link org.fermented.dairy.queues.priority.MessageHandle handle}
+     * or by a duplicate offered at a higher priority. It was counted by {@link #enqueued(int)} when it was first added and
+     * is not counted again.
+     *
+     * @param from band index the message left
+     * @param to band index the message joined
+     */
+    default void moved(final int from, final int to) {
+        //not recorded by default
+    }
+
+    /**
+     * A message's time to live ran out before a consumer took it.
+     *
+     * @param band band index
+     */
+    default void expired(final int band) {
+        //not recorded by default
+    }
+
+    /**
+     * A message was discarded by a band's {@link org.fermented.dairy.queues.priority.OverflowPolicy overflow policy},
+     * either the message being offered or one evicted to make room for it.
+     *
+     * @param band band index of the discarded message
+     */
+    default void dropped(final int band) {
+        //not recorded by default
+    }
+
+    /**
+     * A producer has been given the put lock.
+     *
+     * @param waitNanos time spent waiting for it
+     */
+    default void putLockAcquired(final long waitNanos) {
+        //not recorded by default
+    }
+
+    /**
+     * A consumer has been given the poll lock.
+     *
+     * @param waitNanos time spent waiting for it
+     */
+    default void pollLockAcquired(final long waitNanos) {
+        //not recorded by default
+    }
+
+    /**
+     * An offer failed because the put lock or space on the queue did not come within the put timeout.
+     */
+    default void putTimedOut() {
+        //not recorded by default
+    }
+}
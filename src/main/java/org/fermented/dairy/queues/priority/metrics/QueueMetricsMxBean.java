@@ -0,0 +1,52 @@
+package org.fermented.dairy.queues.priority.metrics;
+
+import java.util.Map;
+import javax.management.MXBean;
+
+/**
+ * JMX view of a {@link RecordingQueueMetrics}. Latencies are in nanoseconds and per band figures are keyed by band index,
+ * only bands that have been used are included.
+ */
+@MXBean
+public interface QueueMetricsMxBean {
+
+    long getEnqueued();
+
+    long getDequeued();
+
+    long getExpired();
+
+    long getDropped();
+
+    long getMoved();
+
+    long getPutTimeouts();
+
+    Map<Integer, Long> getEnqueuedByBand();
+
+    Map<Integer, Long> getDequeuedByBand();
+
+    Map<Integer, Long> getExpiredByBand();
+
+    Map<Integer, Long> getDroppedByBand();
+
+    Map<Integer, Long> getMovedInByBand();
+
+    Map<Integer, Long> getMovedOutByBand();
+
+    Map<Integer, Long> getResidenceTime99thPercentileByBand();
+
+    long getResidenceTimeMedian();
+
+    long getResidenceTime99thPercentile();
+
+    long getResidenceTimeMax();
+
+    long getPutLockWait99thPercentile();
+
+    long getPutLockWaitMax();
+
+    long getPollLockWait99thPercentile();
+
+    long getPollLockWaitMax();
+}
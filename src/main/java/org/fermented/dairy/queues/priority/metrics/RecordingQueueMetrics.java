@@ -0,0 +1,303 @@
+package org.fermented.dairy.queues.priority.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.fermented.dairy.queues.priority.exceptions.QueueException;
+
+/**
+ * {@link QueueMetrics} that counts operations and records latency histograms, per band and overall, and can publish them
+ * as a {@link QueueMetricsMxBean}.
+ *
+ * <p>Counters are {@link LongAdder}s and latencies {@link LatencyHistogram}s, so recording never blocks. Each band's
+ * figures are allocated on its first use, so a queue with a wide priority range only pays for the priorities it uses.
+ * An instance can be shared by several queues, such as the shards of a
+ * {@link org.fermented.dairy.queues.priority.ShardedPriorityQueue}, and then records their combined figures.
+ */
+public final class RecordingQueueMetrics implements QueueMetrics, QueueMetricsMxBean {
+    private static final String DOMAIN = "org.fermented.dairy.queues.priority";
+    private static final double MEDIAN = 50.0;
+    private static final double NINETY_NINTH = 99.0;
+
+    private volatile AtomicReferenceArray<BandMetrics> bands = new AtomicReferenceArray<>(0);
+    private final LatencyHistogram residence = new LatencyHistogram();
+    private final LatencyHistogram putLockWait = new LatencyHistogram();
+    private final LatencyHistogram pollLockWait = new LatencyHistogram();
+    private final LongAdder putTimeouts = new LongAdder();
+    private ObjectName objectName;
+
+    /**
+     * Creates metrics with no figures, sized for their bands once attached to a queue.
+     */
+    public RecordingQueueMetrics() {
+        //bands are sized by attached
+    }
+
+    /**
+     * Makes room for the bands of a queue, keeping the figures recorded for any queue attached before it.
+     *
+     * @param bandCount number of priority bands, band indexes run from 0 to bandCount - 1
+     */
+    @Override
+    public synchronized void attached(final int bandCount) {
+        final AtomicReferenceArray<BandMetrics> current = bands;
+        if (bandCount <= current.length()) {
+            return;
+        }
+        final AtomicReferenceArray<BandMetrics> grown = new AtomicReferenceArray<>(bandCount);
+        for (int i = 0; i < current.length(); i++) {
+            grown.set(i, current.get(i));
+        }
+        bands = grown;
+        for (int i = 0; i < current.length(); i++) {
+            grown.compareAndSet(i, null, current.get(i)); //a band first used while the figures were being copied
+        }
+    }
+
+    @Override
+    public void enqueued(final int band) {
+        band(band).enqueued.increment();
+    }
+
+    @Override
+    public void dequeued(final int band, final long residenceNanos) {
+        final BandMetrics metrics = band(band);
+        metrics.dequeued.increment();
+        if (residenceNanos >= 0L) {
+            metrics.residence.record(residenceNanos);
+            residence.record(residenceNanos);
+        }
+    }
+
+    @Override
+    public void expired(final int band) {
+        band(band).expired.increment();
+    }
+
+    @Override
+    public void dropped(final int band) {
+        band(band).dropped.increment();
+    }
+
+    @Override
+    public void moved(final int from, final int to) {
+        band(from).movedOut.increment();
+        band(to).movedIn.increment();
+    }
+
+    @Override
+    public void putLockAcquired(final long waitNanos) {
+        putLockWait.record(waitNanos);
+    }
+
+    @Override
+    public void pollLockAcquired(final long waitNanos) {
+        pollLockWait.record(waitNanos);
+    }
+
+    @Override
+    public void putTimedOut() {
+        putTimeouts.increment();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as
+     * {@code org.fermented.dairy.queues.priority:type=QueueMetrics,name=<name>}.
+     *
+     * @param name name identifying the queue
+     * @return The name the MBean was registered under
+     * @throws QueueException if the metrics are already registered or the name is taken
+     */
+    public synchronized ObjectName register(final String name) {
+        if (objectName != null) {
+            throw new QueueException("The metrics are already registered as %s", objectName);
+        }
+        try {
+            final ObjectName registered = new ObjectName(DOMAIN + ":type=QueueMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, registered);
+            objectName = registered;
+            return registered;
+        } catch (final JMException e) {
+            throw new QueueException(e, "Could not register the metrics of queue %s", name);
+        }
+    }
+
+    /**
+     * Removes the MBean registered by {@link #register(String)}, if any.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (final JMException e) {
+            throw new QueueException(e, "Could not unregister %s", objectName);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    /**
+     * Residence times recorded for one band.
+     *
+     * @param band band index
+     * @return The band's histogram
+     */
+    public LatencyHistogram residence(final int band) {
+        return band(band).residence;
+    }
+
+    @Override
+    public long getEnqueued() {
+        return sum(metrics -> metrics.enqueued.sum());
+    }
+
+    @Override
+    public long getDequeued() {
+        return sum(metrics -> metrics.dequeued.sum());
+    }
+
+    @Override
+    public long getExpired() {
+        return sum(metrics -> metrics.expired.sum());
+    }
+
+    @Override
+    public long getDropped() {
+        return sum(metrics -> metrics.dropped.sum());
+    }
+
+    @Override
+    public long getMoved() {
+        return sum(metrics -> metrics.movedIn.sum());
+    }
+
+    @Override
+    public long getPutTimeouts() {
+        return putTimeouts.sum();
+    }
+
+    @Override
+    public Map<Integer, Long> getEnqueuedByBand() {
+        return byBand(metrics -> metrics.enqueued.sum());
+    }
+
+    @Override
+    public Map<Integer, Long> getDequeuedByBand() {
+        return byBand(metrics -> metrics.dequeued.sum());
+    }
+
+    @Override
+    public Map<Integer, Long> getExpiredByBand() {
+        return byBand(metrics -> metrics.expired.sum());
+    }
+
+    @Override
+    public Map<Integer, Long> getDroppedByBand() {
+        return byBand(metrics -> metrics.dropped.sum());
+    }
+
+    @Override
+    public Map<Integer, Long> getMovedInByBand() {
+        return byBand(metrics -> metrics.movedIn.sum());
+    }
+
+    @Override
+    public Map<Integer, Long> getMovedOutByBand() {
+        return byBand(metrics -> metrics.movedOut.sum());
+    }
+
+    @Override
+    public Map<Integer, Long> getResidenceTime99thPercentileByBand() {
+        return byBand(metrics -> metrics.residence.valueAtPercentile(NINETY_NINTH));
+    }
+
+    @Override
+    public long getResidenceTimeMedian() {
+        return residence.valueAtPercentile(MEDIAN);
+    }
+
+    @Override
+    public long getResidenceTime99thPercentile() {
+        return residence.valueAtPercentile(NINETY_NINTH);
+    }
+
+    @Override
+    public long getResidenceTimeMax() {
+        return residence.max();
+    }
+
+    @Override
+    public long getPutLockWait99thPercentile() {
+        return putLockWait.valueAtPercentile(NINETY_NINTH);
+    }
+
+    @Override
+    public long getPutLockWaitMax() {
+        return putLockWait.max();
+    }
+
+    @Override
+    public long getPollLockWait99thPercentile() {
+        return pollLockWait.valueAtPercentile(NINETY_NINTH);
+    }
+
+    @Override
+    public long getPollLockWaitMax() {
+        return pollLockWait.max();
+    }
+
+    private BandMetrics band(final int band) {
+        final AtomicReferenceArray<BandMetrics> current = bands;
+        final BandMetrics metrics = current.get(band);
+        if (metrics != null) {
+            return metrics;
+        }
+        final BandMetrics created = new BandMetrics();
+        return current.compareAndSet(band, null, created) ? created : current.get(band);
+    }
+
+    private long sum(final ToLongFunction<BandMetrics> figure) {
+        final AtomicReferenceArray<BandMetrics> current = bands;
+        long total = 0L;
+        for (int i = 0; i < current.length(); i++) {
+            final BandMetrics metrics = current.get(i);
+            if (metrics != null) {
+                total += figure.applyAsLong(metrics);
+            }
+        }
+        return total;
+    }
+
+    private Map<Integer, Long> byBand(final Function<BandMetrics, Long> figure) {
+        final AtomicReferenceArray<BandMetrics> current = bands;
+        final Map<Integer, Long> figures = new TreeMap<>();
+        for (int i = 0; i < current.length(); i++) {
+            final BandMetrics metrics = current.get(i);
+            if (metrics != null) {
+                figures.put(i, figure.apply(metrics));
+            }
+        }
+        return figures;
+    }
+
+    /**
+     * Counters and residence times of one band.
+     */
+    private static final class BandMetrics {
+        private final LongAdder enqueued = new LongAdder();
+        private final LongAdder dequeued = new LongAdder();
+        private final LongAdder expired = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder movedIn = new LongAdder();
+        private final LongAdder movedOut = new LongAdder();
+        private final LatencyHistogram residence = new LatencyHistogram();
+    }
+}
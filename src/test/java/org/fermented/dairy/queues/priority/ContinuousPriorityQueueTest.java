@@ -0,0 +1,171 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.fermented.dairy.queues.priority.PriorityQueue.DEAD_LETTER_HANDLER_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.MAX_PUT_WAIT_TIME_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.MAX_QUEUE_DEPTH_PROPERTY;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.fermented.dairy.queues.priority.exceptions.QueueInstantiationException;
+import org.fermented.dairy.queues.priority.exceptions.QueuePutException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class ContinuousPriorityQueueTest {
+
+    @DisplayName("when messages of many distinct priorities are offered then they are polled highest first and in offer order within a priority")
+    @Test
+    void whenMessagesOfManyDistinctPrioritiesAreOfferedThenTheyArePolledHighestFirstAndInOfferOrderWithinAPriority() {
+        final ContinuousPriorityQueue<TestMessage> queue = PriorityQueue.getContinuousQueue(Map.of(MAX_QUEUE_DEPTH_PROPERTY, 200000L));
+        final Random random = new Random(42L);
+        final int messageCount = 100000;
+        for (int i = 0; i < messageCount; i++) {
+            //a narrow range of the low bits gives plenty of ties among widely spread priorities
+            final long priority = random.nextLong() & ~0xFFL | random.nextInt(4);
+            queue.offer(new TestMessage(i, Long.toString(priority)), priority);
+        }
+        long previousPriority = Long.MAX_VALUE;
+        int previousId = -1;
+        boolean ordered = true;
+        for (int i = 0; i < messageCount; i++) {
+            final TestMessage message = queue.pollOrNull();
+            final long priority = Long.parseLong(message.message());
+            ordered &= priority < previousPriority || priority == previousPriority && message.id() > previousId;
+            previousPriority = priority;
+            previousId = message.id();
+        }
+        assertTrue(ordered, "messages should be polled highest priority first, in offer order within a priority");
+        assertTrue(queue.isEmpty(), "queue should be empty");
+    }
+
+    @DisplayName("when the queue is lowest first then the smallest priority is polled first")
+    @Test
+    void whenTheQueueIsLowestFirstThenTheSmallestPriorityIsPolledFirst() {
+        final ContinuousPriorityQueue<TestMessage> queue = PriorityQueue.getContinuousQueue(Map.of(ContinuousPriorityQueue.LOWEST_FIRST_PROPERTY, true));
+        final TestMessage lateMessage = new TestMessage(1, "late");
+        final TestMessage earlyMessage = new TestMessage(2, "early");
+        final TestMessage defaultMessage = new TestMessage(3, "default");
+        final TestMessage overdueMessage = new TestMessage(4, "overdue");
+        queue.offer(lateMessage, 2000L);
+        queue.offerAll(Map.of(1000L, List.of(earlyMessage)));
+        queue.offer(defaultMessage);
+        queue.offerAll(List.of(overdueMessage), Long.MIN_VALUE);
+        final long depth = queue.depth();
+        final long earlyDepth = queue.depth(1000L);
+        final Optional<TestMessage> peeked = queue.peek();
+        assertAll("verify lowest first",
+                () -> assertEquals(4L, depth, "depth is incorrect"),
+                () -> assertEquals(1L, earlyDepth, "depth of the early priority is incorrect"),
+                () -> assertEquals(0L, queue.depth(1500L), "depth of an unused priority is incorrect"),
+                () -> assertEquals(overdueMessage, peeked.orElseThrow(), "overdue message should be peeked"),
+                () -> assertEquals(overdueMessage, queue.poll().orElseThrow(), "overdue message should be first"),
+                () -> assertEquals(defaultMessage, queue.poll(false).orElseThrow(), "default message should be second"),
+                () -> assertEquals(earlyMessage, queue.take(), "early message should be third"),
+                () -> assertEquals(lateMessage, queue.poll(true).orElseThrow(), "late message should be last"),
+                () -> assertEquals(Optional.empty(), queue.peek(), "nothing should be left to peek"));
+    }
+
+    @DisplayName("when a message outlives its time to live then it is removed and dead lettered")
+    @Test
+    void whenAMessageOutlivesItsTimeToLiveThenItIsRemovedAndDeadLettered() throws InterruptedException {
+        final List<TestMessage> deadLetters = new CopyOnWriteArrayList<>();
+        final Consumer<TestMessage> handler = deadLetters::add;
+        final ContinuousPriorityQueue<TestMessage> queue = PriorityQueue.getContinuousQueue(Map.of(DEAD_LETTER_HANDLER_PROPERTY, handler));
+        final TestMessage expiringMessage = new TestMessage(1, "expiring");
+        final TestMessage keptMessage = new TestMessage(2, "kept");
+        final TestMessage takenMessage = new TestMessage(3, "taken");
+        queue.offer(expiringMessage, 10L, Duration.ofMillis(50L));
+        queue.offer(keptMessage, 5L);
+        queue.offer(takenMessage, 20L, Duration.ofMinutes(1L));
+        assertEquals(takenMessage, queue.pollOrNull(), "live timed message should be polled");
+        TimeUnit.MILLISECONDS.sleep(150L);
+        assertAll("verify expiry",
+                () -> assertEquals(1L, queue.depth(), "expired message should not count"),
+                () -> assertEquals(0L, queue.depth(10L), "expired message should not count at its priority"),
+                () -> assertEquals(List.of(expiringMessage), deadLetters, "expired message should be dead lettered"),
+                () -> assertEquals(keptMessage, queue.pollOrNull(), "message without a ttl should be kept"),
+                () -> assertThrows(QueuePutException.class, () -> queue.offer(keptMessage, 1L, Duration.ZERO), "ttl must be positive"));
+    }
+
+    @DisplayName("when the queue is full then offers wait for room or fail after the put timeout")
+    @Test
+    void whenTheQueueIsFullThenOffersWaitForRoomOrFailAfterThePutTimeout() {
+        final ContinuousPriorityQueue<TestMessage> queue = PriorityQueue.getContinuousQueue(Map.of(MAX_QUEUE_DEPTH_PROPERTY, 2L,
+                MAX_PUT_WAIT_TIME_PROPERTY, 2000L));
+        queue.offer(new TestMessage(1, "first"), 1L);
+        queue.offer(new TestMessage(2, "second"), 2L);
+        final TestMessage waitingMessage = new TestMessage(3, "waiting");
+        final TestMessage asyncMessage = new TestMessage(4, "async");
+        final CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> queue.offer(waitingMessage, 3L));
+        final CompletableFuture<Void> async = queue.offerAsync(asyncMessage, 4L);
+        final List<TestMessage> drained = new ArrayList<>();
+        while (drained.size() < 4) {
+            queue.poll(100L).ifPresent(drained::add);
+        }
+        blocked.join();
+        final ContinuousPriorityQueue<TestMessage> timingOut = PriorityQueue.getContinuousQueue(Map.of(MAX_QUEUE_DEPTH_PROPERTY, 1L,
+                MAX_PUT_WAIT_TIME_PROPERTY, 10L));
+        timingOut.offer(new TestMessage(5, "only"));
+        final TestMessage refusedMessage = new TestMessage(6, "refused");
+        assertAll("verify capacity",
+                () -> assertTrue(async.isDone() && !async.isCompletedExceptionally(), "async offer should complete once there is room"),
+                () -> assertEquals(4, drained.size(), "every message should be polled"),
+                () -> assertTrue(drained.contains(waitingMessage) && drained.contains(asyncMessage), "waiting messages should be added"),
+                () -> assertThrows(QueuePutException.class, () -> timingOut.offer(refusedMessage, 1L), "full queue should time out"),
+                () -> assertThrows(QueuePutException.class, () -> timingOut.offer(refusedMessage, null), "priority must not be null"));
+    }
+
+    @DisplayName("when consumers wait on an empty queue then offers wake them")
+    @Test
+    void whenConsumersWaitOnAnEmptyQueueThenOffersWakeThem() {
+        final ContinuousPriorityQueue<TestMessage> queue = PriorityQueue.getContinuousQueue(Map.of());
+        final CompletableFuture<TestMessage> asyncPoll = queue.pollAsync();
+        final CompletableFuture<TestMessage> cancelledPoll = queue.pollAsync();
+        final CompletableFuture<TestMessage> blockedPoll = CompletableFuture.supplyAsync(() -> queue.poll(5000L).orElseThrow());
+        cancelledPoll.cancel(false);
+        queue.offer(new TestMessage(1, "first"), 7L);
+        queue.offerAsync(new TestMessage(2, "second")).join();
+        final TestMessage fromAsync = asyncPoll.orTimeout(5L, TimeUnit.SECONDS).join();
+        final TestMessage fromBlocked = blockedPoll.orTimeout(5L, TimeUnit.SECONDS).join();
+        assertAll("verify waiting consumers",
+                () -> assertTrue(cancelledPoll.isCancelled(), "cancelled poll should stay cancelled"),
+                () -> assertEquals(3, fromAsync.id() + fromBlocked.id(), "each waiting consumer should get one message"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"),
+                () -> assertFalse(queue.poll(10L).isPresent(), "a timed poll of an empty queue should give up"));
+    }
+
+    @DisplayName("when the queue is purged or drained then its room is freed")
+    @Test
+    void whenTheQueueIsPurgedOrDrainedThenItsRoomIsFreed() {
+        final ContinuousPriorityQueue<TestMessage> queue = PriorityQueue.getContinuousQueue(Map.of(MAX_QUEUE_DEPTH_PROPERTY, 3L));
+        for (int i = 0; i < 3; i++) {
+            queue.offer(new TestMessage(i, "message " + i), (long) i);
+        }
+        final List<TestMessage> drained = new ArrayList<>();
+        final int drainedCount = queue.drainTo(drained, 2, 0L);
+        queue.offer(new TestMessage(3, "message 3"), 3L);
+        queue.offer(new TestMessage(4, "message 4"), 4L);
+        final long depthBeforePurge = queue.depth();
+        queue.purge();
+        assertAll("verify purge and drain",
+                () -> assertEquals(2, drainedCount, "drained count is incorrect"),
+                () -> assertEquals(List.of(2, 1), drained.stream().map(TestMessage::id).toList(), "drained messages are incorrect"),
+                () -> assertEquals(3L, depthBeforePurge, "drained room should be reused"),
+                () -> assertTrue(queue.isEmpty(), "purged queue should be empty"),
+                () -> assertThrows(QueueInstantiationException.class,
+                        () -> PriorityQueue.getContinuousQueue(Map.of(MAX_QUEUE_DEPTH_PROPERTY, 0L)), "depth must be positive"));
+    }
+}
@@ -1,23 +1,68 @@
 package org.fermented.dairy.queues.priority;
 
+import static org.fermented.dairy.queues.priority.PriorityQueue.AGING_THRESHOLD_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.BAND_IDLE_TIMEOUT_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.COALESCE_FUNCTION_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.DEAD_LETTER_HANDLER_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.DEDUPLICATION_KEY_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.JOURNAL_DIRECTORY_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.JOURNAL_SEGMENT_SIZE_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.MAX_POLL_WAIT_TIME_PROPERTY;
 import static org.fermented.dairy.queues.priority.PriorityQueue.MAX_PUT_WAIT_TIME_PROPERTY;
 import static org.fermented.dairy.queues.priority.PriorityQueue.MAX_QUEUE_DEPTH_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.MESSAGE_CODEC_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.METRICS_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.OFF_HEAP_SLAB_SIZE_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.OVERFLOW_POLICY_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.PRIORITY_CAPACITIES_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.PRIORITY_WEIGHTS_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.QUEUE_ENGINE_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.RESERVED_CAPACITY_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.SCHEDULING_POLICY_PROPERTY;
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.fermented.dairy.queues.priority.exceptions.QueueInstantiationException;
+import org.fermented.dairy.queues.priority.exceptions.QueuePollException;
 import org.fermented.dairy.queues.priority.exceptions.QueuePutException;
+import org.fermented.dairy.queues.priority.metrics.QueueMetrics;
+import org.fermented.dairy.queues.priority.metrics.RecordingQueueMetrics;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 
 /**
  * Test for DefaultPriorityQueue implementation.
@@ -205,12 +250,14 @@ class DefaultPriorityQueueTest {
             defaultPriorityQueue.offer(urgentMessage1, Priority.URGENT);
             return true;
         });
+        Thread.sleep(50L); //NOSONAR java:S2925: Let the first producer block on the full queue before the second starts
 
         //noinspection resource
         final Future<Boolean> futureResult2 = Executors.newFixedThreadPool(2).submit(() -> {
             defaultPriorityQueue.offer(urgentMessage2, Priority.URGENT);
             return true;
         });
+        Thread.sleep(50L); //NOSONAR java:S2925: Let the second producer block before polling starts
 
         final List<TestMessage> messageList = new LinkedList<>();
         while (!defaultPriorityQueue.isEmpty()) {
@@ -232,4 +279,1200 @@ class DefaultPriorityQueueTest {
         );
         assertEquals(expectedMessageList, messageList, "Messages are missing or in the wrong order");
     }
+
+    @DisplayName("when the queue is full then a blocked put completes as soon as a message is polled")
+    @Test
+    void whenTheQueueIsFullThenABlockedPutCompletesAsSoonAsAMessageIsPolled() throws Exception {
+        defaultPriorityQueue = PriorityQueue.getQueue(
+                Map.of(
+                        MAX_PUT_WAIT_TIME_PROPERTY, 5000L,
+                        MAX_QUEUE_DEPTH_PROPERTY, 1L
+                )
+        );
+        final TestMessage lowMessage = new TestMessage(1, "message low");
+        final TestMessage urgentMessage = new TestMessage(2, "message urgent");
+        defaultPriorityQueue.offer(lowMessage, Priority.LOW);
+
+        //noinspection resource
+        final Future<Boolean> futureResult = Executors.newSingleThreadExecutor().submit(() -> {
+            defaultPriorityQueue.offer(urgentMessage, Priority.URGENT);
+            return true;
+        });
+        Thread.sleep(50L); //NOSONAR java:S2925: Give the offering thread time to block on the full queue
+
+        assertAll("verify blocked put was released by the poll",
+                () -> assertFalse(futureResult.isDone(), "put should be blocked while the queue is full"),
+                () -> assertEquals(lowMessage, defaultPriorityQueue.poll().get(), "low should be polled first"),
+                () -> assertTrue(futureResult.get(1L, TimeUnit.SECONDS), "put should complete after the poll"),
+                () -> assertEquals(urgentMessage, defaultPriorityQueue.poll().get(), "urgent should be polled second"));
+    }
+
+    @DisplayName("when polling an empty queue with wait then a message offered during the wait is returned")
+    @Test
+    void whenPollingAnEmptyQueueWithWaitThenAMessageOfferedDuringTheWaitIsReturned() throws Exception {
+        defaultPriorityQueue = PriorityQueue.getQueue(Map.of(MAX_POLL_WAIT_TIME_PROPERTY, 5000L));
+        final TestMessage message = new TestMessage(1, "message");
+
+        //noinspection resource
+        final Future<Optional<TestMessage>> futureResult = Executors.newSingleThreadExecutor()
+                .submit(() -> defaultPriorityQueue.poll(true));
+        Thread.sleep(50L); //NOSONAR java:S2925: Give the polling thread time to wait on the empty queue
+        defaultPriorityQueue.offer(message);
+
+        assertEquals(message, futureResult.get(1L, TimeUnit.SECONDS).orElseThrow(), "waiting poll should receive the message");
+    }
+
+    @DisplayName("when polling an empty queue with wait then empty optional is returned after the timeout")
+    @Test
+    void whenPollingAnEmptyQueueWithWaitThenEmptyOptionalIsReturnedAfterTheTimeout() {
+        defaultPriorityQueue = PriorityQueue.getQueue(Map.of(MAX_POLL_WAIT_TIME_PROPERTY, 50L));
+        final long start = System.nanoTime();
+        assertAll("verify poll waited and returned empty",
+                () -> assertTrue(defaultPriorityQueue.poll(true).isEmpty(), "poll result should be empty"),
+                () -> assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50L), "poll should have waited"));
+    }
+
+    @DisplayName("when the lock free engine is used then messages are polled in the priority order")
+    @Test
+    void whenTheLockFreeEngineIsUsedThenMessagesArePolledInThePriorityOrder() {
+        defaultPriorityQueue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, QueueEngine.LOCK_FREE));
+        final TestMessage lowestMessage = new TestMessage(1, "message lowest");
+        final TestMessage mediumMessage = new TestMessage(2, "message medium");
+        final TestMessage defaultPriority = new TestMessage(3, "message medium as default");
+        final TestMessage urgentMessage = new TestMessage(4, "message urgent");
+        defaultPriorityQueue.offer(lowestMessage, Priority.LOWEST);
+        defaultPriorityQueue.offer(mediumMessage, Priority.MEDIUM);
+        defaultPriorityQueue.offer(defaultPriority);
+        defaultPriorityQueue.offer(urgentMessage, Priority.URGENT);
+        assertAll("verify message order",
+                () -> assertEquals(4, defaultPriorityQueue.depth(), "message count is incorrect"),
+                () -> assertEquals(urgentMessage, defaultPriorityQueue.peek().get(), "urgent should be peeked first"),
+                () -> assertEquals(urgentMessage, defaultPriorityQueue.poll().get(), "urgent should be first"),
+                () -> assertEquals(mediumMessage, defaultPriorityQueue.poll().get(), "medium with priority should be second"),
+                () -> assertEquals(defaultPriority, defaultPriorityQueue.poll().get(), "default should be in put order with medium"),
+                () -> assertEquals(lowestMessage, defaultPriorityQueue.poll().get(), "lowest should be last"),
+                () -> assertTrue(defaultPriorityQueue.isEmpty(), "queue should be empty"));
+    }
+
+    @DisplayName("when the lock free engine is full then put throws after timeout")
+    @Test
+    void whenTheLockFreeEngineIsFullThenPutThrowsAfterTimeout() {
+        defaultPriorityQueue = PriorityQueue.getQueue(
+                Map.of(
+                        QUEUE_ENGINE_PROPERTY, QueueEngine.LOCK_FREE,
+                        MAX_PUT_WAIT_TIME_PROPERTY, 50L,
+                        MAX_QUEUE_DEPTH_PROPERTY, 1L
+                )
+        );
+        defaultPriorityQueue.offer(new TestMessage(1, "message 1"));
+        final TestMessage secondMessage = new TestMessage(2, "message 2");
+        final QueuePutException exception = assertThrows(QueuePutException.class, () -> defaultPriorityQueue.offer(secondMessage));
+        assertEquals("Put failed after timeout, max queue depth exceeded", exception.getMessage());
+    }
+
+    @DisplayName("when many producers and consumers share the lock free engine then every message is polled exactly once")
+    @Test
+    void whenManyProducersAndConsumersShareTheLockFreeEngineThenEveryMessageIsPolledExactlyOnce() throws Exception {
+        defaultPriorityQueue = PriorityQueue.getQueue(
+                Map.of(
+                        QUEUE_ENGINE_PROPERTY, QueueEngine.LOCK_FREE,
+                        MAX_PUT_WAIT_TIME_PROPERTY, 5000L,
+                        MAX_QUEUE_DEPTH_PROPERTY, 64L,
+                        BAND_IDLE_TIMEOUT_PROPERTY, 0L //release bands as soon as they empty to race producers against it
+                )
+        );
+        final int producers = 4;
+        final int messagesPerProducer = 5000;
+        final Queue<TestMessage> polled = new ConcurrentLinkedQueue<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(producers * 2);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < messagesPerProducer; i++) {
+                    defaultPriorityQueue.offer(new TestMessage(producer * messagesPerProducer + i, "message"),
+                            Priority.values()[i % Priority.values().length]);
+                }
+            }));
+            futures.add(executor.submit(() -> {
+                while (polled.size() < producers * messagesPerProducer) {
+                    defaultPriorityQueue.poll().ifPresent(polled::add);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30L, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        final Set<Integer> ids = new HashSet<>();
+        polled.forEach(message -> ids.add(message.id()));
+        assertAll("verify no message was lost or duplicated",
+                () -> assertEquals(producers * messagesPerProducer, polled.size(), "polled message count is incorrect"),
+                () -> assertEquals(producers * messagesPerProducer, ids.size(), "messages were duplicated"),
+                () -> assertEquals(0, defaultPriorityQueue.depth(), "queue depth should be 0"));
+    }
+
+    @DisplayName("when messages with priorities are put onto an empty queue and polled then the per priority count follows")
+    @Test
+    void whenMessagesWithPrioritiesArePutOntoAnEmptyQueueAndPolledThenThePerPriorityCountFollows() {
+        defaultPriorityQueue.offer(new TestMessage(1, "message low 1"), Priority.LOW);
+        defaultPriorityQueue.offer(new TestMessage(2, "message low 2"), Priority.LOW);
+        defaultPriorityQueue.offer(new TestMessage(3, "message urgent"), Priority.URGENT);
+        assertAll("verify counts before poll",
+                () -> assertEquals(2, defaultPriorityQueue.depth(Priority.LOW), "low count is incorrect"),
+                () -> assertEquals(1, defaultPriorityQueue.depth(Priority.URGENT), "urgent count is incorrect"),
+                () -> assertEquals(0, defaultPriorityQueue.depth(Priority.MEDIUM), "medium count is incorrect"));
+        defaultPriorityQueue.poll();
+        defaultPriorityQueue.poll();
+        assertAll("verify counts after poll",
+                () -> assertEquals(1, defaultPriorityQueue.depth(Priority.LOW), "low count is incorrect"),
+                () -> assertEquals(0, defaultPriorityQueue.depth(Priority.URGENT), "urgent count is incorrect"),
+                () -> assertEquals(1, defaultPriorityQueue.depth(), "message count is incorrect"));
+        defaultPriorityQueue.purge();
+        assertEquals(0, defaultPriorityQueue.depth(Priority.LOW), "low count is incorrect after purge");
+    }
+
+    @DisplayName("when batches are offered then drain returns them in the priority order up to the max elements")
+    @Test
+    void whenBatchesAreOfferedThenDrainReturnsThemInThePriorityOrderUpToTheMaxElements() {
+        final TestMessage lowMessage = new TestMessage(1, "message low");
+        final TestMessage mediumMessage1 = new TestMessage(2, "message medium 1");
+        final TestMessage mediumMessage2 = new TestMessage(3, "message medium 2");
+        final TestMessage urgentMessage = new TestMessage(4, "message urgent");
+        defaultPriorityQueue.offerAll(List.of(mediumMessage1, mediumMessage2), Priority.MEDIUM);
+        defaultPriorityQueue.offerAll(Map.of(
+                Priority.LOW, List.of(lowMessage),
+                Priority.URGENT, List.of(urgentMessage)));
+
+        final List<TestMessage> drained = new ArrayList<>();
+        assertAll("verify drained messages",
+                () -> assertEquals(4, defaultPriorityQueue.depth(), "message count is incorrect"),
+                () -> assertEquals(2, defaultPriorityQueue.depth(Priority.MEDIUM), "medium count is incorrect"),
+                () -> assertEquals(3, defaultPriorityQueue.drainTo(drained, 3), "drained count is incorrect"),
+                () -> assertEquals(List.of(urgentMessage, mediumMessage1, mediumMessage2), drained, "drained order is incorrect"),
+                () -> assertEquals(1, defaultPriorityQueue.drainTo(drained, 3, 10L), "second drain count is incorrect"),
+                () -> assertEquals(lowMessage, drained.get(3), "low should be drained last"),
+                () -> assertTrue(defaultPriorityQueue.isEmpty(), "queue should be empty"));
+    }
+
+    @DisplayName("when a batch is larger than the free space then it is offered as consumers make room")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenABatchIsLargerThanTheFreeSpaceThenItIsOfferedAsConsumersMakeRoom(final QueueEngine engine) throws Exception {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(
+                Map.of(
+                        QUEUE_ENGINE_PROPERTY, engine,
+                        MAX_PUT_WAIT_TIME_PROPERTY, 5000L,
+                        MAX_QUEUE_DEPTH_PROPERTY, 10L
+                )
+        );
+        final List<TestMessage> batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(new TestMessage(i, "message " + i));
+        }
+
+        //noinspection resource
+        final Future<?> futureResult = Executors.newSingleThreadExecutor().submit(() -> queue.offerAll(batch, Priority.HIGH));
+        final List<TestMessage> drained = new ArrayList<>();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+        while (drained.size() < batch.size() && System.nanoTime() < deadline) {
+            queue.drainTo(drained, 7, 100L);
+        }
+        futureResult.get(1L, TimeUnit.SECONDS);
+        assertEquals(batch, drained, "batch should be drained in order with the " + engine + " engine");
+    }
+
+    @DisplayName("when polling or null then messages are returned in the priority order and null once empty")
+    @Test
+    void whenPollingOrNullThenMessagesAreReturnedInThePriorityOrderAndNullOnceEmpty() {
+        final TestMessage lowMessage = new TestMessage(1, "message low");
+        final TestMessage highMessage = new TestMessage(2, "message high");
+        defaultPriorityQueue.offer(lowMessage, Priority.LOW);
+        defaultPriorityQueue.offer(highMessage, Priority.HIGH);
+        assertAll("verify message order",
+                () -> assertEquals(highMessage, defaultPriorityQueue.pollOrNull(), "high should be first"),
+                () -> assertEquals(lowMessage, defaultPriorityQueue.pollOrNull(), "low should be second"),
+                () -> assertNull(defaultPriorityQueue.pollOrNull(), "empty queue should return null"));
+    }
+
+    @DisplayName("when a message codec is set then messages are stored off heap and polled in the priority order")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenAMessageCodecIsSetThenMessagesAreStoredOffHeapAndPolledInThePriorityOrder(final QueueEngine engine) {
+        final List<TestMessage> drained = new ArrayList<>();
+        try (DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(
+                Map.of(
+                        QUEUE_ENGINE_PROPERTY, engine,
+                        MESSAGE_CODEC_PROPERTY, new TestMessageCodec(),
+                        OFF_HEAP_SLAB_SIZE_PROPERTY, 256L
+                )
+        )) {
+            for (int i = 0; i < 1000; i++) {
+                queue.offer(new TestMessage(i, "message " + i), i % 2 == 0 ? Priority.LOW : Priority.HIGH);
+            }
+            queue.drainTo(drained, 1000);
+            assertTrue(queue.isEmpty(), "queue should be empty with the " + engine + " engine");
+        }
+        assertAll("verify off heap queue with the " + engine + " engine",
+                () -> assertEquals(1000, drained.size(), "drained count is incorrect"),
+                () -> assertEquals(new TestMessage(1, "message 1"), drained.get(0), "first high message should be first"),
+                () -> assertEquals(new TestMessage(0, "message 0"), drained.get(500), "first low message should follow the high messages"),
+                () -> assertEquals(new TestMessage(998, "message 998"), drained.get(999), "last low message should be last"));
+    }
+
+    @DisplayName("when a journalled queue is reopened then it continues with the unpolled messages in priority order")
+    @Test
+    void whenAJournalledQueueIsReopenedThenItContinuesWithTheUnpolledMessagesInPriorityOrder(@TempDir final Path journal) {
+        final Map<String, Object> properties = Map.of(
+                JOURNAL_DIRECTORY_PROPERTY, journal,
+                MESSAGE_CODEC_PROPERTY, new TestMessageCodec(),
+                JOURNAL_SEGMENT_SIZE_PROPERTY, 256L
+        );
+        final TestMessage lowMessage = new TestMessage(1, "message low");
+        final TestMessage mediumMessage = new TestMessage(2, "message medium");
+        final TestMessage highMessage = new TestMessage(3, "message high");
+        final TestMessage urgentMessage = new TestMessage(4, "message urgent");
+        try (DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(properties)) {
+            queue.offer(lowMessage, Priority.LOW);
+            queue.offer(mediumMessage, Priority.MEDIUM);
+            queue.offer(urgentMessage, Priority.URGENT);
+            queue.offer(highMessage, Priority.HIGH);
+            queue.poll();
+        }
+        try (DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(properties)) {
+            assertAll("verify recovered queue",
+                    () -> assertEquals(3, queue.depth(), "recovered count is incorrect"),
+                    () -> assertEquals(1, queue.depth(Priority.LOW), "recovered low count is incorrect"),
+                    () -> assertEquals(highMessage, queue.poll().get(), "high should be first"),
+                    () -> assertEquals(mediumMessage, queue.poll().get(), "medium should be second"),
+                    () -> assertEquals(lowMessage, queue.poll().get(), "low should be last"),
+                    () -> assertTrue(queue.isEmpty(), "queue should be empty"));
+        }
+    }
+
+    @DisplayName("when a journal directory holds entries not named like bands then the queue is created without them")
+    @Test
+    void whenAJournalDirectoryHoldsEntriesNotNamedLikeBandsThenTheQueueIsCreatedWithoutThem(@TempDir final Path journal) throws Exception {
+        final Map<String, Object> properties = Map.of(JOURNAL_DIRECTORY_PROPERTY, journal, MESSAGE_CODEC_PROPERTY, new TestMessageCodec());
+        final TestMessage message = new TestMessage(1, "message");
+        try (DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(properties)) {
+            queue.offer(message, Priority.HIGH);
+        }
+        Files.createDirectories(journal.resolve("band-old"));
+        Files.writeString(journal.resolve("band-1"), "not a band");
+        try (DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(properties)) {
+            assertAll("verify stray entries are skipped",
+                    () -> assertEquals(1, queue.depth(), "only the journalled message should be recovered"),
+                    () -> assertEquals(message, queue.poll().get(), "the journalled message should be polled"));
+        }
+    }
+
+    @DisplayName("when producers race to open a journal band then every message is journalled once")
+    @Test
+    void whenProducersRaceToOpenAJournalBandThenEveryMessageIsJournalledOnce(@TempDir final Path journal) throws Exception {
+        final Map<String, Object> properties = Map.of(JOURNAL_DIRECTORY_PROPERTY, journal, MESSAGE_CODEC_PROPERTY, new TestMessageCodec(),
+                QUEUE_ENGINE_PROPERTY, QueueEngine.LOCK_FREE);
+        final int producerCount = 8;
+        final int messagesPerProducer = 50;
+        try (DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(properties)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(producerCount);
+            final CountDownLatch start = new CountDownLatch(1);
+            try {
+                final List<Future<?>> producers = new ArrayList<>();
+                for (int p = 0; p < producerCount; p++) {
+                    final int producer = p;
+                    producers.add(executor.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < messagesPerProducer; i++) {
+                            queue.offer(new TestMessage(producer * messagesPerProducer + i, "message"), Priority.HIGH);
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> producer : producers) {
+                    producer.get(30L, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        try (DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(properties)) {
+            final Set<Integer> ids = new HashSet<>();
+            TestMessage message;
+            while ((message = queue.pollOrNull()) != null) {
+                ids.add(message.id());
+            }
+            assertEquals(producerCount * messagesPerProducer, ids.size(), "every message should be recovered once");
+        }
+    }
+
+    @DisplayName("when a journal directory is set without a codec then the queue cannot be created")
+    @Test
+    void whenAJournalDirectoryIsSetWithoutACodecThenTheQueueCannotBeCreated(@TempDir final Path journal) {
+        final Map<String, Object> properties = Map.of(JOURNAL_DIRECTORY_PROPERTY, journal.toString());
+        assertThrows(QueueInstantiationException.class, () -> PriorityQueue.getQueue(properties));
+    }
+
+    @DisplayName("when weighted round robin is used then lower priorities get their share while higher ones stay busy")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenWeightedRoundRobinIsUsedThenLowerPrioritiesGetTheirShareWhileHigherOnesStayBusy(final QueueEngine engine) {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(
+                Map.of(
+                        QUEUE_ENGINE_PROPERTY, engine,
+                        SCHEDULING_POLICY_PROPERTY, SchedulingPolicy.WEIGHTED_ROUND_ROBIN,
+                        PRIORITY_WEIGHTS_PROPERTY, Map.of(Priority.URGENT, 3, Priority.LOWEST, 1)
+                )
+        );
+        offerAlternately(queue, 6);
+        assertEquals("UUULUUULLLLL", pollPriorities(queue), "poll order is incorrect with the " + engine + " engine");
+    }
+
+    @DisplayName("when deficit round robin is used then fractional weights are honoured")
+    @Test
+    void whenDeficitRoundRobinIsUsedThenFractionalWeightsAreHonoured() {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(
+                Map.of(
+                        SCHEDULING_POLICY_PROPERTY, SchedulingPolicy.DEFICIT_ROUND_ROBIN,
+                        PRIORITY_WEIGHTS_PROPERTY, Map.of(Priority.URGENT, 1.0, Priority.LOWEST, 0.5)
+                )
+        );
+        offerAlternately(queue, 6);
+        assertEquals("UULUULUULLLL", pollPriorities(queue), "poll order is incorrect");
+    }
+
+    @DisplayName("when aging is used then a priority that has waited past the threshold is polled first")
+    @Test
+    void whenAgingIsUsedThenAPriorityThatHasWaitedPastTheThresholdIsPolledFirst() throws InterruptedException {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(
+                Map.of(
+                        SCHEDULING_POLICY_PROPERTY, SchedulingPolicy.AGING,
+                        AGING_THRESHOLD_PROPERTY, 50L
+                )
+        );
+        final TestMessage lowestMessage = new TestMessage(1, "message lowest");
+        final TestMessage urgentMessage1 = new TestMessage(2, "message urgent 1");
+        final TestMessage urgentMessage2 = new TestMessage(3, "message urgent 2");
+        queue.offer(lowestMessage, Priority.LOWEST);
+        queue.offer(urgentMessage1, Priority.URGENT);
+        queue.offer(urgentMessage2, Priority.URGENT);
+        final TestMessage first = queue.poll().get();
+        Thread.sleep(100L); //NOSONAR: java:S2925, let the lowest band age past the threshold
+        assertAll("verify aging order",
+                () -> assertEquals(urgentMessage1, first, "urgent should be first before the lowest has aged"),
+                () -> assertEquals(lowestMessage, queue.poll().get(), "aged lowest should be second"),
+                () -> assertEquals(urgentMessage2, queue.poll().get(), "urgent should be last"));
+    }
+
+    @DisplayName("when several priorities have aged past the threshold then the longest waiting is polled first")
+    @Test
+    void whenSeveralPrioritiesHaveAgedPastTheThresholdThenTheLongestWaitingIsPolledFirst() throws InterruptedException {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(
+                Map.of(
+                        SCHEDULING_POLICY_PROPERTY, SchedulingPolicy.AGING,
+                        AGING_THRESHOLD_PROPERTY, 50L
+                )
+        );
+        queue.offer(new TestMessage(1, "L"), Priority.LOWEST);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(new TestMessage(i, "U"), Priority.URGENT);
+        }
+        final StringBuilder polled = new StringBuilder(queue.poll().get().message());
+        Thread.sleep(30L); //NOSONAR: java:S2925, the low band starts waiting after the lowest
+        queue.offer(new TestMessage(2, "W"), Priority.LOW);
+        polled.append(queue.poll().get().message());
+        Thread.sleep(60L); //NOSONAR: java:S2925, let both bands age past the threshold
+        assertEquals("UULWU", polled + pollPriorities(queue), "the longest waiting band should be polled first once aged");
+    }
+
+    @DisplayName("when a weight is not positive then the queue cannot be created")
+    @Test
+    void whenAWeightIsNotPositiveThenTheQueueCannotBeCreated() {
+        final Map<String, Object> properties = Map.of(
+                SCHEDULING_POLICY_PROPERTY, SchedulingPolicy.WEIGHTED_ROUND_ROBIN,
+                PRIORITY_WEIGHTS_PROPERTY, Map.of(Priority.LOW, 0)
+        );
+        assertThrows(QueueInstantiationException.class, () -> PriorityQueue.getQueue(properties));
+    }
+
+    private static void offerAlternately(final DefaultPriorityQueue<TestMessage> queue, final int pairs) {
+        for (int i = 0; i < pairs; i++) {
+            queue.offer(new TestMessage(i, "U"), Priority.URGENT);
+            queue.offer(new TestMessage(i, "L"), Priority.LOWEST);
+        }
+    }
+
+    private static String pollPriorities(final DefaultPriorityQueue<TestMessage> queue) {
+        final StringBuilder polled = new StringBuilder();
+        TestMessage message;
+        while ((message = queue.pollOrNull()) != null) {
+            polled.append(message.message());
+        }
+        return polled.toString();
+    }
+
+    @DisplayName("when messages outlive their time to live then they are dead lettered and no longer counted or polled")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenMessagesOutliveTheirTimeToLiveThenTheyAreDeadLetteredAndNoLongerCountedOrPolled(final QueueEngine engine) throws InterruptedException {
+        final Queue<TestMessage> deadLetters = new ConcurrentLinkedQueue<>();
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(
+                Map.of(
+                        QUEUE_ENGINE_PROPERTY, engine,
+                        MAX_QUEUE_DEPTH_PROPERTY, 3L,
+                        DEAD_LETTER_HANDLER_PROPERTY, (Consumer<TestMessage>) deadLetters::add
+                )
+        );
+        final TestMessage expiringMessage = new TestMessage(1, "message expiring");
+        final TestMessage lastingMessage = new TestMessage(2, "message lasting");
+        final TestMessage plainMessage = new TestMessage(3, "message plain");
+        queue.offer(expiringMessage, Priority.URGENT, Duration.ofMillis(20L));
+        queue.offer(lastingMessage, Priority.HIGH, Duration.ofMinutes(1L));
+        queue.offer(plainMessage, Priority.LOW);
+        final long depthBeforeExpiry = queue.depth();
+        Thread.sleep(100L); //NOSONAR: java:S2925, let the first message expire
+        //the queue was full, the expiry must have made room for this without waiting
+        queue.offer(new TestMessage(4, "message after expiry"), Priority.LOWEST);
+        assertAll("verify expiry with the " + engine + " engine",
+                () -> assertEquals(3, depthBeforeExpiry, "depth before expiry is incorrect"),
+                () -> assertEquals(List.of(expiringMessage), List.copyOf(deadLetters), "expired message should be dead lettered"),
+                () -> assertEquals(3, queue.depth(), "depth after expiry is incorrect"),
+                () -> assertEquals(0, queue.depth(Priority.URGENT), "urgent count is incorrect"),
+                () -> assertEquals(lastingMessage, queue.peek().get(), "lasting message should be peeked first"),
+                () -> assertEquals(lastingMessage, queue.poll().get(), "lasting message should be first"),
+                () -> assertEquals(plainMessage, queue.poll().get(), "plain message should be second"),
+                () -> assertEquals(4, queue.poll().get().id(), "message after expiry should be last"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"));
+    }
+
+    @DisplayName("when the dead letter handler offers an expired message again then it is back on the queue")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenTheDeadLetterHandlerOffersAnExpiredMessageAgainThenItIsBackOnTheQueue(final QueueEngine engine) throws Exception {
+        final AtomicReference<DefaultPriorityQueue<TestMessage>> queueRef = new AtomicReference<>();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Consumer<TestMessage> retry = message -> {
+            try {
+                //another thread blocks on any lock the expiring thread still holds
+                executor.submit(() -> queueRef.get().offer(message, Priority.LOW)).get(5L, TimeUnit.SECONDS);
+            } catch (final Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine,
+                MAX_PUT_WAIT_TIME_PROPERTY, 100L, DEAD_LETTER_HANDLER_PROPERTY, retry));
+        queueRef.set(queue);
+        final TestMessage expiringMessage = new TestMessage(1, "message expiring");
+        final Optional<TestMessage> polled;
+        try {
+            queue.offer(expiringMessage, Priority.URGENT, Duration.ofMillis(20L));
+            Thread.sleep(100L); //NOSONAR: java:S2925, let the message expire
+            polled = queue.poll();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertAll("verify dead letter retry with the " + engine + " engine",
+                () -> assertEquals(Optional.of(expiringMessage), polled, "expired message should have been offered again"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"));
+    }
+
+    @DisplayName("when a message with a time to live is polled before its deadline then it is delivered and never dead lettered")
+    @Test
+    void whenAMessageWithATimeToLiveIsPolledBeforeItsDeadlineThenItIsDeliveredAndNeverDeadLettered() throws InterruptedException {
+        final Queue<TestMessage> deadLetters = new ConcurrentLinkedQueue<>();
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(
+                Map.of(DEAD_LETTER_HANDLER_PROPERTY, (Consumer<TestMessage>) deadLetters::add));
+        final TestMessage message = new TestMessage(1, "message");
+        queue.offer(message, Priority.HIGH, Duration.ofMillis(50L));
+        final Optional<TestMessage> polled = queue.poll();
+        Thread.sleep(100L); //NOSONAR: java:S2925, let the deadline pass
+        assertAll("verify delivery",
+                () -> assertEquals(message, polled.get(), "message should be delivered"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"),
+                () -> assertTrue(deadLetters.isEmpty(), "message should not be dead lettered"));
+    }
+
+    @DisplayName("when another consumer holds the poll lock past the timeout then peek fails like a poll")
+    @Test
+    void whenAnotherConsumerHoldsThePollLockPastTheTimeoutThenPeekFailsLikeAPoll() throws Exception {
+        final CountDownLatch decoding = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final TestMessageCodec blockingCodec = new TestMessageCodec() {
+            @Override
+            public TestMessage decode(final ByteBuffer bytes) {
+                decoding.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.decode(bytes);
+            }
+        };
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(MESSAGE_CODEC_PROPERTY, blockingCodec,
+                MAX_POLL_WAIT_TIME_PROPERTY, 10L));
+        final TestMessage message = new TestMessage(1, "message");
+        queue.offer(message, Priority.HIGH);
+        final CompletableFuture<Optional<TestMessage>> polled = CompletableFuture.supplyAsync(queue::poll);
+        assertTrue(decoding.await(5, TimeUnit.SECONDS), "the poll should be decoding under the poll lock");
+        final Throwable peekFailure = assertThrows(QueuePollException.class, queue::peek, "peek should not report a busy queue as empty");
+        release.countDown();
+        assertAll("verify peek under a busy poll lock",
+                () -> assertTrue(peekFailure.getMessage().contains("timeout"), "peek should fail on the lock timeout"),
+                () -> assertEquals(Optional.of(message), polled.get(5, TimeUnit.SECONDS), "the poll should still take the message"));
+    }
+
+    @DisplayName("when a time to live is not positive or the queue uses a codec then the offer is rejected")
+    @Test
+    void whenATimeToLiveIsNotPositiveOrTheQueueUsesACodecThenTheOfferIsRejected() {
+        final TestMessage message = new TestMessage(1, "message");
+        final DefaultPriorityQueue<TestMessage> codecQueue = PriorityQueue.getQueue(Map.of(MESSAGE_CODEC_PROPERTY, new TestMessageCodec()));
+        assertAll("verify rejected offers",
+                () -> assertThrows(QueuePutException.class, () -> defaultPriorityQueue.offer(message, Priority.HIGH, Duration.ZERO),
+                        "zero ttl should be rejected"),
+                () -> assertThrows(QueuePutException.class, () -> codecQueue.offer(message, Priority.HIGH, Duration.ofSeconds(1L)),
+                        "codec queue should reject a ttl"),
+                () -> assertEquals(0, defaultPriorityQueue.depth(), "nothing should have been offered"));
+    }
+
+    @DisplayName("when taking from or polling an empty queue with a timeout then the call waits for a message")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenTakingFromOrPollingAnEmptyQueueWithATimeoutThenTheCallWaitsForAMessage(final QueueEngine engine) throws Exception {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine));
+        final TestMessage takenMessage = new TestMessage(1, "message taken");
+        final TestMessage polledMessage = new TestMessage(2, "message polled");
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final Future<TestMessage> taken = executor.submit(queue::take);
+        Thread.sleep(50L); //NOSONAR java:S2925: Give the taking thread time to wait on the empty queue
+        final Future<Optional<TestMessage>> polled = executor.submit(() -> queue.poll(5000L));
+        Thread.sleep(50L); //NOSONAR java:S2925: Give the polling thread time to wait on the empty queue
+        final boolean waited = !taken.isDone() && !polled.isDone();
+        queue.offer(takenMessage, Priority.HIGH);
+        queue.offer(polledMessage, Priority.HIGH);
+        final Set<TestMessage> received = Set.of(taken.get(1L, TimeUnit.SECONDS), polled.get(1L, TimeUnit.SECONDS).orElseThrow());
+        final long start = System.nanoTime();
+        final Optional<TestMessage> timedOut = queue.poll(50L);
+        final long waitedNanos = System.nanoTime() - start;
+        executor.shutdown();
+        assertAll("verify waiting polls with the " + engine + " engine",
+                () -> assertTrue(waited, "take and poll should wait while the queue is empty"),
+                () -> assertEquals(Set.of(takenMessage, polledMessage), received, "waiting calls should receive the messages"),
+                () -> assertTrue(timedOut.isEmpty(), "poll on the empty queue should time out"),
+                () -> assertTrue(waitedNanos >= TimeUnit.MILLISECONDS.toNanos(50L), "poll should have waited for the timeout"));
+    }
+
+    @DisplayName("when polling asynchronously then futures complete in order as messages arrive unless cancelled")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenPollingAsynchronouslyThenFuturesCompleteInOrderAsMessagesArriveUnlessCancelled(final QueueEngine engine) {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine));
+        final TestMessage firstMessage = new TestMessage(1, "message 1");
+        final TestMessage secondMessage = new TestMessage(2, "message 2");
+        final TestMessage thirdMessage = new TestMessage(3, "message 3");
+        final CompletableFuture<TestMessage> first = queue.pollAsync();
+        final CompletableFuture<TestMessage> cancelled = queue.pollAsync();
+        final CompletableFuture<TestMessage> timedOut = queue.pollAsync().orTimeout(10L, TimeUnit.MILLISECONDS);
+        final CompletableFuture<TestMessage> second = queue.pollAsync();
+        final boolean waited = !first.isDone() && !second.isDone();
+        final boolean cancelledWhileWaiting = cancelled.cancel(false);
+        final Throwable timeout = assertThrows(Exception.class, timedOut::join, "poll should time out").getCause();
+        queue.offer(firstMessage, Priority.LOW);
+        queue.offer(secondMessage, Priority.URGENT);
+        queue.offer(thirdMessage, Priority.HIGH);
+        final CompletableFuture<TestMessage> immediate = queue.pollAsync();
+        assertAll("verify async polls with the " + engine + " engine",
+                () -> assertTrue(waited, "futures should wait while the queue is empty"),
+                () -> assertTrue(cancelledWhileWaiting, "waiting future should be cancellable"),
+                () -> assertTrue(timeout instanceof TimeoutException, "timed out future should fail with a timeout"),
+                () -> assertEquals(firstMessage, first.getNow(null), "first future should get the first message"),
+                () -> assertEquals(secondMessage, second.getNow(null), "second future should get the second message"),
+                () -> assertEquals(thirdMessage, immediate.getNow(null), "future should complete straight away on a queue with messages"),
+                () -> assertFalse(first.cancel(false), "completed future should not be cancellable"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"),
+                () -> assertEquals(0, queue.depth(), "depth should be 0"));
+    }
+
+    @DisplayName("when offering asynchronously to a full queue then messages are added in order as space frees up unless cancelled")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenOfferingAsynchronouslyToAFullQueueThenMessagesAreAddedInOrderAsSpaceFreesUpUnlessCancelled(final QueueEngine engine) {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine, MAX_QUEUE_DEPTH_PROPERTY, 1L));
+        final TestMessage firstMessage = new TestMessage(1, "message 1");
+        final TestMessage secondMessage = new TestMessage(2, "message 2");
+        final TestMessage cancelledMessage = new TestMessage(3, "message cancelled");
+        final TestMessage thirdMessage = new TestMessage(4, "message 3");
+        final CompletableFuture<Void> first = queue.offerAsync(firstMessage);
+        final CompletableFuture<Void> second = queue.offerAsync(secondMessage, Priority.LOW);
+        final CompletableFuture<Void> cancelled = queue.offerAsync(cancelledMessage, Priority.URGENT);
+        final CompletableFuture<Void> third = queue.offerAsync(thirdMessage, Priority.URGENT);
+        final boolean firstAdded = first.isDone();
+        final boolean waited = !second.isDone() && !third.isDone();
+        final boolean cancelledWhileWaiting = cancelled.cancel(false);
+        final Optional<TestMessage> polledFirst = queue.poll();
+        final boolean secondAdded = second.isDone() && !third.isDone();
+        final Optional<TestMessage> polledSecond = queue.poll();
+        final boolean thirdAdded = third.isDone();
+        final Optional<TestMessage> polledThird = queue.poll();
+        assertAll("verify async offers with the " + engine + " engine",
+                () -> assertTrue(firstAdded, "offer to a queue with space should complete straight away"),
+                () -> assertTrue(waited, "offers to a full queue should wait"),
+                () -> assertTrue(cancelledWhileWaiting, "waiting offer should be cancellable"),
+                () -> assertEquals(firstMessage, polledFirst.orElseThrow(), "first message should be polled first"),
+                () -> assertTrue(secondAdded, "the first poll should admit only the second message"),
+                () -> assertEquals(secondMessage, polledSecond.orElseThrow(), "second message should be polled second"),
+                () -> assertTrue(thirdAdded, "the second poll should admit the third message"),
+                () -> assertEquals(thirdMessage, polledThird.orElseThrow(), "third message should be polled third"),
+                () -> assertTrue(queue.isEmpty(), "cancelled message should never be added"));
+    }
+
+    @DisplayName("when an async offer is waiting for space then a later blocking offer waits behind it")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenAnAsyncOfferIsWaitingForSpaceThenALaterBlockingOfferWaitsBehindIt(final QueueEngine engine) throws Exception {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine, MAX_QUEUE_DEPTH_PROPERTY, 1L,
+                MAX_PUT_WAIT_TIME_PROPERTY, 5000L));
+        queue.offer(new TestMessage(1, "message 1"));
+        final CompletableFuture<Void> asyncOffer = queue.offerAsync(new TestMessage(2, "message async"));
+        final CompletableFuture<Void> blockingOffer = CompletableFuture.runAsync(() -> queue.offer(new TestMessage(3, "message blocking")));
+        final List<Integer> polled = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            polled.add(queue.poll(5000L).orElseThrow().id());
+        }
+        blockingOffer.get(5, TimeUnit.SECONDS);
+        assertAll("verify offer order with the " + engine + " engine",
+                () -> assertTrue(asyncOffer.isDone(), "async offer should be added"),
+                () -> assertEquals(List.of(1, 2, 3), polled, "the blocking offer should not overtake the async one"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"));
+    }
+
+    @DisplayName("when async polls and offers meet then messages pass between them without either side blocking")
+    @Test
+    void whenAsyncPollsAndOffersMeetThenMessagesPassBetweenThemWithoutEitherSideBlocking() {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(MAX_QUEUE_DEPTH_PROPERTY, 1L));
+        final TestMessage firstMessage = new TestMessage(1, "message 1");
+        final TestMessage secondMessage = new TestMessage(2, "message 2");
+        final CompletableFuture<TestMessage> firstPoll = queue.pollAsync();
+        queue.offer(firstMessage);
+        queue.offer(secondMessage);
+        final CompletableFuture<Void> blockedOffer = queue.offerAsync(new TestMessage(3, "message 3"));
+        final boolean waited = !blockedOffer.isDone();
+        queue.purge();
+        assertAll("verify async hand over",
+                () -> assertEquals(firstMessage, firstPoll.getNow(null), "waiting poll should get the first message"),
+                () -> assertTrue(waited, "offer to the full queue should wait"),
+                () -> assertTrue(blockedOffer.isDone(), "purge should make space for the waiting offer"),
+                () -> assertEquals(3, queue.take().id(), "waiting offer should be on the queue"));
+    }
+
+    @DisplayName("when metrics are enabled then offers, polls, expiries, lock waits and timeouts are recorded per band")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenMetricsAreEnabledThenOffersPollsExpiriesLockWaitsAndTimeoutsAreRecordedPerBand(final QueueEngine engine) throws InterruptedException {
+        final RecordingQueueMetrics metrics = new RecordingQueueMetrics();
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(
+                Map.of(QUEUE_ENGINE_PROPERTY, engine, METRICS_PROPERTY, metrics, MAX_QUEUE_DEPTH_PROPERTY, 3L));
+        final TestMessage highMessage = new TestMessage(1, "message high");
+        queue.offer(highMessage, Priority.HIGH);
+        queue.offer(new TestMessage(2, "message low"), Priority.LOW);
+        queue.offer(new TestMessage(3, "message expiring"), Priority.URGENT, Duration.ofMillis(10L));
+        assertThrows(QueuePutException.class, () -> queue.offer(new TestMessage(4, "message rejected"), Priority.LOW), "queue should be full");
+        Thread.sleep(20L); //NOSONAR: java:S2925, let the urgent message reside and expire
+        final Optional<TestMessage> polled = queue.poll();
+        final int high = Priority.HIGH.ordinal();
+        final int low = Priority.LOW.ordinal();
+        final int urgent = Priority.URGENT.ordinal();
+        assertAll("verify metrics with the " + engine + " engine",
+                () -> assertEquals(highMessage, polled.orElseThrow(), "high message should be polled"),
+                () -> assertEquals(Map.of(high, 1L, low, 1L, urgent, 1L), metrics.getEnqueuedByBand(), "enqueued by band is incorrect"),
+                () -> assertEquals(1L, metrics.getDequeuedByBand().get(high), "high band dequeues are incorrect"),
+                () -> assertEquals(1L, metrics.getExpiredByBand().get(urgent), "urgent band expiries are incorrect"),
+                () -> assertEquals(1L, metrics.getPutTimeouts(), "put timeouts are incorrect"),
+                () -> assertTrue(metrics.residence(high).max() >= TimeUnit.MILLISECONDS.toNanos(20L), "residence time is too short"));
+    }
+
+    @DisplayName("when a handle moves a message then the metrics record a move rather than a second enqueue")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenAHandleMovesAMessageThenTheMetricsRecordAMoveRatherThanASecondEnqueue(final QueueEngine engine) {
+        final RecordingQueueMetrics metrics = new RecordingQueueMetrics();
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine, METRICS_PROPERTY, metrics));
+        final MessageHandle<Priority> handle = queue.offerWithHandle(new TestMessage(1, "message moving"), Priority.LOW);
+        final boolean moved = handle.changePriority(Priority.URGENT);
+        final Optional<TestMessage> polled = queue.poll();
+        final int low = Priority.LOW.ordinal();
+        final int urgent = Priority.URGENT.ordinal();
+        assertAll("verify move metrics with the " + engine + " engine",
+                () -> assertTrue(moved, "message should move"),
+                () -> assertEquals(1, polled.orElseThrow().id(), "moved message should be polled"),
+                () -> assertEquals(1L, metrics.getEnqueued(), "a move should not count as an enqueue"),
+                () -> assertEquals(1L, metrics.getMoved(), "the move should be recorded"),
+                () -> assertEquals(1L, metrics.getMovedOutByBand().get(low), "low band moves out are incorrect"),
+                () -> assertEquals(1L, metrics.getMovedInByBand().get(urgent), "urgent band moves in are incorrect"),
+                () -> assertEquals(1L, metrics.getDequeuedByBand().get(urgent), "urgent band dequeues are incorrect"));
+    }
+
+    @DisplayName("when metrics only implement some hooks then the queue works with the others doing nothing")
+    @Test
+    void whenMetricsOnlyImplementSomeHooksThenTheQueueWorksWithTheOthersDoingNothing() throws InterruptedException {
+        final List<Integer> enqueued = new ArrayList<>();
+        final QueueMetrics metrics = new QueueMetrics() {
+            @Override
+            public void enqueued(final int band) {
+                enqueued.add(band);
+            }
+        };
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(METRICS_PROPERTY, metrics, MAX_QUEUE_DEPTH_PROPERTY, 2L));
+        final TestMessage message = new TestMessage(1, "message");
+        queue.offer(message, Priority.LOW);
+        queue.offer(new TestMessage(2, "message expiring"), Priority.HIGH, Duration.ofMillis(200L));
+        assertThrows(QueuePutException.class, () -> queue.offer(new TestMessage(3, "message rejected")), "queue should be full");
+        Thread.sleep(300L); //NOSONAR: java:S2925, let the second message expire
+        assertAll("verify partial metrics",
+                () -> assertEquals(message, queue.poll(true).orElseThrow(), "message should be polled"),
+                () -> assertEquals(List.of(Priority.LOW.ordinal(), Priority.HIGH.ordinal()), enqueued, "enqueued bands are incorrect"));
+    }
+
+    @DisplayName("when a priority reaches its capacity then only its offers are refused and others still fit")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenAPriorityReachesItsCapacityThenOnlyItsOffersAreRefusedAndOthersStillFit(final QueueEngine engine) {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine,
+                MAX_QUEUE_DEPTH_PROPERTY, 10L, PRIORITY_CAPACITIES_PROPERTY, Map.of(Priority.LOWEST, 2L)));
+        queue.offer(new TestMessage(1, "message lowest 1"), Priority.LOWEST);
+        queue.offer(new TestMessage(2, "message lowest 2"), Priority.LOWEST);
+        final TestMessage refused = new TestMessage(3, "message lowest 3");
+        final TestMessage urgentMessage = new TestMessage(4, "message urgent");
+        assertThrows(QueuePutException.class, () -> queue.offer(refused, Priority.LOWEST), "lowest should be at capacity");
+        queue.offer(urgentMessage, Priority.URGENT);
+        assertEquals(urgentMessage, queue.poll().get(), "urgent message should be polled first");
+        assertEquals(1, queue.poll().get().id(), "first lowest message should be polled next");
+        queue.offer(new TestMessage(5, "message lowest 5"), Priority.LOWEST);
+        assertAll("verify capacity with the " + engine + " engine",
+                () -> assertEquals(2, queue.depth(), "depth is incorrect"),
+                () -> assertEquals(2, queue.depth(Priority.LOWEST), "lowest should be back at capacity"),
+                () -> assertThrows(QueuePutException.class, () -> queue.offer(refused, Priority.LOWEST), "lowest should be full again"));
+    }
+
+    @DisplayName("when capacity is reserved for high priorities then lower ones cannot take it")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenCapacityIsReservedForHighPrioritiesThenLowerOnesCannotTakeIt(final QueueEngine engine) {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine,
+                MAX_QUEUE_DEPTH_PROPERTY, 4L, RESERVED_CAPACITY_PROPERTY, Map.of(Priority.HIGH, 2L)));
+        final List<TestMessage> batch = List.of(new TestMessage(1, "message low 1"), new TestMessage(2, "message low 2"),
+                new TestMessage(3, "message low 3"));
+        assertThrows(QueuePutException.class, () -> queue.offerAll(batch, Priority.LOW), "the reserved room should be kept from low");
+        final long depthAfterLow = queue.depth();
+        queue.offer(new TestMessage(4, "message high"), Priority.HIGH);
+        queue.offer(new TestMessage(5, "message urgent"), Priority.URGENT);
+        assertAll("verify reservation with the " + engine + " engine",
+                () -> assertEquals(2, depthAfterLow, "low should only fill the unreserved room"),
+                () -> assertEquals(4, queue.depth(), "high priorities should fill the reserved room"),
+                () -> assertThrows(QueuePutException.class, () -> queue.offer(new TestMessage(6, "message over"), Priority.URGENT),
+                        "the queue should be full"));
+    }
+
+    @DisplayName("when a full queue uses each overflow policy then offers fail, drop or evict as configured")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenAFullQueueUsesEachOverflowPolicyThenOffersFailDropOrEvictAsConfigured(final QueueEngine engine) {
+        final Queue<TestMessage> deadLetters = new ConcurrentLinkedQueue<>();
+        final RecordingQueueMetrics metrics = new RecordingQueueMetrics();
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(
+                QUEUE_ENGINE_PROPERTY, engine,
+                MAX_QUEUE_DEPTH_PROPERTY, 3L,
+                MAX_PUT_WAIT_TIME_PROPERTY, 60_000L,
+                METRICS_PROPERTY, metrics,
+                DEAD_LETTER_HANDLER_PROPERTY, (Consumer<TestMessage>) deadLetters::add,
+                OVERFLOW_POLICY_PROPERTY, Map.of(
+                        Priority.LOWEST, OverflowPolicy.FAIL,
+                        Priority.LOW, OverflowPolicy.DROP_NEWEST,
+                        Priority.MEDIUM, OverflowPolicy.DROP_OLDEST,
+                        Priority.URGENT, OverflowPolicy.EVICT_LOWEST)));
+        final TestMessage lowMessage = new TestMessage(1, "message low");
+        final TestMessage oldMediumMessage = new TestMessage(2, "message medium old");
+        final TestMessage newMediumMessage = new TestMessage(3, "message medium new");
+        final TestMessage droppedLowMessage = new TestMessage(4, "message low dropped");
+        final TestMessage urgentMessage = new TestMessage(5, "message urgent");
+        queue.offer(lowMessage, Priority.LOW);
+        queue.offer(oldMediumMessage, Priority.MEDIUM);
+        queue.offer(new TestMessage(6, "message medium"), Priority.MEDIUM);
+        //the wait time is a minute so an offer that blocked would hang the test
+        assertThrows(QueuePutException.class, () -> queue.offer(new TestMessage(7, "message lowest"), Priority.LOWEST));
+        queue.offer(droppedLowMessage, Priority.LOW);
+        queue.offer(newMediumMessage, Priority.MEDIUM);
+        queue.offer(urgentMessage, Priority.URGENT);
+        assertAll("verify overflow policies with the " + engine + " engine",
+                () -> assertEquals(List.of(droppedLowMessage, oldMediumMessage, lowMessage), List.copyOf(deadLetters),
+                        "dropped and evicted messages should be dead lettered"),
+                () -> assertEquals(Map.of(Priority.LOW.ordinal(), 2L, Priority.MEDIUM.ordinal(), 1L), droppedByUsedBand(metrics),
+                        "drops by band are incorrect"),
+                () -> assertEquals(3, queue.depth(), "depth is incorrect"),
+                () -> assertEquals(urgentMessage, queue.poll().get(), "urgent message should be first"),
+                () -> assertEquals(6, queue.poll().get().id(), "surviving medium message should be second"),
+                () -> assertEquals(newMediumMessage, queue.poll().get(), "new medium message should be last"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"));
+    }
+
+    @DisplayName("when a priority is at capacity then blocked and async offers complete as soon as one of its messages is polled")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenAPriorityIsAtCapacityThenBlockedAndAsyncOffersCompleteAsSoonAsOneOfItsMessagesIsPolled(final QueueEngine engine) throws Exception {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine,
+                MAX_PUT_WAIT_TIME_PROPERTY, 5000L, PRIORITY_CAPACITIES_PROPERTY, Map.of(Priority.LOW, 1L)));
+        queue.offer(new TestMessage(1, "message low 1"), Priority.LOW);
+        final CompletableFuture<Void> asyncOffer = queue.offerAsync(new TestMessage(2, "message low 2"), Priority.LOW);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> blockedOffer = executor.submit(() -> queue.offer(new TestMessage(3, "message low 3"), Priority.LOW));
+            queue.offer(new TestMessage(4, "message high"), Priority.HIGH);
+            final boolean asyncWaited = !asyncOffer.isDone();
+            assertEquals(4, queue.poll().get().id(), "high message should be polled first");
+            assertEquals(1, queue.poll().get().id(), "first low message should be polled next");
+            asyncOffer.get(5, TimeUnit.SECONDS);
+            assertEquals(2, queue.poll(5000L).get().id(), "async offer should be added once there was room");
+            blockedOffer.get(5, TimeUnit.SECONDS);
+            assertAll("verify waiting offers with the " + engine + " engine",
+                    () -> assertTrue(asyncWaited, "async offer should wait while low is at capacity"),
+                    () -> assertEquals(3, queue.poll(5000L).get().id(), "blocked offer should be added once there was room"),
+                    () -> assertTrue(queue.isEmpty(), "queue should be empty"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @DisplayName("when async offers overflow then the policy decides without waiting")
+    @Test
+    void whenAsyncOffersOverflowThenThePolicyDecidesWithoutWaiting() {
+        final DefaultPriorityQueue<TestMessage> failingQueue = PriorityQueue.getQueue(Map.of(MAX_QUEUE_DEPTH_PROPERTY, 1L,
+                OVERFLOW_POLICY_PROPERTY, OverflowPolicy.FAIL));
+        failingQueue.offer(new TestMessage(1, "message"));
+        final CompletableFuture<Void> failed = failingQueue.offerAsync(new TestMessage(2, "message failed"));
+        final DefaultPriorityQueue<TestMessage> droppingQueue = PriorityQueue.getQueue(Map.of(MAX_QUEUE_DEPTH_PROPERTY, 1L,
+                OVERFLOW_POLICY_PROPERTY, OverflowPolicy.DROP_NEWEST));
+        droppingQueue.offer(new TestMessage(1, "message"));
+        final CompletableFuture<Void> dropped = droppingQueue.offerAsync(new TestMessage(2, "message dropped"));
+        final DefaultPriorityQueue<TestMessage> evictingQueue = PriorityQueue.getQueue(Map.of(MAX_QUEUE_DEPTH_PROPERTY, 1L,
+                OVERFLOW_POLICY_PROPERTY, OverflowPolicy.EVICT_LOWEST));
+        evictingQueue.offer(new TestMessage(1, "message"), Priority.HIGH);
+        final CompletableFuture<Void> evicting = evictingQueue.offerAsync(new TestMessage(2, "message evicting"), Priority.URGENT);
+        final CompletableFuture<Void> waiting = evictingQueue.offerAsync(new TestMessage(3, "message waiting"), Priority.LOW);
+        assertAll("verify async overflow",
+                () -> assertTrue(failed.isCompletedExceptionally(), "fail policy should fail the future"),
+                () -> assertTrue(dropped.isDone() && !dropped.isCompletedExceptionally(), "drop policy should complete the future"),
+                () -> assertEquals(1, droppingQueue.poll().get().id(), "the queued message should be kept"),
+                () -> assertTrue(evicting.isDone(), "evicting a lower message should make room"),
+                () -> assertFalse(waiting.isDone(), "nothing lower to evict so the offer should wait"),
+                () -> assertEquals(2, evictingQueue.poll().get().id(), "evicting message should have replaced the high one"),
+                () -> assertEquals(3, evictingQueue.poll(1000L).get().id(), "waiting message should follow once there is room"));
+    }
+
+    @DisplayName("when limits are misconfigured then the queue cannot be created or used")
+    @Test
+    void whenLimitsAreMisconfiguredThenTheQueueCannotBeCreatedOrUsed() {
+        final Map<String, Object> zeroCapacity = Map.of(PRIORITY_CAPACITIES_PROPERTY, Map.of(Priority.LOW, 0L));
+        final Map<String, Object> negativeReservation = Map.of(RESERVED_CAPACITY_PROPERTY, Map.of(Priority.LOW, -1L));
+        final Map<String, Object> reservedTooMuch = Map.of(MAX_QUEUE_DEPTH_PROPERTY, 4L, RESERVED_CAPACITY_PROPERTY,
+                Map.of(Priority.HIGH, 2L, Priority.URGENT, 2L));
+        final Map<String, Object> wrongPolicy = Map.of(OVERFLOW_POLICY_PROPERTY, "DROP_NEWEST");
+        final Map<String, Object> unknownCapacity = Map.of(PRIORITY_CAPACITIES_PROPERTY, Map.of(42, 1L));
+        final Map<String, Object> unknownPolicy = Map.of(OVERFLOW_POLICY_PROPERTY, Map.of(0, OverflowPolicy.DROP_NEWEST));
+        final Map<String, Object> unknownWeight = Map.of(SCHEDULING_POLICY_PROPERTY, SchedulingPolicy.WEIGHTED_ROUND_ROBIN,
+                PRIORITY_WEIGHTS_PROPERTY, Map.of(11, 2));
+        assertAll("verify misconfigured limits",
+                () -> assertThrows(QueueInstantiationException.class, () -> PriorityQueue.getQueue(zeroCapacity)),
+                () -> assertThrows(QueueInstantiationException.class, () -> PriorityQueue.getQueue(negativeReservation)),
+                () -> assertThrows(QueueInstantiationException.class, () -> PriorityQueue.getQueue(reservedTooMuch)),
+                () -> assertThrows(QueueInstantiationException.class, () -> PriorityQueue.getQueue(wrongPolicy)),
+                () -> assertThrows(QueueInstantiationException.class, () -> PriorityQueue.getQueue(unknownCapacity, 1, 10),
+                        "priority 42 is outside the range"),
+                () -> assertThrows(QueueInstantiationException.class, () -> PriorityQueue.getQueue(unknownPolicy, 1, 10),
+                        "priority 0 is outside the range"),
+                () -> assertThrows(QueueInstantiationException.class, () -> PriorityQueue.getQueue(unknownWeight, 1, 10),
+                        "priority 11 is outside the range"));
+    }
+
+    @DisplayName("when an offer evicts a message then the dead letter handler gets it once the queue's locks are released")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenAnOfferEvictsAMessageThenTheDeadLetterHandlerGetsItOnceTheQueuesLocksAreReleased(final QueueEngine engine) throws Exception {
+        final List<TestMessage> deadLetters = new ArrayList<>();
+        final List<Optional<TestMessage>> polledByHandler = new ArrayList<>();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final AtomicReference<DefaultPriorityQueue<TestMessage>> queueRef = new AtomicReference<>();
+        final Consumer<TestMessage> handler = message -> {
+            deadLetters.add(message);
+            try {
+                //a consumer on another thread needs the poll lock, which an evicting offer holds until it is done
+                polledByHandler.add(executor.submit(() -> queueRef.get().poll()).get(5L, TimeUnit.SECONDS));
+            } catch (final Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine,
+                MAX_QUEUE_DEPTH_PROPERTY, 2L, MAX_POLL_WAIT_TIME_PROPERTY, 100L, OVERFLOW_POLICY_PROPERTY, OverflowPolicy.EVICT_LOWEST,
+                DEAD_LETTER_HANDLER_PROPERTY, handler));
+        queueRef.set(queue);
+        final TestMessage evicted = new TestMessage(1, "message evicted");
+        try {
+            queue.offer(evicted, Priority.LOWEST, Duration.ofMinutes(1L));
+            queue.offer(new TestMessage(2, "message kept"), Priority.LOW);
+            queue.offer(new TestMessage(3, "message evicting"), Priority.URGENT);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertAll("verify eviction with the " + engine + " engine",
+                () -> assertEquals(List.of(evicted), deadLetters, "handler should get the evicted message, not its envelope"),
+                () -> assertEquals(List.of(3), polledByHandler.stream().map(polled -> polled.map(TestMessage::id).orElse(-1)).toList(),
+                        "handler should be able to poll while it runs"),
+                () -> assertEquals(1L, queue.depth(), "kept message should be left"));
+    }
+
+    @DisplayName("when a handle cancels or moves a message then it leaves its band or joins the new one")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenAHandleCancelsOrMovesAMessageThenItLeavesItsBandOrJoinsTheNewOne(final QueueEngine engine) {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine));
+        final MessageHandle<Priority> keptHandle = queue.offerWithHandle(new TestMessage(1, "message kept"), Priority.LOW);
+        final MessageHandle<Priority> cancelledHandle = queue.offerWithHandle(new TestMessage(2, "message cancelled"), Priority.LOW);
+        final MessageHandle<Priority> movedHandle = queue.offerWithHandle(new TestMessage(3, "message moved"), Priority.LOW);
+        queue.offer(new TestMessage(4, "message urgent"), Priority.URGENT);
+        final boolean cancelled = cancelledHandle.cancel();
+        final boolean moved = movedHandle.changePriority(Priority.URGENT);
+        final long depth = queue.depth();
+        final long lowDepth = queue.depth(Priority.LOW);
+        final long urgentDepth = queue.depth(Priority.URGENT);
+        final List<Integer> polled = new ArrayList<>();
+        queue.poll().ifPresent(message -> polled.add(message.id()));
+        queue.poll().ifPresent(message -> polled.add(message.id()));
+        queue.poll().ifPresent(message -> polled.add(message.id()));
+        assertAll("verify handles with the " + engine + " engine",
+                () -> assertTrue(cancelled, "waiting message should be cancelled"),
+                () -> assertFalse(cancelledHandle.cancel(), "message should only be cancelled once"),
+                () -> assertTrue(moved, "waiting message should be moved"),
+                () -> assertEquals(3L, depth, "cancelled message should not count"),
+                () -> assertEquals(1L, lowDepth, "low depth is incorrect"),
+                () -> assertEquals(2L, urgentDepth, "moved message should count at its new priority"),
+                () -> assertEquals(List.of(4, 3, 1), polled, "moved message should follow the urgent one and cancelled one be skipped"),
+                () -> assertFalse(keptHandle.isPending(), "polled message should not be pending"),
+                () -> assertFalse(keptHandle.cancel(), "polled message cannot be cancelled"),
+                () -> assertFalse(movedHandle.changePriority(Priority.LOW), "polled message cannot be moved"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"));
+    }
+
+    @DisplayName("when a handle meets the queue's limits then cancelling frees room and moving respects capacities")
+    @Test
+    void whenAHandleMeetsTheQueuesLimitsThenCancellingFreesRoomAndMovingRespectsCapacities() {
+        final List<TestMessage> deadLetters = new ArrayList<>();
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(MAX_QUEUE_DEPTH_PROPERTY, 2L,
+                PRIORITY_CAPACITIES_PROPERTY, Map.of(Priority.URGENT, 1L), OVERFLOW_POLICY_PROPERTY, OverflowPolicy.DROP_NEWEST,
+                DEAD_LETTER_HANDLER_PROPERTY, (Consumer<TestMessage>) deadLetters::add));
+        queue.offer(new TestMessage(1, "message urgent"), Priority.URGENT);
+        final MessageHandle<Priority> handle = queue.offerWithHandle(new TestMessage(2, "message low"), Priority.LOW);
+        final TestMessage droppedMessage = new TestMessage(3, "message dropped");
+        final MessageHandle<Priority> droppedHandle = queue.offerWithHandle(droppedMessage, Priority.HIGH);
+        final boolean cancelled = handle.cancel();
+        final MessageHandle<Priority> movingHandle = queue.offerWithHandle(new TestMessage(4, "message moving"), Priority.LOW);
+        final IntegerRangePriorityQueue<TestMessage> rangeQueue = PriorityQueue.getQueue(Map.of(MESSAGE_CODEC_PROPERTY, new TestMessageCodec()), 1, 10);
+        final TestMessage rangeMessage = new TestMessage(5, "message off heap");
+        assertAll("verify handle limits",
+                () -> assertFalse(droppedHandle.isPending(), "dropped message should not be pending"),
+                () -> assertEquals(List.of(droppedMessage), deadLetters, "dead letter handler should get the message, not its envelope"),
+                () -> assertTrue(cancelled, "message should be cancelled"),
+                () -> assertEquals(2L, queue.depth(), "cancelled message should make room"),
+                () -> assertTrue(movingHandle.isPending(), "message should be waiting"),
+                () -> assertThrows(QueuePutException.class, () -> movingHandle.changePriority(Priority.URGENT), "urgent band is full"),
+                () -> assertEquals(1L, queue.depth(Priority.LOW), "refused move should leave the message in place"),
+                () -> assertTrue(movingHandle.changePriority(Priority.LOW), "moving to the same priority changes nothing"),
+                () -> assertThrows(QueuePutException.class, () -> rangeQueue.offerWithHandle(rangeMessage, 5), "codec cannot store handles"));
+    }
+
+    @DisplayName("when consumers poll above a floor or within a range then the other bands are left alone")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenConsumersPollAboveAFloorOrWithinARangeThenTheOtherBandsAreLeftAlone(final QueueEngine engine) {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine));
+        queue.offer(new TestMessage(1, "message lowest"), Priority.LOWEST);
+        queue.offer(new TestMessage(2, "message medium"), Priority.MEDIUM);
+        queue.offer(new TestMessage(3, "message high"), Priority.HIGH);
+        queue.offer(new TestMessage(4, "message urgent"), Priority.URGENT);
+        queue.offer(new TestMessage(5, "message expiring"), Priority.LOW, Duration.ofMinutes(1L));
+        final Optional<TestMessage> aboveHigh = queue.pollAtLeast(Priority.HIGH);
+        final Optional<TestMessage> lowToMedium = queue.pollBetween(Priority.LOW, Priority.MEDIUM);
+        final Optional<TestMessage> nextLowToMedium = queue.pollBetween(Priority.LOW, Priority.MEDIUM);
+        final Optional<TestMessage> emptyRange = queue.pollBetween(Priority.LOW, Priority.MEDIUM);
+        final Optional<TestMessage> nextAboveHigh = queue.pollAtLeast(Priority.HIGH);
+        assertAll("verify floors and ranges with the " + engine + " engine",
+                () -> assertEquals(4, aboveHigh.orElseThrow().id(), "highest message above the floor should be taken"),
+                () -> assertEquals(2, lowToMedium.orElseThrow().id(), "highest message in the range should be taken"),
+                () -> assertEquals(5, nextLowToMedium.orElseThrow().id(), "timed message in the range should be taken"),
+                () -> assertTrue(emptyRange.isEmpty(), "range should be empty"),
+                () -> assertEquals(3, nextAboveHigh.orElseThrow().id(), "next message above the floor should be taken"),
+                () -> assertTrue(queue.pollAtLeast(Priority.HIGH).isEmpty(), "nothing should be left above the floor"),
+                () -> assertEquals(1L, queue.depth(), "message below the range should be left"),
+                () -> assertEquals(1, queue.poll().orElseThrow().id(), "lowest message should still be there"),
+                () -> assertThrows(QueuePollException.class, () -> queue.pollBetween(Priority.HIGH, Priority.LOW), "range is empty"));
+    }
+
+    @DisplayName("when consumers poll with a filter then only accepted band heads are taken")
+    @Test
+    void whenConsumersPollWithAFilterThenOnlyAcceptedBandHeadsAreTaken() {
+        final List<Map<String, Object>> configurations = List.of(Map.of(QUEUE_ENGINE_PROPERTY, QueueEngine.LOCKING),
+                Map.of(QUEUE_ENGINE_PROPERTY, QueueEngine.LOCK_FREE), Map.of(MESSAGE_CODEC_PROPERTY, new TestMessageCodec()));
+        for (Map<String, Object> configuration : configurations) {
+            final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(configuration);
+            queue.offer(new TestMessage(1, "odd urgent"), Priority.URGENT);
+            queue.offer(new TestMessage(2, "even urgent"), Priority.URGENT);
+            queue.offer(new TestMessage(4, "even high"), Priority.HIGH);
+            queue.offer(new TestMessage(6, "even low"), Priority.LOW);
+            final Optional<TestMessage> firstEven = queue.pollIf(message -> message.id() % 2 == 0);
+            final Optional<TestMessage> secondEven = queue.pollIf(message -> message.id() % 2 == 0);
+            final Optional<TestMessage> firstOdd = queue.pollIf(message -> message.id() % 2 == 1);
+            final Optional<TestMessage> noneOver = queue.pollIf(message -> message.id() > 10);
+            assertAll("verify filtered polls with " + configuration,
+                    () -> assertEquals(4, firstEven.orElseThrow().id(), "urgent head is odd so the high one should be taken"),
+                    () -> assertEquals(6, secondEven.orElseThrow().id(), "messages behind a rejected head should wait"),
+                    () -> assertEquals(1, firstOdd.orElseThrow().id(), "odd urgent message should be taken"),
+                    () -> assertTrue(noneOver.isEmpty(), "no head should be accepted"),
+                    () -> assertEquals(2, queue.poll().orElseThrow().id(), "rejected message should be left"),
+                    () -> assertTrue(queue.isEmpty(), "queue should be empty"));
+        }
+    }
+
+    @DisplayName("when a message with a pending key is offered then it is folded into the pending message at the higher priority")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenAMessageWithAPendingKeyIsOfferedThenItIsFoldedIntoThePendingMessageAtTheHigherPriority(final QueueEngine engine) {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine,
+                DEDUPLICATION_KEY_PROPERTY, (Function<TestMessage, Integer>) TestMessage::id));
+        final TestMessage firstMessage = new TestMessage(1, "first");
+        final TestMessage otherMessage = new TestMessage(2, "other");
+        queue.offer(firstMessage, Priority.LOW);
+        queue.offer(new TestMessage(1, "raised"), Priority.HIGH);
+        queue.offer(otherMessage, Priority.MEDIUM);
+        queue.offer(new TestMessage(1, "lowered"), Priority.LOWEST);
+        queue.offer(new TestMessage(2, "timed"), Priority.MEDIUM, Duration.ofMinutes(1L));
+        final long depth = queue.depth();
+        final long highDepth = queue.depth(Priority.HIGH);
+        final long lowDepth = queue.depth(Priority.LOW);
+        final TestMessage first = queue.poll().orElseThrow();
+        final TestMessage second = queue.poll().orElseThrow();
+        queue.offer(new TestMessage(1, "again"), Priority.LOW);
+        assertAll("verify deduplication with the " + engine + " engine",
+                () -> assertEquals(2L, depth, "duplicates should not add to the depth"),
+                () -> assertEquals(1L, highDepth, "duplicate should raise the pending message's priority"),
+                () -> assertEquals(0L, lowDepth, "raised message should leave its old priority"),
+                () -> assertEquals(firstMessage, first, "pending message should be kept at the higher priority"),
+                () -> assertEquals(otherMessage, second, "pending message should be kept"),
+                () -> assertEquals(1L, queue.depth(), "key should be free again once its message is polled"),
+                () -> assertEquals("again", queue.poll().orElseThrow().message(), "message offered again should be added"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"));
+    }
+
+    @DisplayName("when a coalesce function is set then duplicates are merged into the pending message")
+    @Test
+    void whenACoalesceFunctionIsSetThenDuplicatesAreMergedIntoThePendingMessage() {
+        final BinaryOperator<TestMessage> merge = (pending, offered) -> new TestMessage(pending.id(), pending.message() + offered.message());
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(
+                DEDUPLICATION_KEY_PROPERTY, (Function<TestMessage, Integer>) TestMessage::id, COALESCE_FUNCTION_PROPERTY, merge));
+        queue.offer(new TestMessage(1, "a"), Priority.LOW);
+        final CompletableFuture<Void> async = queue.offerAsync(new TestMessage(1, "b"), Priority.MEDIUM);
+        queue.offer(new TestMessage(1, "c"), Priority.LOWEST, Duration.ofMinutes(1L));
+        queue.offerAll(Map.of(Priority.LOW, List.of(new TestMessage(1, "d"), new TestMessage(2, "x"))));
+        queue.offerAll(List.of(new TestMessage(2, "y")), Priority.HIGH);
+        final long depth = queue.depth();
+        final TestMessage first = queue.poll().orElseThrow();
+        final TestMessage second = queue.poll().orElseThrow();
+        final DefaultPriorityQueue<TestMessage> nullKeys = PriorityQueue.getQueue(Map.of(
+                DEDUPLICATION_KEY_PROPERTY, (Function<TestMessage, String>) TestMessage::message));
+        final TestMessage keyless = new TestMessage(3, null);
+        assertAll("verify coalescing",
+                () -> assertTrue(async.isDone() && !async.isCompletedExceptionally(), "coalesced async offer should complete"),
+                () -> assertEquals(2L, depth, "duplicates should not add to the depth"),
+                () -> assertEquals(new TestMessage(2, "xy"), first, "merged message should move to the higher priority"),
+                () -> assertEquals(new TestMessage(1, "abcd"), second, "duplicates should be merged in offer order"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"),
+                () -> assertThrows(QueuePutException.class, () -> queue.offerWithHandle(keyless, Priority.LOW), "handles are not deduplicated"),
+                () -> assertThrows(QueuePutException.class, () -> nullKeys.offer(keyless), "keys must not be null"),
+                () -> assertThrows(QueueInstantiationException.class,
+                        () -> PriorityQueue.getQueue(Map.of(COALESCE_FUNCTION_PROPERTY, merge)), "coalescing needs a key"),
+                () -> assertThrows(QueueInstantiationException.class, () -> PriorityQueue.getQueue(Map.of(MESSAGE_CODEC_PROPERTY, new TestMessageCodec(),
+                        DEDUPLICATION_KEY_PROPERTY, (Function<TestMessage, Integer>) TestMessage::id)), "codecs cannot hold envelopes"));
+    }
+
+    @DisplayName("when a duplicate is merged into its own band then the pending message keeps its place in line")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenADuplicateIsMergedIntoItsOwnBandThenThePendingMessageKeepsItsPlaceInLine(final QueueEngine engine) {
+        final BinaryOperator<TestMessage> merge = (pending, offered) -> new TestMessage(pending.id(), pending.message() + offered.message());
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine, MAX_QUEUE_DEPTH_PROPERTY, 2L,
+                DEDUPLICATION_KEY_PROPERTY, (Function<TestMessage, Integer>) TestMessage::id, COALESCE_FUNCTION_PROPERTY, merge));
+        queue.offer(new TestMessage(1, "a"), Priority.LOW);
+        queue.offer(new TestMessage(2, "x"), Priority.LOW);
+        for (int i = 0; i < 10; i++) {
+            //merges in place leave no tombstones behind, so a full queue keeps taking them
+            queue.offer(new TestMessage(1, "b"), Priority.LOW);
+        }
+        assertAll("verify merges in place with the " + engine + " engine",
+                () -> assertEquals(2L, queue.depth(), "merges should not add to the depth"),
+                () -> assertEquals(new TestMessage(1, "abbbbbbbbbb"), queue.poll().orElseThrow(), "merged message should keep its place"),
+                () -> assertEquals(new TestMessage(2, "x"), queue.poll().orElseThrow(), "message behind it should stay behind it"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"));
+    }
+
+    @DisplayName("when producers offer duplicates concurrently then each key is pending at most once")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenProducersOfferDuplicatesConcurrentlyThenEachKeyIsPendingAtMostOnce(final QueueEngine engine) throws Exception {
+        final int keyCount = 16;
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(QUEUE_ENGINE_PROPERTY, engine,
+                MAX_PUT_WAIT_TIME_PROPERTY, 10000L, MAX_POLL_WAIT_TIME_PROPERTY, 10000L,
+                DEDUPLICATION_KEY_PROPERTY, (Function<TestMessage, Integer>) TestMessage::id));
+        final AtomicLong deepest = new AtomicLong();
+        final ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            final List<Future<?>> producers = new ArrayList<>();
+            for (int p = 0; p < 4; p++) {
+                final Priority priority = Priority.values()[p];
+                producers.add(executor.submit(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        queue.offer(new TestMessage(i % keyCount, "duplicate"), priority);
+                        deepest.accumulateAndGet(queue.depth(), Math::max);
+                    }
+                }));
+            }
+            final Future<?> consumer = executor.submit(() -> {
+                while (!producers.stream().allMatch(Future::isDone)) {
+                    queue.poll(1000L); //producers signalling or trimming tombstones hold the poll lock briefly
+                }
+            });
+            for (Future<?> producer : producers) {
+                producer.get(30L, TimeUnit.SECONDS);
+            }
+            consumer.get(30L, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        final Set<Integer> keys = new HashSet<>();
+        TestMessage message;
+        while ((message = queue.pollOrNull()) != null) {
+            keys.add(message.id());
+        }
+        final long remaining = keys.size();
+        assertAll("verify concurrent deduplication with the " + engine + " engine",
+                //the message the consumer is taking stays counted until it is handed over, by which time its key may be pending again
+                () -> assertTrue(deepest.get() <= keyCount + 1L, "depth should never exceed the number of keys and the message being taken"),
+                () -> assertTrue(remaining <= keyCount, "each key should be left at most once"),
+                () -> assertTrue(queue.isEmpty(), "queue should be drained"),
+                () -> assertEquals(0L, queue.depth(), "depth should be back to zero"));
+    }
+
+    private static Map<Integer, Long> droppedByUsedBand(final RecordingQueueMetrics metrics) {
+        final Map<Integer, Long> dropped = new HashMap<>(metrics.getDroppedByBand());
+        dropped.values().removeIf(count -> count == 0L);
+        return dropped;
+    }
 }
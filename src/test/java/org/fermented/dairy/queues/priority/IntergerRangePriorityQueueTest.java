@@ -1,12 +1,22 @@
 package org.fermented.dairy.queues.priority;
 
+import static org.fermented.dairy.queues.priority.PriorityQueue.BAND_IDLE_TIMEOUT_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.QUEUE_ENGINE_PROPERTY;
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.List;
+import java.util.Map;
+import org.fermented.dairy.queues.priority.exceptions.QueuePollException;
+import org.fermented.dairy.queues.priority.exceptions.QueuePutException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 
 class IntergerRangePriorityQueueTest {
 
@@ -137,4 +147,133 @@ class IntergerRangePriorityQueueTest {
         );
     }
 
-}
\ No newline at end of file
+    @DisplayName("when messages are put onto sparse priorities of a wide range then they should be polled in the priority order")
+    @Test
+    void whenMessagesArePutOntoSparsePrioritiesOfAWideRangeThenTheyShouldBePolledInThePriorityOrder() {
+        priorityQueue = PriorityQueue.getQueue(0, 5000);
+        final TestMessage lowestMessage = new TestMessage(1, "message 0");
+        final TestMessage lowMessage = new TestMessage(2, "message 63");
+        final TestMessage mediumMessage = new TestMessage(3, "message 64");
+        final TestMessage highMessage = new TestMessage(4, "message 4096");
+        final TestMessage urgentMessage = new TestMessage(5, "message 5000");
+        priorityQueue.offer(mediumMessage, 64);
+        priorityQueue.offer(lowestMessage, 0);
+        priorityQueue.offer(urgentMessage, 5000);
+        priorityQueue.offer(lowMessage, 63);
+        priorityQueue.offer(highMessage, 4096);
+        assertAll("verify message order",
+                () -> assertFalse(priorityQueue.isEmpty(), "queue should not be empty"),
+                () -> assertEquals(urgentMessage, priorityQueue.peek().get(), "5000 should be peeked first"),
+                () -> assertEquals(urgentMessage, priorityQueue.poll().get(), "5000 should be first"),
+                () -> assertEquals(highMessage, priorityQueue.poll().get(), "4096 should be second"),
+                () -> assertEquals(mediumMessage, priorityQueue.poll().get(), "64 should be third"),
+                () -> assertEquals(lowMessage, priorityQueue.poll().get(), "63 should be fourth"),
+                () -> assertEquals(lowestMessage, priorityQueue.poll().get(), "0 should be last"),
+                () -> assertTrue(priorityQueue.isEmpty(), "queue should be empty"),
+                () -> assertTrue(priorityQueue.peek().isEmpty(), "peek result should be empty"));
+    }
+
+    @DisplayName("when messages with priorities are put onto an empty queue and polled then the per priority count follows")
+    @Test
+    void whenMessagesWithPrioritiesArePutOntoAnEmptyQueueAndPolledThenThePerPriorityCountFollows() {
+        priorityQueue.offer(new TestMessage(1, "message low 1"), Priority.LOW.ordinal());
+        priorityQueue.offer(new TestMessage(2, "message low 2"), Priority.LOW.ordinal());
+        priorityQueue.offer(new TestMessage(3, "message urgent"), Priority.URGENT.ordinal());
+        assertAll("verify counts before poll",
+                () -> assertEquals(2, priorityQueue.depth(Priority.LOW.ordinal()), "low count is incorrect"),
+                () -> assertEquals(1, priorityQueue.depth(Priority.URGENT.ordinal()), "urgent count is incorrect"),
+                () -> assertEquals(0, priorityQueue.depth(Priority.MEDIUM.ordinal()), "medium count is incorrect"));
+        priorityQueue.poll();
+        priorityQueue.poll();
+        assertAll("verify counts after poll",
+                () -> assertEquals(1, priorityQueue.depth(Priority.LOW.ordinal()), "low count is incorrect"),
+                () -> assertEquals(0, priorityQueue.depth(Priority.URGENT.ordinal()), "urgent count is incorrect"),
+                () -> assertEquals(1, priorityQueue.depth(), "message count is incorrect"));
+        priorityQueue.purge();
+        assertEquals(0, priorityQueue.depth(Priority.LOW.ordinal()), "low count is incorrect after purge");
+    }
+
+    @DisplayName("when a batch contains a priority outside the range then nothing is offered")
+    @Test
+    void whenABatchContainsAPriorityOutsideTheRangeThenNothingIsOffered() {
+        final Map<Integer, List<TestMessage>> batch = Map.of(
+                1, List.of(new TestMessage(1, "message 1")),
+                7, List.of(new TestMessage(2, "message 2")));
+        assertThrows(QueuePutException.class, () -> priorityQueue.offerAll(batch));
+        assertEquals(0, priorityQueue.depth(), "no message should have been offered");
+    }
+
+    @DisplayName("when priorities outside the range are offered then the put is rejected for both the boxed and primitive priority")
+    @Test
+    void whenPrioritiesOutsideTheRangeAreOfferedThenThePutIsRejectedForBothTheBoxedAndPrimitivePriority() {
+        final TestMessage message = new TestMessage(1, "message 1");
+        final Integer boxedPriority = 5;
+        assertAll("verify out of range puts",
+                () -> assertThrows(QueuePutException.class, () -> priorityQueue.offer(message, 5), "above range should fail"),
+                () -> assertThrows(QueuePutException.class, () -> priorityQueue.offer(message, -1), "below range should fail"),
+                () -> assertThrows(QueuePutException.class, () -> priorityQueue.offer(message, boxedPriority), "boxed above range should fail"),
+                () -> assertThrows(QueuePutException.class, () -> priorityQueue.offer(message, (Integer) null), "null priority should fail"),
+                () -> assertEquals(0, priorityQueue.depth(), "no message should have been offered"));
+    }
+
+    @DisplayName("when the depth of a priority outside the range is asked for then it is rejected like a poll")
+    @Test
+    void whenTheDepthOfAPriorityOutsideTheRangeIsAskedForThenItIsRejectedLikeAPoll() {
+        assertAll("verify out of range depths",
+                () -> assertThrows(QueuePollException.class, () -> priorityQueue.depth(5), "above range should fail"),
+                () -> assertThrows(QueuePollException.class, () -> priorityQueue.depth(-1), "below range should fail"));
+    }
+
+    @DisplayName("when a queue is created with a very wide range then both ends of the range are usable")
+    @Test
+    void whenAQueueIsCreatedWithAVeryWideRangeThenBothEndsOfTheRangeAreUsable() {
+        priorityQueue = PriorityQueue.getQueue(-50_000, 50_000);
+        final TestMessage lowestMessage = new TestMessage(1, "message -50000");
+        final TestMessage urgentMessage = new TestMessage(2, "message 50000");
+        priorityQueue.offer(lowestMessage, -50_000);
+        priorityQueue.offer(urgentMessage, 50_000);
+        assertAll("verify message order",
+                () -> assertEquals(1, priorityQueue.depth(-50_000), "-50000 count is incorrect"),
+                () -> assertEquals(urgentMessage, priorityQueue.poll().get(), "50000 should be first"),
+                () -> assertEquals(lowestMessage, priorityQueue.poll().get(), "-50000 should be last"));
+    }
+
+    @DisplayName("when a wide range is only partly used then bands exist only for the priorities in use and are released once idle")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenAWideRangeIsOnlyPartlyUsedThenBandsExistOnlyForThePrioritiesInUseAndAreReleasedOnceIdle(final QueueEngine engine) {
+        final IntegerRangePriorityQueue<TestMessage> queue = PriorityQueue.getQueue(
+                Map.of(QUEUE_ENGINE_PROPERTY, engine, BAND_IDLE_TIMEOUT_PROPERTY, 0L), 0, 100_000);
+        final AbstractArrayPriorityQueue<?, ?> bands = (AbstractArrayPriorityQueue<?, ?>) queue;
+        final TestMessage lowMessage = new TestMessage(1, "message 10");
+        final TestMessage highMessage = new TestMessage(2, "message 90000");
+        final int createdBands = bands.allocatedBands();
+        queue.offer(lowMessage, 10);
+        queue.offer(highMessage, 90_000);
+        final int usedBands = bands.allocatedBands();
+        final TestMessage first = queue.poll().get();
+        final TestMessage second = queue.poll().get();
+        final int idleBands = bands.allocatedBands();
+        queue.offer(lowMessage, 10);
+        assertAll("verify band allocation with the " + engine + " engine",
+                () -> assertEquals(0, createdBands, "no band should exist before the first offer"),
+                () -> assertEquals(2, usedBands, "only the offered priorities should have bands"),
+                () -> assertEquals(highMessage, first, "90000 should be first"),
+                () -> assertEquals(lowMessage, second, "10 should be second"),
+                () -> assertEquals(0, idleBands, "idle bands should have been released"),
+                () -> assertEquals(1, queue.depth(10), "a released band should be recreated on offer"),
+                () -> assertEquals(lowMessage, queue.poll().get(), "the recreated band should be polled"));
+    }
+
+    @DisplayName("when a queue is purged then its bands are released")
+    @Test
+    void whenAQueueIsPurgedThenItsBandsAreReleased() {
+        priorityQueue.offer(new TestMessage(1, "message 1"), 1);
+        priorityQueue.offer(new TestMessage(2, "message 2"), 3);
+        priorityQueue.purge();
+        assertAll("verify purge",
+                () -> assertEquals(0, ((AbstractArrayPriorityQueue<?, ?>) priorityQueue).allocatedBands(), "bands should be released"),
+                () -> assertEquals(0, priorityQueue.depth(3), "3 count is incorrect"),
+                () -> assertTrue(priorityQueue.isEmpty(), "queue should be empty"));
+    }
+}
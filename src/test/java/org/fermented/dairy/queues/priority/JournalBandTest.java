@@ -0,0 +1,129 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.fermented.dairy.queues.priority.exceptions.QueueJournalException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalBandTest {
+
+    @TempDir
+    Path directory;
+
+    @DisplayName("when messages span several segments then they are polled in order and read segments are deleted")
+    @Test
+    void whenMessagesSpanSeveralSegmentsThenTheyArePolledInOrderAndReadSegmentsAreDeleted() throws IOException {
+        final JournalBand<TestMessage> band = new JournalBand<>(new TestMessageCodec(), directory, 128, 0L);
+        for (int i = 0; i < 100; i++) {
+            band.offer(new TestMessage(i, "message " + i));
+        }
+        final long segmentsWritten = countSegments();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(new TestMessage(i, "message " + i), band.peek(), "peek should return the next message");
+            assertEquals(new TestMessage(i, "message " + i), band.poll(), "messages should be polled in order");
+        }
+        final long segmentsLeft = countSegments();
+        assertAll("verify band is empty and compacted",
+                () -> assertTrue(segmentsWritten > 1, "messages should have rolled over to new segments"),
+                () -> assertEquals(1, segmentsLeft, "only the segment being written should be left"),
+                () -> assertTrue(band.isEmpty(), "band should be empty"),
+                () -> assertNull(band.poll(), "poll should return null"),
+                () -> assertNull(band.peek(), "peek should return null"));
+    }
+
+    @DisplayName("when a journal is reopened then only the unread messages are recovered")
+    @Test
+    void whenAJournalIsReopenedThenOnlyTheUnreadMessagesAreRecovered() {
+        final JournalBand<TestMessage> band = new JournalBand<>(new TestMessageCodec(), directory, 128, 1000L);
+        for (int i = 0; i < 50; i++) {
+            band.offer(new TestMessage(i, "message " + i));
+        }
+        for (int i = 0; i < 20; i++) {
+            band.poll();
+        }
+        band.close();
+
+        final JournalBand<TestMessage> reopened = new JournalBand<>(new TestMessageCodec(), directory, 128, 1000L);
+        assertEquals(30, reopened.size(), "unread message count is incorrect");
+        reopened.offer(new TestMessage(50, "message 50"));
+        for (int i = 20; i <= 50; i++) {
+            assertEquals(new TestMessage(i, "message " + i), reopened.poll(), "messages should be polled in order");
+        }
+        assertTrue(reopened.isEmpty(), "band should be empty");
+    }
+
+    @DisplayName("when a message is larger than a segment then it is written to a segment of its own")
+    @Test
+    void whenAMessageIsLargerThanASegmentThenItIsWrittenToASegmentOfItsOwn() {
+        final JournalBand<TestMessage> band = new JournalBand<>(new TestMessageCodec(), directory, 32, 0L);
+        final TestMessage largeMessage = new TestMessage(2, "x".repeat(1000));
+        band.offer(new TestMessage(1, "small"));
+        band.offer(largeMessage);
+        band.close();
+        final JournalBand<TestMessage> reopened = new JournalBand<>(new TestMessageCodec(), directory, 32, 0L);
+        assertAll("verify message order",
+                () -> assertEquals(1, reopened.poll().id(), "small message should be first"),
+                () -> assertEquals(largeMessage, reopened.poll(), "large message should be second"),
+                () -> assertTrue(reopened.isEmpty(), "band should be empty"));
+    }
+
+    @DisplayName("when the journal directory holds files not named like segments then they are left alone")
+    @Test
+    void whenTheJournalDirectoryHoldsFilesNotNamedLikeSegmentsThenTheyAreLeftAlone() throws IOException {
+        final JournalBand<TestMessage> band = new JournalBand<>(new TestMessageCodec(), directory, 128, 0L);
+        band.offer(new TestMessage(1, "message 1"));
+        band.close();
+        final Path backup = Files.writeString(directory.resolve("backup.seg"), "not a segment");
+        final Path negative = Files.writeString(directory.resolve("-1.seg"), "not a segment");
+        final JournalBand<TestMessage> reopened = new JournalBand<>(new TestMessageCodec(), directory, 128, 0L);
+        assertAll("verify stray files are skipped",
+                () -> assertEquals(new TestMessage(1, "message 1"), reopened.poll(), "the journalled message should be recovered"),
+                () -> assertTrue(reopened.isEmpty(), "band should be empty"),
+                () -> assertTrue(Files.exists(backup) && Files.exists(negative), "stray files should be left alone"));
+    }
+
+    @DisplayName("when a band is closed then it cannot be used again and closing it again does nothing")
+    @Test
+    void whenABandIsClosedThenItCannotBeUsedAgainAndClosingItAgainDoesNothing() {
+        final JournalBand<TestMessage> band = new JournalBand<>(new TestMessageCodec(), directory, 128, 1000L);
+        band.offer(new TestMessage(1, "message 1"));
+        band.close();
+        band.close();
+        final TestMessage message = new TestMessage(2, "message 2");
+        assertAll("verify closed band",
+                () -> assertThrows(QueueJournalException.class, () -> band.offer(message), "offer should fail"),
+                () -> assertThrows(QueueJournalException.class, band::poll, "poll should fail"),
+                () -> assertThrows(QueueJournalException.class, band::peek, "peek should fail"));
+    }
+
+    private long countSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".seg")).count();
+        }
+    }
+
+    @DisplayName("when a filtered poll rejects the head then it stays and an accepted head is taken")
+    @Test
+    void whenAFilteredPollRejectsTheHeadThenItStaysAndAnAcceptedHeadIsTaken() {
+        final JournalBand<TestMessage> band = new JournalBand<>(new TestMessageCodec(), directory, 128, 0L);
+        band.offer(new TestMessage(1, "first"));
+        band.offer(new TestMessage(2, "second"));
+        assertAll("verify filtered polls",
+                () -> assertNull(band.pollIf(message -> message.id() == 2), "a rejected head should not be taken"),
+                () -> assertEquals(new TestMessage(1, "first"), band.peek(), "a rejected head should stay at the head"),
+                () -> assertEquals(new TestMessage(1, "first"), band.pollIf(message -> message.id() == 1),
+                        "an accepted head should be taken"),
+                () -> assertEquals(new TestMessage(2, "second"), band.poll(), "the next message should follow"),
+                () -> assertTrue(band.isEmpty(), "band should be empty"));
+    }
+}
@@ -0,0 +1,90 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class LinkedBandTest {
+
+    @DisplayName("when the head is taken by identity then only the element seen at the head is removed")
+    @Test
+    void whenTheHeadIsTakenByIdentityThenOnlyTheElementSeenAtTheHeadIsRemoved() {
+        final LinkedBand<TestMessage> band = new LinkedBand<>();
+        final TestMessage first = new TestMessage(1, "same");
+        final TestMessage equalToFirst = new TestMessage(1, "same");
+        band.offer(first);
+        band.offer(equalToFirst);
+        assertAll("verify removals by identity",
+                () -> assertFalse(band.removeHead(equalToFirst), "an equal element behind the head should not be removed"),
+                () -> assertTrue(band.removeHead(first), "the head should be removed"),
+                () -> assertFalse(band.removeHead(first), "a head already taken should not be removed again"),
+                () -> assertNull(band.pollIf(message -> message.id() == 2), "a rejected head should stay"),
+                () -> assertTrue(band.peek() == equalToFirst, "the element behind should now be the head"), //NOSONAR: java:S5785, identity
+                () -> assertTrue(band.pollIf(message -> message.id() == 1) == equalToFirst, "an accepted head should be taken"), //NOSONAR
+                () -> assertTrue(band.isEmpty(), "band should be empty"),
+                () -> assertNull(band.poll(), "poll should return null"),
+                () -> assertNull(band.peek(), "peek should return null"));
+    }
+
+    @DisplayName("when consumers poll and poll selectively alongside producers then every message is taken exactly once")
+    @Test
+    void whenConsumersPollAndPollSelectivelyAlongsideProducersThenEveryMessageIsTakenExactlyOnce() throws Exception {
+        final LinkedBand<TestMessage> band = new LinkedBand<>();
+        final int producerCount = 3;
+        final int messagesPerProducer = 20000;
+        final Set<Integer> taken = ConcurrentHashMap.newKeySet();
+        final ExecutorService executor = Executors.newFixedThreadPool(producerCount + 3);
+        try {
+            final List<Future<?>> producers = new ArrayList<>();
+            for (int p = 0; p < producerCount; p++) {
+                final int producer = p;
+                producers.add(executor.submit(() -> {
+                    for (int i = 0; i < messagesPerProducer; i++) {
+                        band.offer(new TestMessage(producer * messagesPerProducer + i, "message"));
+                    }
+                }));
+            }
+            final List<Future<Integer>> consumers = new ArrayList<>();
+            for (int c = 0; c < 3; c++) {
+                final boolean selective = c > 0;
+                consumers.add(executor.submit(() -> {
+                    int duplicates = 0;
+                    while (!producers.stream().allMatch(Future::isDone) || !band.isEmpty()) {
+                        final TestMessage message = selective ? band.pollIf(candidate -> candidate.id() % 2 == 0) : band.poll();
+                        if (message != null && !taken.add(message.id())) {
+                            duplicates++;
+                        }
+                    }
+                    return duplicates;
+                }));
+            }
+            for (Future<?> producer : producers) {
+                producer.get(30L, TimeUnit.SECONDS);
+            }
+            int duplicates = 0;
+            for (Future<Integer> consumer : consumers) {
+                duplicates += consumer.get(30L, TimeUnit.SECONDS);
+            }
+            final int duplicateCount = duplicates;
+            assertAll("verify every message is taken once",
+                    () -> assertEquals(0, duplicateCount, "no message should be taken twice"),
+                    () -> assertEquals(producerCount * messagesPerProducer, taken.size(), "every message should be taken"),
+                    () -> assertTrue(band.isEmpty(), "band should be empty"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class OccupancyIndexTest {
+
+    @DisplayName("when no band is set then highest returns -1")
+    @Test
+    void whenNoBandIsSetThenHighestReturnsMinusOne() {
+        assertEquals(-1, new OccupancyIndex(5).highest());
+    }
+
+    @DisplayName("when bands are set and cleared across several levels then highest tracks the highest set band")
+    @Test
+    void whenBandsAreSetAndClearedAcrossSeveralLevelsThenHighestTracksTheHighestSetBand() {
+        final OccupancyIndex index = new OccupancyIndex(300_000);
+        index.set(3);
+        index.set(70);
+        index.set(299_999);
+        index.set(262_143);
+        assertAll("verify highest after each clear",
+                () -> assertEquals(299_999, index.highest(), "highest should be 299999"),
+                () -> {
+                    index.clear(299_999);
+                    assertEquals(262_143, index.highest(), "highest should be 262143");
+                },
+                () -> {
+                    index.clear(262_143);
+                    assertEquals(70, index.highest(), "highest should be 70");
+                },
+                () -> {
+                    index.clear(70);
+                    assertEquals(3, index.highest(), "highest should be 3");
+                },
+                () -> {
+                    index.clear(3);
+                    assertEquals(-1, index.highest(), "index should be empty");
+                });
+    }
+
+    @DisplayName("when a band sharing a word with a cleared band is still set then highest still finds it")
+    @Test
+    void whenABandSharingAWordWithAClearedBandIsStillSetThenHighestStillFindsIt() {
+        final OccupancyIndex index = new OccupancyIndex(4096);
+        index.set(130);
+        index.set(129);
+        index.clear(130);
+        assertEquals(129, index.highest());
+    }
+
+    @DisplayName("when bands are set and cleared across several levels then lowest tracks the lowest set band")
+    @Test
+    void whenBandsAreSetAndClearedAcrossSeveralLevelsThenLowestTracksTheLowestSetBand() {
+        final OccupancyIndex index = new OccupancyIndex(300_000);
+        assertEquals(-1, index.lowest(), "empty index should have no lowest band");
+        index.set(262_143);
+        index.set(70);
+        index.set(299_999);
+        assertAll("verify lowest after each clear",
+                () -> assertEquals(70, index.lowest(), "lowest should be 70"),
+                () -> {
+                    index.clear(70);
+                    assertEquals(262_143, index.lowest(), "lowest should be 262143");
+                },
+                () -> {
+                    index.clear(262_143);
+                    assertEquals(299_999, index.lowest(), "lowest should be 299999");
+                });
+    }
+
+    @DisplayName("when walking down from the highest band then every set band is visited in descending order")
+    @Test
+    void whenWalkingDownFromTheHighestBandThenEverySetBandIsVisitedInDescendingOrder() {
+        final OccupancyIndex index = new OccupancyIndex(300_000);
+        index.set(0);
+        index.set(63);
+        index.set(64);
+        index.set(4096);
+        index.set(299_999);
+        assertAll("verify walk",
+                () -> assertEquals(299_999, index.highestBelow(300_000), "first band should be 299999"),
+                () -> assertEquals(4096, index.highestBelow(299_999), "second band should be 4096"),
+                () -> assertEquals(64, index.highestBelow(4096), "third band should be 64"),
+                () -> assertEquals(63, index.highestBelow(64), "fourth band should be 63"),
+                () -> assertEquals(0, index.highestBelow(63), "fifth band should be 0"),
+                () -> assertEquals(-1, index.highestBelow(0), "nothing should be below 0"));
+    }
+}
@@ -0,0 +1,61 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class OffHeapBandTest {
+
+    @DisplayName("when messages span several slabs then they are polled in the order they were offered")
+    @Test
+    void whenMessagesSpanSeveralSlabsThenTheyArePolledInTheOrderTheyWereOffered() {
+        final OffHeapBand<TestMessage> band = new OffHeapBand<>(new TestMessageCodec(), 64);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 100; i++) {
+                band.offer(new TestMessage(i, "message " + i));
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals(new TestMessage(i, "message " + i), band.peek(), "peek should return the next message");
+                assertEquals(new TestMessage(i, "message " + i), band.poll(), "messages should be polled in order");
+            }
+        }
+        assertAll("verify band is empty",
+                () -> assertTrue(band.isEmpty(), "band should be empty"),
+                () -> assertNull(band.poll(), "poll should return null"),
+                () -> assertNull(band.peek(), "peek should return null"));
+    }
+
+    @DisplayName("when a message is larger than a slab then it is stored in a slab of its own")
+    @Test
+    void whenAMessageIsLargerThanASlabThenItIsStoredInASlabOfItsOwn() {
+        final OffHeapBand<TestMessage> band = new OffHeapBand<>(new TestMessageCodec(), 16);
+        final TestMessage largeMessage = new TestMessage(2, "x".repeat(1000));
+        band.offer(new TestMessage(1, "small"));
+        band.offer(largeMessage);
+        band.offer(new TestMessage(3, "small"));
+        assertAll("verify message order",
+                () -> assertEquals(1, band.poll().id(), "small message should be first"),
+                () -> assertEquals(largeMessage, band.poll(), "large message should be second"),
+                () -> assertEquals(3, band.poll().id(), "last message should be third"),
+                () -> assertTrue(band.isEmpty(), "band should be empty"));
+    }
+
+    @DisplayName("when a filtered poll rejects the head then it stays and an accepted head is taken")
+    @Test
+    void whenAFilteredPollRejectsTheHeadThenItStaysAndAnAcceptedHeadIsTaken() {
+        final OffHeapBand<TestMessage> band = new OffHeapBand<>(new TestMessageCodec(), 64);
+        band.offer(new TestMessage(1, "first"));
+        band.offer(new TestMessage(2, "second"));
+        assertAll("verify filtered polls",
+                () -> assertNull(band.pollIf(message -> message.id() == 2), "a rejected head should not be taken"),
+                () -> assertEquals(new TestMessage(1, "first"), band.peek(), "a rejected head should stay at the head"),
+                () -> assertEquals(new TestMessage(1, "first"), band.pollIf(message -> message.id() == 1),
+                        "an accepted head should be taken"),
+                () -> assertEquals(new TestMessage(2, "second"), band.poll(), "the next message should follow"),
+                () -> assertTrue(band.isEmpty(), "band should be empty"));
+    }
+}
@@ -0,0 +1,181 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import org.fermented.dairy.queues.priority.exceptions.QueueInstantiationException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class QueueDispatcherTest {
+
+    @DisplayName("when messages are offered to a dispatched queue then each is handled exactly once on the pool's threads")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenMessagesAreOfferedToADispatchedQueueThenEachIsHandledExactlyOnceOnThePoolsThreads(final QueueEngine engine) throws InterruptedException {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(PriorityQueue.QUEUE_ENGINE_PROPERTY, engine,
+                PriorityQueue.MAX_QUEUE_DEPTH_PROPERTY, 64L, PriorityQueue.MAX_PUT_WAIT_TIME_PROPERTY, 5000L));
+        final int messageCount = 2000;
+        final CountDownLatch handled = new CountDownLatch(messageCount);
+        final Map<TestMessage, Integer> handledCounts = new ConcurrentHashMap<>();
+        final Map<String, Boolean> handlerThreads = new ConcurrentHashMap<>();
+        final AtomicInteger createdThreads = new AtomicInteger();
+        final ThreadFactory threadFactory = task -> {
+            final Thread thread = new Thread(task, "test-worker-" + createdThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        try (QueueDispatcher<TestMessage> dispatcher = QueueDispatcher.start(queue, message -> {
+            handledCounts.merge(message, 1, Integer::sum);
+            handlerThreads.put(Thread.currentThread().getName(), true);
+            handled.countDown();
+        }, Map.of(QueueDispatcher.CONCURRENCY_PROPERTY, 4, QueueDispatcher.BATCH_SIZE_PROPERTY, 8,
+                QueueDispatcher.THREAD_FACTORY_PROPERTY, threadFactory))) {
+            final Priority[] priorities = Priority.values();
+            for (int i = 0; i < messageCount; i++) {
+                queue.offer(new TestMessage(i, "message " + i), priorities[i % priorities.length]);
+            }
+            assertTrue(handled.await(10, TimeUnit.SECONDS), "all messages should be handled with the " + engine + " engine");
+        }
+        assertAll("verify dispatch with the " + engine + " engine",
+                () -> assertEquals(messageCount, handledCounts.size(), "every message should be handled"),
+                () -> assertTrue(handledCounts.values().stream().allMatch(count -> count == 1), "no message should be handled twice"),
+                () -> assertEquals(4, createdThreads.get(), "one thread per worker should come from the factory"),
+                () -> assertTrue(handlerThreads.keySet().stream().allMatch(name -> name.startsWith("test-worker-")),
+                        "messages should be handled on the factory's threads"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"));
+    }
+
+    @DisplayName("when a single worker takes one message at a time then messages are handled in priority order")
+    @Test
+    void whenASingleWorkerTakesOneMessageAtATimeThenMessagesAreHandledInPriorityOrder() throws InterruptedException {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue();
+        final List<TestMessage> expected = new ArrayList<>();
+        for (Priority priority : Priority.values()) {
+            final TestMessage message = new TestMessage(priority.ordinal(), "message " + priority);
+            queue.offer(message, priority);
+            expected.add(0, message);
+        }
+        final List<TestMessage> received = new CopyOnWriteArrayList<>();
+        final CountDownLatch handled = new CountDownLatch(expected.size());
+        try (QueueDispatcher<TestMessage> dispatcher = QueueDispatcher.start(queue, message -> {
+            received.add(message);
+            handled.countDown();
+        }, Map.of(QueueDispatcher.CONCURRENCY_PROPERTY, 1, QueueDispatcher.BATCH_SIZE_PROPERTY, 1))) {
+            assertTrue(handled.await(5, TimeUnit.SECONDS), "all messages should be handled");
+        }
+        assertEquals(expected, received, "messages should be handled highest priority first");
+    }
+
+    @DisplayName("when the handler fails then the error handler is told and dispatch carries on")
+    @Test
+    void whenTheHandlerFailsThenTheErrorHandlerIsToldAndDispatchCarriesOn() throws InterruptedException {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue();
+        final TestMessage badMessage = new TestMessage(1, "bad message");
+        final TestMessage goodMessage = new TestMessage(2, "good message");
+        final List<TestMessage> failed = new CopyOnWriteArrayList<>();
+        final List<TestMessage> received = new CopyOnWriteArrayList<>();
+        final CountDownLatch handled = new CountDownLatch(2);
+        final BiConsumer<TestMessage, RuntimeException> errorHandler = (message, e) -> {
+            failed.add(message);
+            handled.countDown();
+        };
+        try (QueueDispatcher<TestMessage> dispatcher = QueueDispatcher.start(queue, message -> {
+            if (message.equals(badMessage)) {
+                throw new IllegalStateException("cannot handle " + message);
+            }
+            received.add(message);
+            handled.countDown();
+        }, Map.of(QueueDispatcher.CONCURRENCY_PROPERTY, 1, QueueDispatcher.ERROR_HANDLER_PROPERTY, errorHandler))) {
+            queue.offer(badMessage, Priority.HIGH);
+            queue.offer(goodMessage, Priority.LOW);
+            assertTrue(handled.await(5, TimeUnit.SECONDS), "both messages should be dealt with");
+        }
+        assertAll("verify error handling",
+                () -> assertEquals(List.of(badMessage), failed, "the failed message should go to the error handler"),
+                () -> assertEquals(List.of(goodMessage), received, "the next message should still be handled"));
+    }
+
+    @DisplayName("when the handler throws an error or the error handler fails then the worker reports it and carries on")
+    @Test
+    void whenTheHandlerThrowsAnErrorOrTheErrorHandlerFailsThenTheWorkerReportsItAndCarriesOn() throws InterruptedException {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue();
+        final TestMessage erroringMessage = new TestMessage(1, "erroring message");
+        final TestMessage failingMessage = new TestMessage(2, "failing message");
+        final TestMessage goodMessage = new TestMessage(3, "good message");
+        final List<Throwable> uncaught = new CopyOnWriteArrayList<>();
+        final List<TestMessage> received = new CopyOnWriteArrayList<>();
+        final CountDownLatch handled = new CountDownLatch(3);
+        final ThreadFactory threadFactory = task -> {
+            final Thread thread = new Thread(task, "test-worker");
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((worker, e) -> {
+                uncaught.add(e);
+                handled.countDown();
+            });
+            return thread;
+        };
+        final BiConsumer<TestMessage, RuntimeException> errorHandler = (message, e) -> {
+            throw new IllegalStateException("error handler failed for " + message);
+        };
+        try (QueueDispatcher<TestMessage> dispatcher = QueueDispatcher.start(queue, message -> {
+            if (message.equals(erroringMessage)) {
+                throw new AssertionError("cannot handle " + message);
+            }
+            if (message.equals(failingMessage)) {
+                throw new IllegalArgumentException("cannot handle " + message);
+            }
+            received.add(message);
+            handled.countDown();
+        }, Map.of(QueueDispatcher.CONCURRENCY_PROPERTY, 1, QueueDispatcher.THREAD_FACTORY_PROPERTY, threadFactory,
+                QueueDispatcher.ERROR_HANDLER_PROPERTY, errorHandler))) {
+            queue.offer(erroringMessage, Priority.URGENT);
+            queue.offer(failingMessage, Priority.HIGH);
+            queue.offer(goodMessage, Priority.LOW);
+            assertTrue(handled.await(5, TimeUnit.SECONDS), "all three messages should be dealt with");
+        }
+        assertAll("verify failures are reported",
+                () -> assertEquals(2, uncaught.size(), "the error and the error handler's failure should be reported"),
+                () -> assertInstanceOf(AssertionError.class, uncaught.get(0), "the handler's error should be reported"),
+                () -> assertInstanceOf(IllegalStateException.class, uncaught.get(1), "the error handler's failure should be reported"),
+                () -> assertInstanceOf(IllegalArgumentException.class, uncaught.get(1).getSuppressed()[0],
+                        "the handler's exception should be suppressed by the error handler's failure"),
+                () -> assertEquals(List.of(goodMessage), received, "the next message should still be handled"));
+    }
+
+    @DisplayName("when the dispatcher is closed then messages stay on the queue")
+    @Test
+    void whenTheDispatcherIsClosedThenMessagesStayOnTheQueue() {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue();
+        final List<TestMessage> received = new CopyOnWriteArrayList<>();
+        QueueDispatcher.start(queue, received::add, Map.of(QueueDispatcher.CONCURRENCY_PROPERTY, 2,
+                QueueDispatcher.IDLE_WAIT_PROPERTY, 10L)).close();
+        queue.offer(new TestMessage(1, "message 1"));
+        assertAll("verify closed dispatcher",
+                () -> assertTrue(received.isEmpty(), "nothing should be handled after close"),
+                () -> assertEquals(1L, queue.depth(), "the message should stay on the queue"));
+    }
+
+    @DisplayName("when the concurrency is not positive then the dispatcher is not started")
+    @Test
+    void whenTheConcurrencyIsNotPositiveThenTheDispatcherIsNotStarted() {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue();
+        final Map<String, Object> properties = Map.of(QueueDispatcher.CONCURRENCY_PROPERTY, 0);
+        assertThrows(QueueInstantiationException.class, () -> QueueDispatcher.start(queue, message -> { }, properties));
+    }
+}
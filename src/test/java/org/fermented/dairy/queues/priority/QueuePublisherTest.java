@@ -0,0 +1,156 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.fermented.dairy.queues.priority.exceptions.QueuePollException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class QueuePublisherTest {
+
+    @DisplayName("when a subscriber requests messages then it receives no more than it asked for in priority order")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenASubscriberRequestsMessagesThenItReceivesNoMoreThanItAskedForInPriorityOrder(final QueueEngine engine) {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(Map.of(PriorityQueue.QUEUE_ENGINE_PROPERTY, engine));
+        final TestMessage lowMessage = new TestMessage(1, "message low");
+        final TestMessage urgentMessage = new TestMessage(2, "message urgent");
+        final TestMessage highMessage = new TestMessage(3, "message high");
+        final TestMessage laterMessage = new TestMessage(4, "message later");
+        queue.offer(lowMessage, Priority.LOW);
+        queue.offer(urgentMessage, Priority.URGENT);
+        queue.offer(highMessage, Priority.HIGH);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        new QueuePublisher<>(queue, Runnable::run, 1).subscribe(subscriber);
+
+        subscriber.subscription.request(2L);
+        final List<TestMessage> afterTwo = List.copyOf(subscriber.received);
+        subscriber.subscription.request(2L);
+        final List<TestMessage> afterFour = List.copyOf(subscriber.received);
+        queue.offer(laterMessage, Priority.LOWEST);
+        assertAll("verify delivery with the " + engine + " engine",
+                () -> assertEquals(List.of(urgentMessage, highMessage), afterTwo, "first two messages are incorrect"),
+                () -> assertEquals(List.of(urgentMessage, highMessage, lowMessage), afterFour, "the queue only held three messages"),
+                () -> assertEquals(List.of(urgentMessage, highMessage, lowMessage, laterMessage), subscriber.received,
+                        "the message offered later should be pushed to the waiting subscriber"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"),
+                () -> assertNull(subscriber.error, "there should be no error"));
+    }
+
+    @DisplayName("when a subscriber has no demand or has cancelled then messages stay on the queue")
+    @Test
+    void whenASubscriberHasNoDemandOrHasCancelledThenMessagesStayOnTheQueue() {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue();
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        new QueuePublisher<>(queue, Runnable::run, 16).subscribe(subscriber);
+        queue.offer(new TestMessage(1, "message 1"));
+        final long depthWithoutDemand = queue.depth();
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        queue.offer(new TestMessage(2, "message 2"));
+        subscriber.subscription.cancel();
+        queue.offer(new TestMessage(3, "message 3"));
+        assertAll("verify demand and cancellation",
+                () -> assertEquals(1, depthWithoutDemand, "message should wait for demand"),
+                () -> assertEquals(List.of(1, 2), subscriber.received.stream().map(TestMessage::id).toList(), "received messages are incorrect"),
+                () -> assertEquals(1, queue.depth(), "message offered after cancelling should stay on the queue"));
+    }
+
+    @DisplayName("when a subscriber requests a non positive amount then it is given an error")
+    @Test
+    void whenASubscriberRequestsANonPositiveAmountThenItIsGivenAnError() {
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        new QueuePublisher<>(PriorityQueue.<TestMessage>getQueue()).subscribe(subscriber);
+        subscriber.subscription.request(0L);
+        assertAll("verify invalid demand",
+                () -> assertThrows(IllegalArgumentException.class, () -> new QueuePublisher<>(PriorityQueue.getQueue(), Runnable::run, 0),
+                        "batch size should be validated"),
+                () -> assertTrue(subscriber.awaitError() instanceof IllegalArgumentException, "error should be an IllegalArgumentException"));
+    }
+
+    @DisplayName("when the queue's poll lock is busy then the executor thread is handed back and the drain is retried")
+    @Test
+    void whenTheQueuesPollLockIsBusyThenTheExecutorThreadIsHandedBackAndTheDrainIsRetried() {
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue();
+        final AtomicBoolean lockBusy = new AtomicBoolean(true);
+        final List<Long> lockWaits = new CopyOnWriteArrayList<>();
+        @SuppressWarnings("unchecked") final DefaultPriorityQueue<TestMessage> contendedQueue =
+                (DefaultPriorityQueue<TestMessage>) Proxy.newProxyInstance(DefaultPriorityQueue.class.getClassLoader(),
+                        new Class<?>[] {DefaultPriorityQueue.class}, (proxy, method, args) -> {
+                            if ("drainTo".equals(method.getName()) && args.length == 3) {
+                                lockWaits.add((Long) args[2]);
+                                if (lockBusy.getAndSet(false)) {
+                                    throw new QueuePollException("Could not gain the lock on poll within the timeout");
+                                }
+                            }
+                            try {
+                                return method.invoke(queue, args);
+                            } catch (final InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        });
+        final Deque<Runnable> runs = new ArrayDeque<>();
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        queue.offer(new TestMessage(1, "message 1"));
+        new QueuePublisher<>(contendedQueue, runs::add, 16).subscribe(subscriber);
+        subscriber.subscription.request(1L);
+        runs.poll().run();
+        final int runsAfterBusyLock = runs.size();
+        final List<TestMessage> receivedWhileBusy = List.copyOf(subscriber.received);
+        runs.poll().run();
+        assertAll("verify the drain is retried",
+                () -> assertEquals(1, runsAfterBusyLock, "a new run should be scheduled once the busy run has returned"),
+                () -> assertTrue(receivedWhileBusy.isEmpty(), "nothing should be delivered while the lock is busy"),
+                () -> assertEquals(List.of(new TestMessage(1, "message 1")), subscriber.received, "the retry should deliver the message"),
+                () -> assertTrue(lockWaits.stream().allMatch(wait -> wait < Long.MAX_VALUE), "the lock wait should be bounded"),
+                () -> assertNull(subscriber.error, "a busy lock should not be an error"));
+    }
+
+    private static final class RecordingSubscriber implements Flow.Subscriber<TestMessage> {
+        private final List<TestMessage> received = new CopyOnWriteArrayList<>();
+        private Flow.Subscription subscription;
+        private volatile Throwable error;
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(final TestMessage item) {
+            received.add(item);
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            throw new AssertionError("the queue never completes");
+        }
+
+        private Throwable awaitError() throws InterruptedException {
+            for (int i = 0; i < 100 && error == null; i++) {
+                Thread.sleep(10L); //NOSONAR java:S2925: the error is signalled on the common pool
+            }
+            return error;
+        }
+    }
+}
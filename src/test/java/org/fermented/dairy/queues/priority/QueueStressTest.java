@@ -0,0 +1,487 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.fermented.dairy.queues.priority.PriorityQueue.MAX_POLL_WAIT_TIME_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.MAX_PUT_WAIT_TIME_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.MAX_QUEUE_DEPTH_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.MESSAGE_CODEC_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.QUEUE_ENGINE_PROPERTY;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+import java.util.stream.LongStream;
+import org.fermented.dairy.queues.priority.exceptions.QueuePollException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Multi-threaded randomised stress test run against every queue implementation and engine. Producers and consumers are
+ * released together to maximise contention, then every message is checked to have been polled exactly once, in offer
+ * order within its priority and, where the queue promises it, in priority order, with the depth kept in bounds
+ * throughout. A new engine is covered by adding it to {@link #subjects()}.
+ *
+ * <p>The defaults keep the suite quick enough for every build, a longer soak can be run with
+ * {@code -Dstress.rounds=100 -Dstress.messages=100000}. Failures report the seed, which {@code -Dstress.seed} replays as
+ * far as thread scheduling allows.
+ */
+class QueueStressTest {
+
+    private static final int ROUNDS = Integer.getInteger("stress.rounds", 2);
+    private static final int MESSAGES_PER_PRODUCER = Integer.getInteger("stress.messages", 2000);
+    private static final long SEED = Long.getLong("stress.seed", System.nanoTime());
+    private static final int PRODUCERS = 4;
+    private static final int CONSUMERS = 4;
+    private static final long BOUNDED_DEPTH = 64L;
+    private static final long TIMEOUT_SECONDS = 60L;
+
+    @DisplayName("when producers and consumers race then every message is polled once and in band order")
+    @Test
+    void whenProducersAndConsumersRaceThenEveryMessageIsPolledOnceAndInBandOrder() throws Exception {
+        for (Subject<?> subject : subjects()) {
+            for (int round = 0; round < ROUNDS; round++) {
+                race(subject, round);
+            }
+        }
+    }
+
+    @DisplayName("when consumers drain a filled queue concurrently then each sees priorities in descending order")
+    @Test
+    void whenConsumersDrainAFilledQueueConcurrentlyThenEachSeesPrioritiesInDescendingOrder() throws Exception {
+        for (Subject<?> subject : subjects()) {
+            for (int round = 0; round < ROUNDS; round++) {
+                drain(subject, round);
+            }
+        }
+    }
+
+    @DisplayName("when offers and polls are async then every future completes with a distinct message")
+    @Test
+    void whenOffersAndPollsAreAsyncThenEveryFutureCompletesWithADistinctMessage() throws Exception {
+        for (Subject<?> subject : subjects()) {
+            for (int round = 0; round < ROUNDS; round++) {
+                async(subject, round);
+            }
+        }
+    }
+
+    @DisplayName("when handles cancel and move messages while consumers poll then each message leaves the queue once")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenHandlesCancelAndMoveMessagesWhileConsumersPollThenEachMessageLeavesTheQueueOnce(final QueueEngine engine) throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            meddle(engine, round);
+        }
+    }
+
+    /**
+     * The queues under test, each with its priorities from lowest to highest.
+     *
+     * @return The subjects
+     */
+    private static List<Subject<?>> subjects() {
+        final List<Priority> priorities = List.of(Priority.values());
+        return List.of(
+                new Subject<>("locking", depth -> PriorityQueue.getQueue(properties(depth, Map.of(QUEUE_ENGINE_PROPERTY, QueueEngine.LOCKING))),
+                        priorities, 1L, true),
+                new Subject<>("lock-free", depth -> PriorityQueue.getQueue(properties(depth, Map.of(QUEUE_ENGINE_PROPERTY, QueueEngine.LOCK_FREE))),
+                        priorities, 1L, true),
+                new Subject<>("off-heap", depth -> PriorityQueue.getQueue(properties(depth, Map.of(MESSAGE_CODEC_PROPERTY, new TestMessageCodec()))),
+                        priorities, 1L, true),
+                new Subject<>("integer range", depth -> PriorityQueue.getQueue(properties(depth, Map.of()), -3, 3),
+                        List.of(-3, -2, -1, 0, 1, 2, 3), 1L, true),
+                new Subject<>("continuous", depth -> PriorityQueue.getContinuousQueue(properties(depth, Map.of())),
+                        LongStream.rangeClosed(-3L, 3L).map(rank -> rank * 1_000_003L).boxed().toList(), 1L, true),
+                //messages of one band are spread over the shards, so neither priority nor offer order holds across the whole queue
+                new Subject<>("sharded", depth -> PriorityQueue.getShardedQueue(properties(depth, Map.of()), 4),
+                        priorities, 4L, false));
+    }
+
+    private static Map<String, Object> properties(final long depth, final Map<String, Object> extra) {
+        final Map<String, Object> properties = new HashMap<>(extra);
+        properties.put(MAX_QUEUE_DEPTH_PROPERTY, depth);
+        //contention must not be mistaken for failure, so the lock timeouts are as long as the test's
+        properties.put(MAX_PUT_WAIT_TIME_PROPERTY, TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        properties.put(MAX_POLL_WAIT_TIME_PROPERTY, TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        return properties;
+    }
+
+    private static <P> void race(final Subject<P> subject, final int round) throws Exception {
+        final String context = subject.context("race", round);
+        final PriorityQueue<TestMessage, P> queue = subject.factory().apply(BOUNDED_DEPTH);
+        final Plan plan = new Plan(subject.priorities().size(), SEED + round);
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong depthViolations = new AtomicLong();
+        final List<Callable<List<TestMessage>>> tasks = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            tasks.add(() -> {
+                for (int seq = 0; seq < MESSAGES_PER_PRODUCER; seq++) {
+                    final TestMessage message = plan.message(producer, seq);
+                    final P priority = subject.priorities().get(plan.rank(message));
+                    if (seq % 10 == 0) {
+                        queue.offerAll(List.of(message), priority);
+                    } else {
+                        queue.offer(message, priority);
+                    }
+                }
+                return List.of();
+            });
+        }
+        for (int c = 0; c < CONSUMERS; c++) {
+            final boolean timed = c % 2 == 0;
+            tasks.add(() -> {
+                final List<TestMessage> polled = new ArrayList<>();
+                while (received.get() < plan.total()) {
+                    final TestMessage message = pollQuietly(queue, timed);
+                    if (message != null) {
+                        polled.add(message);
+                        received.incrementAndGet();
+                    }
+                }
+                return polled;
+            });
+        }
+        tasks.add(() -> {
+            final long limit = BOUNDED_DEPTH * subject.depthMultiple();
+            while (running.get()) {
+                final long depth = queue.depth();
+                if (depth < 0L || depth > limit) {
+                    depthViolations.incrementAndGet();
+                }
+                Thread.onSpinWait();
+            }
+            return List.of();
+        });
+        final List<List<TestMessage>> polled = runTogether(tasks, tasks.size() - 1, running);
+        assertAll("verify " + context,
+                () -> assertEquals(0L, depthViolations.get(), "depth should stay between zero and the maximum"),
+                () -> plan.assertEachPolledOnce(polled),
+                () -> assertTrue(!subject.ordered() || plan.inBandOrder(polled), "each consumer should see a band in offer order"),
+                () -> assertEmpty(queue, subject));
+    }
+
+    private static <P> void drain(final Subject<P> subject, final int round) throws Exception {
+        final String context = subject.context("drain", round);
+        final Plan plan = new Plan(subject.priorities().size(), SEED + round);
+        final PriorityQueue<TestMessage, P> queue = subject.factory().apply(plan.total());
+        final List<Callable<List<TestMessage>>> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            producers.add(() -> {
+                for (int seq = 0; seq < MESSAGES_PER_PRODUCER; seq++) {
+                    final TestMessage message = plan.message(producer, seq);
+                    queue.offer(message, subject.priorities().get(plan.rank(message)));
+                }
+                return List.of();
+            });
+        }
+        runTogether(producers, producers.size(), new AtomicBoolean());
+        final long filledDepth = queue.depth();
+        final AtomicInteger received = new AtomicInteger();
+        final List<Callable<List<TestMessage>>> consumers = new ArrayList<>();
+        for (int c = 0; c < CONSUMERS; c++) {
+            final boolean draining = c % 2 == 0;
+            consumers.add(() -> {
+                final List<TestMessage> polled = new ArrayList<>();
+                while (received.get() < plan.total()) {
+                    if (draining) {
+                        received.addAndGet(queue.drainTo(polled, 8, TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS)));
+                    } else {
+                        final TestMessage message = pollQuietly(queue, false);
+                        if (message != null) {
+                            polled.add(message);
+                            received.incrementAndGet();
+                        }
+                    }
+                }
+                return polled;
+            });
+        }
+        final List<List<TestMessage>> polled = runTogether(consumers, consumers.size(), new AtomicBoolean());
+        assertAll("verify " + context,
+                () -> assertEquals(plan.total(), filledDepth, "depth should count every message offered"),
+                () -> plan.assertEachPolledOnce(polled),
+                () -> assertTrue(!subject.ordered() || plan.inPriorityOrder(polled), "each consumer should see priorities in descending order"),
+                () -> assertTrue(!subject.ordered() || plan.inBandOrder(polled), "each consumer should see a band in offer order"),
+                () -> assertEmpty(queue, subject));
+    }
+
+    private static <P> void async(final Subject<P> subject, final int round) throws Exception {
+        final String context = subject.context("async", round);
+        final PriorityQueue<TestMessage, P> queue = subject.factory().apply(BOUNDED_DEPTH);
+        final Plan plan = new Plan(subject.priorities().size(), SEED + round);
+        final ConcurrentLinkedQueue<CompletableFuture<Void>> offers = new ConcurrentLinkedQueue<>();
+        final List<Callable<List<TestMessage>>> tasks = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            tasks.add(() -> {
+                for (int seq = 0; seq < MESSAGES_PER_PRODUCER; seq++) {
+                    final TestMessage message = plan.message(producer, seq);
+                    offers.add(queue.offerAsync(message, subject.priorities().get(plan.rank(message))));
+                }
+                return List.of();
+            });
+        }
+        for (int c = 0; c < CONSUMERS; c++) {
+            tasks.add(() -> {
+                final List<TestMessage> polled = new ArrayList<>();
+                for (int i = 0; i < plan.total() / CONSUMERS; i++) {
+                    polled.add(queue.pollAsync().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                }
+                return polled;
+            });
+        }
+        final List<List<TestMessage>> polled = runTogether(tasks, tasks.size(), new AtomicBoolean());
+        assertAll("verify " + context,
+                () -> assertEquals(plan.total(), offers.size(), "every offer should return a future"),
+                () -> assertTrue(offers.stream().allMatch(offer -> offer.isDone() && !offer.isCompletedExceptionally()),
+                        "every async offer should complete"),
+                () -> plan.assertEachPolledOnce(polled),
+                () -> assertEmpty(queue, subject));
+    }
+
+    private static void meddle(final QueueEngine engine, final int round) throws Exception {
+        final String context = "handles with the " + engine + " engine, round " + round + ", seed " + SEED;
+        final DefaultPriorityQueue<TestMessage> queue = PriorityQueue.getQueue(properties(Long.MAX_VALUE, Map.of(QUEUE_ENGINE_PROPERTY, engine)));
+        final Plan plan = new Plan(Priority.values().length, SEED + round);
+        final ConcurrentLinkedQueue<Tracked> tracked = new ConcurrentLinkedQueue<>();
+        final AtomicInteger gone = new AtomicInteger();
+        final AtomicInteger produced = new AtomicInteger();
+        final List<Callable<List<TestMessage>>> tasks = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            tasks.add(() -> {
+                for (int seq = 0; seq < MESSAGES_PER_PRODUCER; seq++) {
+                    final TestMessage message = plan.message(producer, seq);
+                    tracked.add(new Tracked(message, queue.offerWithHandle(message, Priority.values()[plan.rank(message)])));
+                }
+                produced.incrementAndGet();
+                return List.of();
+            });
+        }
+        //the meddler reports the messages it cancelled as though it had polled them
+        tasks.add(() -> {
+            final Random random = new Random(SEED + round);
+            final List<TestMessage> cancelled = new ArrayList<>();
+            Tracked next;
+            while ((next = tracked.poll()) != null || produced.get() < PRODUCERS) {
+                if (next == null) {
+                    Thread.onSpinWait();
+                } else if (random.nextBoolean() && next.handle().cancel()) {
+                    cancelled.add(next.message());
+                    gone.incrementAndGet();
+                } else {
+                    next.handle().changePriority(Priority.values()[random.nextInt(Priority.values().length)]);
+                }
+            }
+            return cancelled;
+        });
+        for (int c = 0; c < CONSUMERS; c++) {
+            tasks.add(() -> {
+                final List<TestMessage> polled = new ArrayList<>();
+                while (gone.get() < plan.total()) {
+                    final TestMessage message = pollQuietly(queue, false);
+                    if (message != null) {
+                        polled.add(message);
+                        gone.incrementAndGet();
+                    }
+                }
+                return polled;
+            });
+        }
+        final List<List<TestMessage>> polled = runTogether(tasks, tasks.size(), new AtomicBoolean());
+        assertAll("verify " + context,
+                () -> plan.assertEachPolledOnce(polled),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"),
+                () -> assertEquals(0L, queue.depth(), "depth should be back to zero"));
+    }
+
+    /**
+     * Polls once without waiting for a message, treating a poll that loses the race for the poll lock like an empty one.
+     *
+     * @param queue the queue
+     * @param timed whether to wait briefly for the lock and a message rather than not at all
+     * @param <P> Priority type
+     * @return The message or null if there was none or the poll lock was busy
+     */
+    private static <P> TestMessage pollQuietly(final PriorityQueue<TestMessage, P> queue, final boolean timed) {
+        try {
+            return timed ? queue.poll(1L).orElse(null) : queue.pollOrNull();
+        } catch (final QueuePollException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts the tasks together and waits for the first ones, then clears the running flag and waits for the rest.
+     *
+     * @param tasks tasks to run, each on its own thread
+     * @param awaited the number of tasks, from the first, that finish by themselves
+     * @param running flag the remaining tasks run until
+     * @return The tasks' results in task order
+     * @throws Exception if a task fails or does not finish in time
+     */
+    private static List<List<TestMessage>> runTogether(final List<Callable<List<TestMessage>>> tasks, final int awaited,
+                                                       final AtomicBoolean running) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            final List<Future<List<TestMessage>>> futures = new ArrayList<>();
+            for (Callable<List<TestMessage>> task : tasks) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            start.countDown();
+            final List<List<TestMessage>> results = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                if (i == awaited) {
+                    running.set(false);
+                }
+                results.add(futures.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            }
+            running.set(false);
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <P> void assertEmpty(final PriorityQueue<TestMessage, P> queue, final Subject<P> subject) {
+        assertAll("verify the queue is empty",
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"),
+                () -> assertEquals(0L, queue.depth(), "depth should be back to zero"),
+                () -> assertTrue(subject.priorities().stream().allMatch(priority -> queue.depth(priority) == 0L),
+                        "depth of every priority should be back to zero"));
+    }
+
+    /**
+     * A queue under test.
+     *
+     * @param name name used in failure messages
+     * @param factory creates the queue with a maximum depth
+     * @param priorities priorities from lowest to highest
+     * @param depthMultiple how many times the maximum depth the queue can hold
+     * @param ordered whether the queue polls in priority order and each band in offer order
+     * @param <P> Priority type
+     */
+    private record Subject<P>(String name, LongFunction<PriorityQueue<TestMessage, P>> factory, List<P> priorities,
+                              long depthMultiple, boolean ordered) {
+
+        String context(final String scenario, final int round) {
+            return scenario + " on the " + name + " queue, round " + round + ", seed " + SEED;
+        }
+    }
+
+    /**
+     * A message offered with a handle.
+     *
+     * @param message the message
+     * @param handle its handle
+     */
+    private record Tracked(TestMessage message, MessageHandle<Priority> handle) {
+    }
+
+    /**
+     * The messages each producer offers, with randomly chosen priority ranks. A message's id is its producer's number
+     * times the messages per producer plus its place in the producer's sequence.
+     */
+    private static final class Plan {
+
+        private final int[] ranks;
+
+        Plan(final int priorityCount, final long seed) {
+            final Random random = new Random(seed);
+            ranks = new int[total()];
+            for (int i = 0; i < ranks.length; i++) {
+                ranks[i] = random.nextInt(priorityCount);
+            }
+        }
+
+        int total() {
+            return PRODUCERS * MESSAGES_PER_PRODUCER;
+        }
+
+        TestMessage message(final int producer, final int seq) {
+            return new TestMessage(producer * MESSAGES_PER_PRODUCER + seq, "stress");
+        }
+
+        int rank(final TestMessage message) {
+            return ranks[message.id()];
+        }
+
+        void assertEachPolledOnce(final List<List<TestMessage>> polled) {
+            final BitSet seen = new BitSet(total());
+            int duplicates = 0;
+            int count = 0;
+            for (List<TestMessage> messages : polled) {
+                for (TestMessage message : messages) {
+                    duplicates += seen.get(message.id()) ? 1 : 0;
+                    seen.set(message.id());
+                    count++;
+                }
+            }
+            final int polledCount = count;
+            final int duplicateCount = duplicates;
+            assertAll("verify every message was polled once",
+                    () -> assertEquals(0, duplicateCount, "no message should be polled twice"),
+                    () -> assertEquals(total(), seen.cardinality(), "no message should be lost"),
+                    () -> assertEquals(total(), polledCount, "polled count should match the offered count"));
+        }
+
+        /**
+         * Tells whether each consumer saw every producer's messages of a band in the order they were offered.
+         */
+        boolean inBandOrder(final List<List<TestMessage>> polled) {
+            for (List<TestMessage> messages : polled) {
+                final Map<Long, Integer> last = new HashMap<>();
+                for (TestMessage message : messages) {
+                    final long band = (long) (message.id() / MESSAGES_PER_PRODUCER) << 32 | rank(message);
+                    final Integer previous = last.put(band, message.id());
+                    if (previous != null && previous > message.id()) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Tells whether each consumer saw priorities in descending order, which holds while nothing is being offered.
+         */
+        boolean inPriorityOrder(final List<List<TestMessage>> polled) {
+            for (List<TestMessage> messages : polled) {
+                int previous = Integer.MAX_VALUE;
+                for (TestMessage message : messages) {
+                    if (rank(message) > previous) {
+                        return false;
+                    }
+                    previous = rank(message);
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class RingBandTest {
+
+    @DisplayName("when more elements are offered than the initial capacity then they are polled in the order they were offered")
+    @Test
+    void whenMoreElementsAreOfferedThanTheInitialCapacityThenTheyArePolledInTheOrderTheyWereOffered() {
+        final RingBand<Integer> band = new RingBand<>();
+        for (int i = 0; i < 1000; i++) {
+            band.offer(i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, band.peek(), "peek should return the next element");
+            assertEquals(i, band.poll(), "elements should be polled in order");
+        }
+        assertAll("verify band is empty",
+                () -> assertTrue(band.isEmpty(), "band should be empty"),
+                () -> assertNull(band.poll(), "poll should return null"),
+                () -> assertNull(band.peek(), "peek should return null"));
+    }
+
+    @DisplayName("when a producer and a consumer run concurrently then every element is polled once in order")
+    @Test
+    void whenAProducerAndAConsumerRunConcurrentlyThenEveryElementIsPolledOnceInOrder() throws Exception {
+        final RingBand<Integer> band = new RingBand<>();
+        final int elements = 1_000_000;
+        //noinspection resource
+        final Future<?> producer = Executors.newSingleThreadExecutor().submit(() -> {
+            for (int i = 0; i < elements; i++) {
+                band.offer(i);
+            }
+        });
+        int expected = 0;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30L);
+        while (expected < elements && System.nanoTime() < deadline) {
+            final Integer element = band.poll();
+            if (element != null) {
+                assertEquals(expected++, element, "elements should be polled in order");
+            }
+        }
+        producer.get(1L, TimeUnit.SECONDS);
+        final int polled = expected;
+        assertAll("verify every element was polled",
+                () -> assertEquals(elements, polled, "element count is incorrect"),
+                () -> assertTrue(band.isEmpty(), "band should be empty"));
+    }
+}
@@ -0,0 +1,196 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.fermented.dairy.queues.priority.PriorityQueue.JOURNAL_DIRECTORY_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.MAX_PUT_WAIT_TIME_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.MAX_QUEUE_DEPTH_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.MESSAGE_CODEC_PROPERTY;
+import static org.fermented.dairy.queues.priority.PriorityQueue.QUEUE_ENGINE_PROPERTY;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.fermented.dairy.queues.priority.exceptions.QueueInstantiationException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class ShardedPriorityQueueTest {
+
+    @DisplayName("when one thread offers to a sharded queue then its messages are polled in strict priority order")
+    @Test
+    void whenOneThreadOffersToAShardedQueueThenItsMessagesArePolledInStrictPriorityOrder() {
+        final ShardedPriorityQueue<TestMessage, Priority> queue = PriorityQueue.getShardedQueue(Map.of(), 4);
+        final TestMessage lowMessage = new TestMessage(1, "message low");
+        final TestMessage defaultMessage = new TestMessage(2, "message default");
+        final TestMessage urgentMessage = new TestMessage(3, "message urgent");
+        final TestMessage expiringMessage = new TestMessage(4, "message expiring");
+        queue.offer(lowMessage, Priority.LOW);
+        queue.offer(defaultMessage);
+        queue.offerAll(List.of(urgentMessage), Priority.URGENT);
+        queue.offer(expiringMessage, Priority.LOWEST, Duration.ofMinutes(1L));
+        final long depth = queue.depth();
+        final long urgentDepth = queue.depth(Priority.URGENT);
+        final Optional<TestMessage> peeked = queue.peek();
+        assertAll("verify order",
+                () -> assertEquals(4, queue.shardCount(), "shard count is incorrect"),
+                () -> assertEquals(4, depth, "depth is incorrect"),
+                () -> assertEquals(1, urgentDepth, "urgent depth is incorrect"),
+                () -> assertEquals(urgentMessage, peeked.orElseThrow(), "urgent message should be peeked"),
+                () -> assertEquals(urgentMessage, queue.poll().orElseThrow(), "urgent message should be first"),
+                () -> assertEquals(defaultMessage, queue.pollOrNull(), "default message should be second"),
+                () -> assertEquals(lowMessage, queue.poll(false).orElseThrow(), "low message should be third"),
+                () -> assertEquals(expiringMessage, queue.take(), "lowest message should be last"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"),
+                () -> assertTrue(queue.peek().isEmpty(), "peek should be empty"));
+    }
+
+    @DisplayName("when messages are offered to partitions then each is polled exactly once and each partition stays in order")
+    @Test
+    void whenMessagesAreOfferedToPartitionsThenEachIsPolledExactlyOnceAndEachPartitionStaysInOrder() {
+        final ShardedPriorityQueue<TestMessage, Priority> queue = PriorityQueue.getShardedQueue(Map.of(QUEUE_ENGINE_PROPERTY, QueueEngine.LOCK_FREE), 8);
+        for (int i = 0; i < 1000; i++) {
+            queue.offerToPartition("key " + (i % 10), new TestMessage(i, "message " + i), Priority.HIGH);
+        }
+        final List<TestMessage> drained = new ArrayList<>();
+        final int drainedCount = queue.drainTo(drained, 600, 0L);
+        queue.drainTo(drained, 1000);
+        final Map<Integer, Integer> lastByPartition = new ConcurrentHashMap<>();
+        final boolean partitionsInOrder = drained.stream()
+                .allMatch(message -> lastByPartition.merge(message.id() % 10, message.id(), Math::max) == message.id());
+        assertAll("verify partitions",
+                () -> assertEquals(600, drainedCount, "first drain count is incorrect"),
+                () -> assertEquals(1000, new HashSet<>(drained).size(), "every message should be polled once"),
+                () -> assertTrue(partitionsInOrder, "each partition should be polled in order"),
+                () -> assertTrue(queue.isEmpty(), "queue should be empty"));
+    }
+
+    @DisplayName("when many producers and consumers share a sharded queue then every message is delivered exactly once")
+    @ParameterizedTest
+    @EnumSource(QueueEngine.class)
+    void whenManyProducersAndConsumersShareAShardedQueueThenEveryMessageIsDeliveredExactlyOnce(final QueueEngine engine) throws Exception {
+        final ShardedPriorityQueue<TestMessage, Priority> queue = PriorityQueue.getShardedQueue(
+                Map.of(QUEUE_ENGINE_PROPERTY, engine, MAX_QUEUE_DEPTH_PROPERTY, 100_000L, MAX_PUT_WAIT_TIME_PROPERTY, 5000L), 4);
+        final int producers = 8;
+        final int perProducer = 2000;
+        final ExecutorService executor = Executors.newFixedThreadPool(producers + 4);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<List<TestMessage>>> consumed = new ArrayList<>();
+        final List<Future<?>> produced = new ArrayList<>();
+        for (int c = 0; c < 4; c++) {
+            consumed.add(executor.submit(() -> {
+                start.await();
+                final List<TestMessage> taken = new ArrayList<>();
+                Optional<TestMessage> message;
+                while ((message = queue.poll(500L)).isPresent()) {
+                    taken.add(message.get());
+                }
+                return taken;
+            }));
+        }
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            produced.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < perProducer; i++) {
+                    final int id = producer * perProducer + i;
+                    queue.offer(new TestMessage(id, "message " + id), Priority.values()[id % Priority.values().length]);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : produced) {
+            future.get(30L, TimeUnit.SECONDS);
+        }
+        final Set<TestMessage> received = new HashSet<>();
+        int total = 0;
+        for (Future<List<TestMessage>> future : consumed) {
+            final List<TestMessage> taken = future.get(30L, TimeUnit.SECONDS);
+            received.addAll(taken);
+            total += taken.size();
+        }
+        executor.shutdown();
+        final int receivedCount = total;
+        assertAll("verify delivery with the " + engine + " engine",
+                () -> assertEquals(producers * perProducer, receivedCount, "every message should be delivered once"),
+                () -> assertEquals(producers * perProducer, received.size(), "no message should be delivered twice"),
+                () -> assertEquals(0, queue.depth(), "queue should be empty"));
+    }
+
+    @DisplayName("when consumers wait on a sharded queue then an offer to any shard wakes them")
+    @Test
+    void whenConsumersWaitOnAShardedQueueThenAnOfferToAnyShardWakesThem() throws Exception {
+        final ShardedPriorityQueue<TestMessage, Priority> queue = PriorityQueue.getShardedQueue(Map.of(MAX_QUEUE_DEPTH_PROPERTY, 1L), 4);
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        final Future<TestMessage> taken = executor.submit(queue::take);
+        Thread.sleep(50L); //NOSONAR java:S2925: Give the taking thread time to wait on the empty queue
+        final CompletableFuture<TestMessage> asyncPoll = queue.pollAsync();
+        final CompletableFuture<TestMessage> cancelledPoll = queue.pollAsync();
+        final boolean cancelled = cancelledPoll.cancel(false);
+        final TestMessage firstMessage = new TestMessage(1, "message 1");
+        final TestMessage secondMessage = new TestMessage(2, "message 2");
+        final TestMessage thirdMessage = new TestMessage(3, "message 3");
+        executor.submit(() -> queue.offer(firstMessage)).get(1L, TimeUnit.SECONDS);
+        executor.submit(() -> queue.offerAsync(secondMessage, Priority.HIGH).join()).get(1L, TimeUnit.SECONDS);
+        final Set<TestMessage> received = Set.of(taken.get(1L, TimeUnit.SECONDS), asyncPoll.get(1L, TimeUnit.SECONDS));
+        queue.offer(thirdMessage, Priority.LOW);
+        final CompletableFuture<Void> waitingOffer = queue.offerAsync(new TestMessage(4, "message 4"));
+        final boolean offerWaited = !waitingOffer.isDone();
+        final CompletableFuture<TestMessage> immediatePoll = queue.pollAsync();
+        waitingOffer.get(1L, TimeUnit.SECONDS);
+        final Optional<TestMessage> lastMessage = queue.poll(1000L);
+        final Optional<TestMessage> nothing = queue.poll(true);
+        executor.shutdown();
+        assertAll("verify waiting consumers",
+                () -> assertTrue(cancelled, "waiting async poll should be cancellable"),
+                () -> assertEquals(Set.of(firstMessage, secondMessage), received, "waiting consumers should get the messages"),
+                () -> assertTrue(offerWaited, "offer to the full shard should wait"),
+                () -> assertEquals(thirdMessage, immediatePoll.getNow(null), "async poll should complete straight away"),
+                () -> assertEquals(4, lastMessage.orElseThrow().id(), "waiting offer should have been added"),
+                () -> assertTrue(nothing.isEmpty(), "poll should time out on the empty queue"));
+    }
+
+    @DisplayName("when a sharded queue is journalled then each shard has its own directory and purge empties them all")
+    @Test
+    void whenAShardedQueueIsJournalledThenEachShardHasItsOwnDirectoryAndPurgeEmptiesThemAll(@TempDir final Path directory) {
+        final TestMessage message = new TestMessage(1, "message");
+        try (ShardedPriorityQueue<TestMessage, Priority> queue = PriorityQueue.getShardedQueue(
+                Map.of(MESSAGE_CODEC_PROPERTY, new TestMessageCodec(), JOURNAL_DIRECTORY_PROPERTY, directory.toString()), 2)) {
+            queue.offerAll(Map.of(Priority.HIGH, List.of(message)));
+            final long depthBeforePurge = queue.depth();
+            queue.purge();
+            assertAll("verify journal",
+                    () -> assertTrue(Files.isDirectory(directory.resolve("shard-0")), "first shard directory is missing"),
+                    () -> assertTrue(Files.isDirectory(directory.resolve("shard-1")), "second shard directory is missing"),
+                    () -> assertEquals(1, depthBeforePurge, "depth before purge is incorrect"),
+                    () -> assertFalse(queue.poll().isPresent(), "purged queue should be empty"));
+        }
+    }
+
+    @DisplayName("when the shard count is not positive then the queue cannot be created")
+    @Test
+    void whenTheShardCountIsNotPositiveThenTheQueueCannotBeCreated() {
+        final Map<String, Object> properties = Map.of();
+        assertThrows(QueueInstantiationException.class, () -> PriorityQueue.getShardedQueue(properties, 0), "0 shards should be rejected");
+    }
+}
@@ -0,0 +1,24 @@
+package org.fermented.dairy.queues.priority;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codec writing a {@link TestMessage} as its id followed by its UTF-8 text.
+ */
+public class TestMessageCodec implements MessageCodec<TestMessage> {
+
+    @Override
+    public byte[] encode(final TestMessage message) {
+        final byte[] text = message.message().getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(Integer.BYTES + text.length).putInt(message.id()).put(text).array();
+    }
+
+    @Override
+    public TestMessage decode(final ByteBuffer bytes) {
+        final int id = bytes.getInt();
+        final byte[] text = new byte[bytes.remaining()];
+        bytes.get(text);
+        return new TestMessage(id, new String(text, StandardCharsets.UTF_8));
+    }
+}
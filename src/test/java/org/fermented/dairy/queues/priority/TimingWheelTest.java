@@ -0,0 +1,72 @@
+package org.fermented.dairy.queues.priority;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+    @DisplayName("when the wheel is advanced then envelopes expire once their deadline has passed and not before")
+    @Test
+    void whenTheWheelIsAdvancedThenEnvelopesExpireOnceTheirDeadlineHasPassedAndNotBefore() {
+        final TimingWheel wheel = new TimingWheel();
+        final long start = System.nanoTime();
+        final Envelope<String> soon = envelope("soon", start, 5L);
+        final Envelope<String> later = envelope("later", start, 300L);
+        final Envelope<String> muchLater = envelope("much later", start, TimeUnit.HOURS.toMillis(2L));
+        wheel.schedule(muchLater);
+        wheel.schedule(later);
+        wheel.schedule(soon);
+        final List<Object> expired = new ArrayList<>();
+
+        wheel.advance(start + TimeUnit.MILLISECONDS.toNanos(2L), envelope -> expired.add(envelope.message()));
+        final List<Object> expiredAt2 = List.copyOf(expired);
+        wheel.advance(start + TimeUnit.MILLISECONDS.toNanos(10L), envelope -> expired.add(envelope.message()));
+        final List<Object> expiredAt10 = List.copyOf(expired);
+        wheel.advance(start + TimeUnit.MILLISECONDS.toNanos(299L), envelope -> expired.add(envelope.message()));
+        final List<Object> expiredAt299 = List.copyOf(expired);
+        wheel.advance(start + TimeUnit.MILLISECONDS.toNanos(301L), envelope -> expired.add(envelope.message()));
+        final List<Object> expiredAt301 = List.copyOf(expired);
+        wheel.advance(start + TimeUnit.HOURS.toNanos(3L), envelope -> expired.add(envelope.message()));
+        assertAll("verify expiry times",
+                () -> assertEquals(List.of(), expiredAt2, "nothing should have expired after 2ms"),
+                () -> assertEquals(List.of("soon"), expiredAt10, "soon should have expired after 10ms"),
+                () -> assertEquals(List.of("soon"), expiredAt299, "later should not have expired after 299ms"),
+                () -> assertEquals(List.of("soon", "later"), expiredAt301, "later should have expired after 301ms"),
+                () -> assertEquals(List.of("soon", "later", "much later"), expired, "much later should have expired after 3h"),
+                () -> assertTrue(wheel.isEmpty(), "wheel should be empty"));
+    }
+
+    @DisplayName("when an envelope is taken before its deadline then it is not expired")
+    @Test
+    void whenAnEnvelopeIsTakenBeforeItsDeadlineThenItIsNotExpired() {
+        final TimingWheel wheel = new TimingWheel();
+        final long start = System.nanoTime();
+        final Envelope<String> takenBeforePlacing = envelope("taken before placing", start, 100L);
+        final Envelope<String> cancelled = envelope("cancelled", start, 100L);
+        final Envelope<String> takenWithoutCancel = envelope("taken without cancel", start, 100L);
+        wheel.schedule(takenBeforePlacing);
+        takenBeforePlacing.complete(Envelope.TAKEN);
+        wheel.schedule(cancelled);
+        wheel.schedule(takenWithoutCancel);
+        wheel.advance(start, envelope -> { });
+        cancelled.complete(Envelope.TAKEN);
+        wheel.cancel(cancelled);
+        takenWithoutCancel.complete(Envelope.TAKEN);
+        final List<Object> expired = new ArrayList<>();
+        wheel.advance(start + TimeUnit.SECONDS.toNanos(1L), envelope -> expired.add(envelope.message()));
+        assertAll("verify nothing expired",
+                () -> assertEquals(List.of(), expired, "no envelope should have expired"),
+                () -> assertTrue(wheel.isEmpty(), "wheel should be empty"));
+    }
+
+    private static Envelope<String> envelope(final String message, final long start, final long ttlMillis) {
+        return new Envelope<>(message, 0, start, start + TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+    }
+}
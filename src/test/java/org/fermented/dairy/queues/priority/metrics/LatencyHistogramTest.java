@@ -0,0 +1,45 @@
+package org.fermented.dairy.queues.priority.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+    @DisplayName("when values are recorded then percentiles are reported to within a sixteenth of the value")
+    @Test
+    void whenValuesAreRecordedThenPercentilesAreReportedToWithinASixteenthOfTheValue() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1L; value <= 100_000L; value++) {
+            histogram.record(value);
+        }
+        final long median = histogram.valueAtPercentile(50.0);
+        final long ninetyNinth = histogram.valueAtPercentile(99.0);
+        assertAll("verify percentiles",
+                () -> assertEquals(100_000L, histogram.count(), "count is incorrect"),
+                () -> assertEquals(100_000L, histogram.max(), "max is incorrect"),
+                () -> assertTrue(median >= 50_000L && median <= 50_000L + 50_000L / 16L, "median is out of range: " + median),
+                () -> assertTrue(ninetyNinth >= 99_000L && ninetyNinth <= 99_000L + 99_000L / 16L, "99th percentile is out of range: " + ninetyNinth),
+                () -> assertEquals(100_000L, histogram.valueAtPercentile(100.0), "100th percentile should be the max"),
+                () -> assertEquals(1L, histogram.valueAtPercentile(0.0), "0th percentile should be the min"));
+    }
+
+    @DisplayName("when small, huge or negative values are recorded then they are bucketed without overflow")
+    @Test
+    void whenSmallHugeOrNegativeValuesAreRecordedThenTheyAreBucketedWithoutOverflow() {
+        final LatencyHistogram empty = new LatencyHistogram();
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5L);
+        histogram.record(7L);
+        histogram.record(Long.MAX_VALUE);
+        assertAll("verify edge values",
+                () -> assertEquals(0L, empty.valueAtPercentile(99.0), "empty histogram should report 0"),
+                () -> assertEquals(3L, histogram.count(), "count is incorrect"),
+                () -> assertEquals(0L, histogram.valueAtPercentile(30.0), "negative value should be recorded as 0"),
+                () -> assertEquals(7L, histogram.valueAtPercentile(60.0), "small values should be exact"),
+                () -> assertEquals(Long.MAX_VALUE, histogram.valueAtPercentile(100.0), "largest value is incorrect"));
+    }
+}
@@ -0,0 +1,97 @@
+package org.fermented.dairy.queues.priority.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.fermented.dairy.queues.priority.exceptions.QueueException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class RecordingQueueMetricsTest {
+
+    @DisplayName("when hooks are called then the figures are totalled per band and overall")
+    @Test
+    void whenHooksAreCalledThenTheFiguresAreTotalledPerBandAndOverall() {
+        final RecordingQueueMetrics metrics = new RecordingQueueMetrics();
+        metrics.attached(4);
+        metrics.enqueued(0);
+        metrics.enqueued(3);
+        metrics.enqueued(3);
+        metrics.dequeued(3, 1_000L);
+        metrics.dequeued(0, -1L);
+        metrics.expired(3);
+        metrics.dropped(0);
+        metrics.moved(0, 3);
+        metrics.putLockAcquired(10L);
+        metrics.pollLockAcquired(20L);
+        metrics.putTimedOut();
+        assertAll("verify figures",
+                () -> assertEquals(3L, metrics.getEnqueued(), "enqueued is incorrect"),
+                () -> assertEquals(2L, metrics.getDequeued(), "dequeued is incorrect"),
+                () -> assertEquals(1L, metrics.getExpired(), "expired is incorrect"),
+                () -> assertEquals(1L, metrics.getDropped(), "dropped is incorrect"),
+                () -> assertEquals(1L, metrics.getMoved(), "moved is incorrect"),
+                () -> assertEquals(1L, metrics.getPutTimeouts(), "put timeouts is incorrect"),
+                () -> assertEquals(Map.of(0, 1L, 3, 2L), metrics.getEnqueuedByBand(), "enqueued by band is incorrect"),
+                () -> assertEquals(Map.of(0, 1L, 3, 1L), metrics.getDequeuedByBand(), "dequeued by band is incorrect"),
+                () -> assertEquals(Map.of(0, 0L, 3, 1L), metrics.getExpiredByBand(), "expired by band is incorrect"),
+                () -> assertEquals(Map.of(0, 1L, 3, 0L), metrics.getDroppedByBand(), "dropped by band is incorrect"),
+                () -> assertEquals(Map.of(0, 0L, 3, 1L), metrics.getMovedInByBand(), "moved in by band is incorrect"),
+                () -> assertEquals(Map.of(0, 1L, 3, 0L), metrics.getMovedOutByBand(), "moved out by band is incorrect"),
+                () -> assertEquals(Map.of(0, 0L, 3, 1_000L), metrics.getResidenceTime99thPercentileByBand(), "residence by band is incorrect"),
+                () -> assertEquals(0L, metrics.residence(0).count(), "unknown residence times should not be recorded"),
+                () -> assertEquals(1_000L, metrics.getResidenceTimeMedian(), "median residence is incorrect"),
+                () -> assertEquals(1_000L, metrics.getResidenceTime99thPercentile(), "99th percentile residence is incorrect"),
+                () -> assertEquals(1_000L, metrics.getResidenceTimeMax(), "max residence is incorrect"),
+                () -> assertEquals(10L, metrics.getPutLockWait99thPercentile(), "put lock wait is incorrect"),
+                () -> assertEquals(10L, metrics.getPutLockWaitMax(), "max put lock wait is incorrect"),
+                () -> assertEquals(20L, metrics.getPollLockWait99thPercentile(), "poll lock wait is incorrect"),
+                () -> assertEquals(20L, metrics.getPollLockWaitMax(), "max poll lock wait is incorrect"));
+    }
+
+    @DisplayName("when the metrics are shared by several queues then attaching another keeps the figures recorded")
+    @Test
+    void whenTheMetricsAreSharedBySeveralQueuesThenAttachingAnotherKeepsTheFiguresRecorded() {
+        final RecordingQueueMetrics metrics = new RecordingQueueMetrics();
+        metrics.attached(2);
+        metrics.enqueued(1);
+        metrics.attached(2);
+        metrics.enqueued(1);
+        metrics.attached(4);
+        metrics.enqueued(3);
+        assertAll("verify shared figures",
+                () -> assertEquals(3L, metrics.getEnqueued(), "enqueued is incorrect"),
+                () -> assertEquals(Map.of(1, 2L, 3, 1L), metrics.getEnqueuedByBand(), "enqueued by band is incorrect"));
+    }
+
+    @DisplayName("when the metrics are registered then they can be read over jmx until unregistered")
+    @Test
+    void whenTheMetricsAreRegisteredThenTheyCanBeReadOverJmxUntilUnregistered() throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final RecordingQueueMetrics metrics = new RecordingQueueMetrics();
+        metrics.attached(1);
+        metrics.enqueued(0);
+        final ObjectName name = metrics.register("orders");
+        final Object enqueued = server.getAttribute(name, "Enqueued");
+        final QueueException duplicate = assertThrows(QueueException.class, () -> metrics.register("orders"), "registering twice should fail");
+        final QueueException taken = assertThrows(QueueException.class, () -> {
+            final RecordingQueueMetrics other = new RecordingQueueMetrics();
+            other.register("orders");
+        }, "a taken name should fail");
+        metrics.unregister();
+        metrics.unregister();
+        assertAll("verify jmx",
+                () -> assertEquals("QueueMetrics", name.getKeyProperty("type"), "type is incorrect"),
+                () -> assertEquals(1L, enqueued, "enqueued attribute is incorrect"),
+                () -> assertTrue(duplicate.getMessage().contains(name.toString()), "duplicate message is incorrect"),
+                () -> assertTrue(taken.getCause() != null, "taken name should carry the jmx exception"),
+                () -> assertFalse(server.isRegistered(name), "the MBean should have been unregistered"));
+    }
+}